@@ -0,0 +1,27 @@
+package unimelb.bitbox.messages;
+
+import unimelb.bitbox.util.fs.ArchiveEntry;
+
+import java.util.List;
+
+/**
+ * BOOTSTRAP_REQUEST message. Carries the next entries of an archive of the whole share directory, sent in place of
+ * a file-by-file synchronisation to a peer that has nothing yet. The requests of an archive are numbered in order,
+ * and the last one is marked.
+ *
+ * @author Eleanor McMurtry
+ */
+public class BootstrapRequest extends Message {
+    public BootstrapRequest(String archiveId, long segment, List<ArchiveEntry> entries, boolean last) {
+        super(summary(archiveId, segment));
+        document.append("command", MessageType.BOOTSTRAP_REQUEST);
+        document.append("archiveId", archiveId);
+        document.append("segment", segment);
+        document.append("entries", entries);
+        document.append("last", last);
+    }
+
+    static String summary(String archiveId, long segment) {
+        return "BOOTSTRAP:" + archiveId + ":" + segment;
+    }
+}
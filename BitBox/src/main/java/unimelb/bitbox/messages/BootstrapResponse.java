@@ -0,0 +1,61 @@
+package unimelb.bitbox.messages;
+
+import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.fs.ArchiveEntry;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * BOOTSTRAP_RESPONSE message. Writes the entries of the archive in the request, and reports the ones that could not
+ * be written in <code>failed</code>. The sender only has a few requests outstanding at once, so these responses pace
+ * the archive to the speed we can write it.
+ * <br/>
+ * Anything that could not be written is left for the next synchronisation, which will then compare the whole share
+ * directory.
+ *
+ * @author Eleanor McMurtry
+ */
+public class BootstrapResponse extends Response {
+    private final String archiveId;
+    private final List<ArchiveEntry> entries;
+    private final boolean last;
+
+    public BootstrapResponse(String archiveId, long segment, List<ArchiveEntry> entries, boolean last, Peer peer) {
+        super(BootstrapRequest.summary(archiveId, segment), peer);
+
+        this.archiveId = archiveId;
+        this.entries = entries;
+        this.last = last;
+        document.append("command", MessageType.BOOTSTRAP_RESPONSE);
+        document.append("archiveId", archiveId);
+        document.append("segment", segment);
+    }
+
+    @Override
+    void onSent() {
+        Map<String, String> failures = new LinkedHashMap<>();
+        List<ArchiveEntry> toUnpack = new ArrayList<>();
+        for (ArchiveEntry entry : entries) {
+            if (!PeerServer.fsManager().isSafePathName(entry.pathName)) {
+                failures.put(entry.pathName, "unsafe pathname given");
+            } else if (PeerServer.fsManager().isIgnored(entry.pathName, entry.isDirectory())) {
+                failures.put(entry.pathName, "ignored pathname given");
+            } else {
+                toUnpack.add(entry);
+            }
+        }
+        Map<String, String> unpackFailures = PeerServer.fsManager().unpackArchive(archiveId, peer, toUnpack, last);
+        if (!unpackFailures.isEmpty()) {
+            PeerServer.forgetChanges(peer);
+        }
+        failures.putAll(unpackFailures);
+        if (last) {
+            PeerServer.log().info(peer.getForeignName() + ": finished unpacking share directory");
+        }
+        appendBatchOutcome("entries unpacked", entries.size(), failures);
+    }
+}
@@ -0,0 +1,22 @@
+package unimelb.bitbox.messages;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.util.fs.ContentSummary;
+
+/**
+ * CHANGES_REQUEST message. Asks the receiver for the changes in its change log after the given sequence number.
+ * If our share directory is empty, we say so, so that the receiver can send all of it as an archive instead. We also
+ * send a summary of the contents we hold, so that the receiver knows which files we can copy rather than download.
+ *
+ * @author Eleanor McMurtry
+ */
+public class ChangesRequest extends Message {
+    public ChangesRequest(String logId, long sequence, boolean empty, Maybe<ContentSummary> contentSummary) {
+        super("CHANGES:" + logId + ":" + sequence);
+        document.append("command", MessageType.CHANGES_REQUEST);
+        document.append("logId", logId);
+        document.append("sequence", sequence);
+        document.append("empty", empty);
+        contentSummary.consume(summary -> document.append("contentSummary", summary));
+    }
+}
@@ -0,0 +1,66 @@
+package unimelb.bitbox.messages;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.config.Configuration;
+import unimelb.bitbox.util.fs.ContentSummary;
+import unimelb.bitbox.util.fs.FileSystemEvent;
+
+import java.util.Iterator;
+
+/**
+ * CHANGES_RESPONSE message. Sends the requested changes after the response; if the change log no longer has them,
+ * synchronises the whole share directory instead, and once that is complete tells the requester to start again from
+ * the head of the log (see {@link ResyncComplete}).
+ * A requester with an empty share directory is sent the whole share as an archive (see {@link BootstrapRequest}),
+ * unless <code>bootstrap</code> is set to false. The requester's summary of its contents replaces the one we had.
+ *
+ * @author Eleanor McMurtry
+ */
+public class ChangesResponse extends Response {
+    private final String logId;
+    private final long sequence;
+    private final boolean empty;
+    private final Maybe<ContentSummary> contentSummary;
+
+    public ChangesResponse(String logId, long sequence, boolean empty, Maybe<ContentSummary> contentSummary,
+                           Peer peer) {
+        super("CHANGES:" + logId + ":" + sequence, peer);
+
+        this.logId = logId;
+        this.sequence = sequence;
+        this.empty = empty;
+        this.contentSummary = contentSummary;
+        document.append("command", MessageType.CHANGES_RESPONSE);
+        document.append("logId", logId);
+        document.append("sequence", sequence);
+    }
+
+    @Override
+    void onSent() {
+        peer.setContentSummary(contentSummary);
+
+        // Read the head before the changes, so that any change made in between is sent again rather than skipped
+        long head = PeerServer.fsManager().changeLogHead();
+        boolean bootstrap = empty && Configuration.getConfigurationValue("bootstrap")
+                                                  .map(Boolean::parseBoolean)
+                                                  .orElse(true);
+        Maybe<Iterator<FileSystemEvent>> changes = bootstrap ? Maybe.nothing()
+                                                             : PeerServer.fsManager().changesSince(logId, sequence);
+
+        document.append("headLogId", PeerServer.fsManager().changeLogId());
+        document.append("head", head);
+        document.append("resync", !changes.isJust());
+        document.append("message", changes.isJust() ? "sending changes"
+                                   : bootstrap ? "sending archive" : "sending full synchronisation");
+        document.append("status", true);
+
+        if (bootstrap) {
+            PeerServer.bootstrap(peer, PeerServer.fsManager().changeLogId(), head);
+        } else {
+            changes.match(events -> peer.sendLazily(PeerServer.changeMessages(events)),
+                          () -> PeerServer.resynchronise(peer, PeerServer.fsManager().changeLogId(), head));
+        }
+    }
+}
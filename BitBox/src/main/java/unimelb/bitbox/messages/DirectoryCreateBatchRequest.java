@@ -0,0 +1,24 @@
+package unimelb.bitbox.messages;
+
+import java.util.List;
+
+/**
+ * DIRECTORY_CREATE_BATCH_REQUEST message. Creates several directories in one message, in the order given, so that a
+ * directory may be followed by its own subdirectories.
+ *
+ * @author Eleanor McMurtry
+ */
+public class DirectoryCreateBatchRequest extends Message {
+    public DirectoryCreateBatchRequest(List<String> pathNames) {
+        super(summary("DIRECTORY_CREATE_BATCH:", pathNames));
+        document.append("command", MessageType.DIRECTORY_CREATE_BATCH_REQUEST);
+        document.append("pathNames", pathNames);
+    }
+
+    /**
+     * A summary that a batch request and its response agree on, without listing every path name.
+     */
+    static String summary(String prefix, List<String> pathNames) {
+        return prefix + pathNames.get(0) + "+" + (pathNames.size() - 1) + ":" + Integer.toHexString(pathNames.hashCode());
+    }
+}
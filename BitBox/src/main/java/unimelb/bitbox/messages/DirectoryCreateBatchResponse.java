@@ -0,0 +1,49 @@
+package unimelb.bitbox.messages;
+
+import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.server.PeerServer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DIRECTORY_CREATE_BATCH_RESPONSE message. Makes all of the directories that can be made, and reports the others in
+ * <code>failed</code>. Directories that already exist count as made, since a batch is often a resend.
+ *
+ * @author Eleanor McMurtry
+ */
+public class DirectoryCreateBatchResponse extends Response {
+    private final List<String> pathNames;
+
+    public DirectoryCreateBatchResponse(List<String> pathNames, Peer peer) {
+        super(DirectoryCreateBatchRequest.summary("DIRECTORY_CREATE_BATCH:", pathNames), peer);
+
+        this.pathNames = pathNames;
+        document.append("command", MessageType.DIRECTORY_CREATE_BATCH_RESPONSE);
+        document.append("pathNames", pathNames);
+    }
+
+    @Override
+    void onSent() {
+        Map<String, String> failures = new LinkedHashMap<>();
+        List<String> toMake = new ArrayList<>();
+        for (String pathName : pathNames) {
+            if (!PeerServer.fsManager().isSafePathName(pathName)) {
+                failures.put(pathName, "unsafe pathname given");
+            } else if (PeerServer.fsManager().isIgnored(pathName, true)) {
+                failures.put(pathName, "ignored pathname given");
+            } else if (!PeerServer.fsManager().dirNameExists(pathName)) {
+                toMake.add(pathName);
+            }
+        }
+        failures.putAll(PeerServer.fsManager().makeDirectories(toMake));
+
+        int made = toMake.size() - (int) toMake.stream().filter(failures::containsKey).count();
+        if (made > 0) {
+            PeerServer.log().info("Created " + made + " directories");
+        }
+        appendBatchOutcome("directories created", pathNames.size(), failures);
+    }
+}
@@ -26,6 +26,8 @@ public class DirectoryDeleteResponse extends Response {
         String reply = SUCCESS;
         if (!PeerServer.fsManager().isSafePathName(pathName)) {
             reply = "unsafe pathname given";
+        } else if (PeerServer.fsManager().isIgnored(pathName, true)) {
+            reply = "ignored pathname given";
         } else if (!PeerServer.fsManager().dirNameExists(pathName)) {
             reply = "directory does not exist";
         } else {
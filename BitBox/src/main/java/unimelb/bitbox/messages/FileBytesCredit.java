@@ -0,0 +1,18 @@
+package unimelb.bitbox.messages;
+
+import unimelb.bitbox.util.fs.FileDescriptor;
+
+/**
+ * FILE_BYTES_CREDIT message. Lets a peer that is streaming a file to us send more blocks, once we have written the
+ * ones it already sent (see {@link FileBytesRequest#stream(FileDescriptor, long)}). It needs no response.
+ *
+ * @author Eleanor McMurtry
+ */
+public class FileBytesCredit extends Message {
+    public FileBytesCredit(FileDescriptor fileDescriptor, long credits) {
+        super("CREDIT:" + fileDescriptor);
+        document.append("command", MessageType.FILE_BYTES_CREDIT);
+        document.join(fileDescriptor.toJSON());
+        document.append("credits", credits);
+    }
+}
@@ -1,16 +1,38 @@
 package unimelb.bitbox.messages;
 
 import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.config.Configuration;
 import unimelb.bitbox.util.fs.FileDescriptor;
 
 /**
  * FILE_BYTES_REQUEST message.
+ * <br/>
+ * A request may instead ask for the rest of the file from the given position to be streamed: the peer then sends
+ * consecutive FILE_BYTES_RESPONSEs for it, each marked as streamed, without waiting to be asked for each block.
+ * It sends at most <code>streamCredits</code> blocks ahead of the ones we have written, and we let it send more with
+ * a {@link FileBytesCredit} for each block we write. Peers that don't stream (older ones, and all peers over UDP,
+ * where blocks may be lost) just send the first block, and the rest is requested a block at a time as usual.
  *
  * @author Eleanor McMurtry
  */
 public class FileBytesRequest extends Message {
-    public static FileBytesRequest retry(FileBytesResponse response) {
-        return new FileBytesRequest(response.fileDescriptor, response.position);
+    private static final long DEFAULT_STREAM_CREDITS = 4;
+
+    /**
+     * Requests the rest of a file from the given position, streamed if the file has more than one block left and
+     * streaming isn't turned off (<code>streamCredits = 0</code>).
+     */
+    public static FileBytesRequest stream(FileDescriptor fileDescriptor, long position) {
+        FileBytesRequest request = new FileBytesRequest(fileDescriptor, position);
+        long credits = Configuration.getConfigurationValue("streamCredits")
+                                    .map(Long::parseLong)
+                                    .orElse(DEFAULT_STREAM_CREDITS);
+        long remaining = fileDescriptor.fileSize() - position;
+        if (credits > 0 && remaining > PeerServer.maxBlockSize()) {
+            request.document.append("streamLength", remaining);
+            request.document.append("credits", credits);
+        }
+        return request;
     }
 
     public FileBytesRequest(FileDescriptor fileDescriptor, long position) {
@@ -2,6 +2,7 @@ package unimelb.bitbox.messages;
 
 import unimelb.bitbox.server.PeerServer;
 import unimelb.bitbox.util.fs.FileDescriptor;
+import unimelb.bitbox.util.fs.FileSystemManager;
 import unimelb.bitbox.util.network.FilePacket;
 
 import java.util.Base64;
@@ -21,6 +22,13 @@ public class FileBytesResponse extends Response {
     private final long length;
 
     public FileBytesResponse(FilePacket packet) {
+        this(packet, false);
+    }
+
+    /**
+     * @param streamed whether the block is part of a stream the peer asked for (see {@link FileBytesRequest})
+     */
+    public FileBytesResponse(FilePacket packet, boolean streamed) {
         super("BYTES:" + packet.fd() + ":" + packet.position, packet.peer());
         fileDescriptor = packet.fd();
         pathName = packet.pathName();
@@ -32,17 +40,29 @@ public class FileBytesResponse extends Response {
         document.join(fileDescriptor.toJSON());
         document.append("length", length);
         document.append("position", position);
+        if (streamed) {
+            document.append("stream", true);
+        }
+    }
+
+    /**
+     * @return whether the bytes were read and sent; only meaningful once the response has been sent
+     */
+    public boolean isSuccessful() {
+        return document.getBoolean("status").orElse(false);
     }
 
     @Override
     void onSent() {
         AtomicReference<String> content = new AtomicReference<>("");
+        AtomicReference<String> blockMd5 = new AtomicReference<>("");
         AtomicBoolean shouldRetry = new AtomicBoolean(true);
 
         String reply = PeerServer.fsManager().readFile(fileDescriptor.md5(), position, length)
                                  .matchThen(maybeBuffer -> maybeBuffer.matchThen(
                                               byteBuffer -> {
                                                   content.set(Base64.getEncoder().encodeToString(byteBuffer.array()));
+                                                  blockMd5.set(FileSystemManager.blockDigest(byteBuffer.array()));
                                                   return SUCCESS;
                                               },
                                               () -> {
@@ -65,6 +85,10 @@ public class FileBytesResponse extends Response {
         }
 
         document.append("content", content.get());
+        if (successful) {
+            // Lets the receiver check the block on its own, and so pass it on before it has the whole file
+            document.append("blockMd5", blockMd5.get());
+        }
         document.append("message", reply);
         document.append("status", successful);
         document.append("retry", shouldRetry.get());
@@ -1,5 +1,6 @@
 package unimelb.bitbox.messages;
 
+import functional.algebraic.Maybe;
 import unimelb.bitbox.util.fs.FileDescriptor;
 
 /**
@@ -9,8 +10,17 @@ import unimelb.bitbox.util.fs.FileDescriptor;
  */
 public class FileCreateRequest extends Message {
     public FileCreateRequest(FileDescriptor fileDescriptor) {
+        this(fileDescriptor, Maybe.nothing());
+    }
+
+    /**
+     * @param content the content of a small file to send with the request (see {@link InlineContent}); there is no
+     *                point if the receiver already has it
+     */
+    public FileCreateRequest(FileDescriptor fileDescriptor, Maybe<byte[]> content) {
         super("FILE_CREATE:" + fileDescriptor);
         document.append("command", MessageType.FILE_CREATE_REQUEST);
         document.join(fileDescriptor.toJSON());
+        InlineContent.append(document, content);
     }
 }
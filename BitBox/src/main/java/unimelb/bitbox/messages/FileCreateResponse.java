@@ -1,10 +1,12 @@
 package unimelb.bitbox.messages;
 
+import functional.algebraic.Maybe;
 import unimelb.bitbox.peers.Peer;
 import unimelb.bitbox.server.PeerServer;
 import unimelb.bitbox.util.fs.FileDescriptor;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * FILE_CREATE_RESPONSE message.
@@ -15,10 +17,15 @@ import java.io.IOException;
 public class FileCreateResponse extends Response {
     private static final String SUCCESS = "file loader ready";
     private final FileDescriptor fd;
+    private final Maybe<ByteBuffer> content;
 
-    public FileCreateResponse(FileDescriptor fileDescriptor, Peer peer) {
+    /**
+     * @param content the content of the file, if the peer sent it with the request
+     */
+    public FileCreateResponse(FileDescriptor fileDescriptor, Maybe<ByteBuffer> content, Peer peer) {
         super("FILE_CREATE:" + fileDescriptor, peer);
         fd = fileDescriptor;
+        this.content = content;
 
         document.append("command", MessageType.FILE_CREATE_RESPONSE);
         document.join(fileDescriptor.toJSON());
@@ -47,7 +54,9 @@ public class FileCreateResponse extends Response {
     @Override
     void onSent() {
         String reply;
-        if (PeerServer.fsManager().fileMatches(fd)) {
+        if (PeerServer.fsManager().isIgnored(fd.pathName, false)) {
+            reply = "ignored pathname given: " + fd.pathName;
+        } else if (PeerServer.fsManager().fileMatches(fd)) {
             reply = "file already exists locally";
         } else if (!PeerServer.fsManager().isSafePathName(fd.pathName)) {
             reply = "unsafe pathname given: " + fd.pathName;
@@ -60,15 +69,7 @@ public class FileCreateResponse extends Response {
         document.append("status", successful);
 
         if (successful) {
-            // Check if this file is already elsewhere on disk
-            PeerServer.fsManager().checkShortcut(fd)
-                      .match(res -> {
-                          if (!res) {
-                              PeerServer.log().fine(peer.getForeignName() + ": file " + fd.pathName +
-                                      " not available locally. Send a FILE_BYTES_REQUEST");
-                              PeerServer.rwManager().addFile(peer, fd);
-                          }
-                      }, err -> PeerServer.log().severe(peer.getForeignName() + ": error checking shortcut for " + fd.pathName));
+            PeerServer.rwManager().addFile(peer, fd, content);
         }
     }
 }
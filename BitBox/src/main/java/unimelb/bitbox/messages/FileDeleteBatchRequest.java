@@ -0,0 +1,25 @@
+package unimelb.bitbox.messages;
+
+import unimelb.bitbox.util.fs.FileDescriptor;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * FILE_DELETE_BATCH_REQUEST message. Deletes several files in one message.
+ *
+ * @author Eleanor McMurtry
+ */
+public class FileDeleteBatchRequest extends Message {
+    public FileDeleteBatchRequest(List<FileDescriptor> fileDescriptors) {
+        super(summary(fileDescriptors));
+        document.append("command", MessageType.FILE_DELETE_BATCH_REQUEST);
+        document.append("files", fileDescriptors);
+    }
+
+    static String summary(List<FileDescriptor> fileDescriptors) {
+        return DirectoryCreateBatchRequest.summary("FILE_DELETE_BATCH:", fileDescriptors.stream()
+                                                                                  .map(fd -> fd.pathName)
+                                                                                  .collect(Collectors.toList()));
+    }
+}
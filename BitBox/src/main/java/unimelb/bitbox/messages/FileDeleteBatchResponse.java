@@ -0,0 +1,57 @@
+package unimelb.bitbox.messages;
+
+import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.fs.FileDescriptor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FILE_DELETE_BATCH_RESPONSE message. Deletes all of the files that can be deleted, each under the same conditions
+ * as a FILE_DELETE_REQUEST, and reports the others in <code>failed</code>.
+ *
+ * @author Eleanor McMurtry
+ */
+public class FileDeleteBatchResponse extends Response {
+    private final List<FileDescriptor> fileDescriptors;
+
+    public FileDeleteBatchResponse(List<FileDescriptor> fileDescriptors, Peer peer) {
+        super(FileDeleteBatchRequest.summary(fileDescriptors), peer);
+
+        this.fileDescriptors = fileDescriptors;
+        document.append("command", MessageType.FILE_DELETE_BATCH_RESPONSE);
+        document.append("files", fileDescriptors);
+    }
+
+    @Override
+    void onSent() {
+        Map<String, String> failures = new LinkedHashMap<>();
+        List<FileDescriptor> toDelete = new ArrayList<>();
+        for (FileDescriptor fd : fileDescriptors) {
+            // A file that was still loading is deleted by cancelling the loader
+            PeerServer.fsManager().cancelFileLoader(fd.pathName)
+                      .match(cancelled -> {
+                          if (cancelled) {
+                              return;
+                          }
+                          if (!PeerServer.fsManager().isSafePathName(fd.pathName)) {
+                              failures.put(fd.pathName, "unsafe pathname given");
+                          } else if (PeerServer.fsManager().isIgnored(fd.pathName, false)) {
+                              failures.put(fd.pathName, "ignored pathname given");
+                          } else {
+                              toDelete.add(fd);
+                          }
+                      }, err -> failures.put(fd.pathName, "there was a problem deleting the file: " + err.getMessage()));
+        }
+        failures.putAll(PeerServer.fsManager().deleteFiles(toDelete));
+
+        int deleted = fileDescriptors.size() - failures.size();
+        if (deleted > 0) {
+            PeerServer.log().info("Deleted " + deleted + " files");
+        }
+        appendBatchOutcome("files deleted", fileDescriptors.size(), failures);
+    }
+}
@@ -33,6 +33,9 @@ public class FileDeleteResponse extends Response {
                               if (!PeerServer.fsManager().isSafePathName(fd.pathName)) {
                                   return "unsafe pathname given";
                               }
+                              if (PeerServer.fsManager().isIgnored(fd.pathName, false)) {
+                                  return "ignored pathname given";
+                              }
                               if (!PeerServer.fsManager().fileExists(fd)) {
                                   return "file does not exist";
                               }
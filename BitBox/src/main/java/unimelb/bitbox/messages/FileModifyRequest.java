@@ -1,5 +1,6 @@
 package unimelb.bitbox.messages;
 
+import functional.algebraic.Maybe;
 import unimelb.bitbox.util.fs.FileDescriptor;
 
 /**
@@ -9,8 +10,16 @@ import unimelb.bitbox.util.fs.FileDescriptor;
  */
 public class FileModifyRequest extends Message {
     public FileModifyRequest(FileDescriptor fileDescriptor) {
+        this(fileDescriptor, Maybe.nothing());
+    }
+
+    /**
+     * @param content the content of a small file to send with the request (see {@link InlineContent})
+     */
+    public FileModifyRequest(FileDescriptor fileDescriptor, Maybe<byte[]> content) {
         super("MODIFY:" + fileDescriptor);
         document.append("command", MessageType.FILE_MODIFY_REQUEST);
         document.join(fileDescriptor.toJSON());
+        InlineContent.append(document, content);
     }
 }
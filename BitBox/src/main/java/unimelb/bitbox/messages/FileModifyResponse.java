@@ -1,10 +1,12 @@
 package unimelb.bitbox.messages;
 
+import functional.algebraic.Maybe;
 import unimelb.bitbox.peers.Peer;
 import unimelb.bitbox.server.PeerServer;
 import unimelb.bitbox.util.fs.FileDescriptor;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * FILE_MODIFY_RESPONSE message.
@@ -14,10 +16,15 @@ import java.io.IOException;
 public class FileModifyResponse extends Response {
     private static final String SUCCESS = "file loader ready";
     private final FileDescriptor fd;
+    private final Maybe<ByteBuffer> content;
 
-    public FileModifyResponse(FileDescriptor fileDescriptor, Peer peer) {
+    /**
+     * @param content the content of the file, if the peer sent it with the request
+     */
+    public FileModifyResponse(FileDescriptor fileDescriptor, Maybe<ByteBuffer> content, Peer peer) {
         super("MODIFY:" + fileDescriptor, peer);
         fd = fileDescriptor;
+        this.content = content;
 
         document.append("command", MessageType.FILE_MODIFY_RESPONSE);
         document.join(fileDescriptor.toJSON());
@@ -30,6 +37,8 @@ public class FileModifyResponse extends Response {
         try {
             if (!PeerServer.fsManager().isSafePathName(fd.pathName)) {
                 reply = "unsafe pathname given";
+            } else if (PeerServer.fsManager().isIgnored(fd.pathName, false)) {
+                reply = "ignored pathname given";
             } else if (PeerServer.fsManager().fileMatches(fd)) {
                 reply = "file already exists with matching content";
             } else if (!PeerServer.fsManager().fileExists(fd)) {
@@ -45,7 +54,7 @@ public class FileModifyResponse extends Response {
         document.append("message", reply);
         document.append("status", successful);
         if (successful) {
-            PeerServer.rwManager().addFile(peer, fd);
+            PeerServer.rwManager().addFile(peer, fd, content);
         }
     }
 }
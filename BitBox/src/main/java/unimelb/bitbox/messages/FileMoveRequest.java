@@ -0,0 +1,17 @@
+package unimelb.bitbox.messages;
+
+import unimelb.bitbox.util.fs.FileDescriptor;
+
+/**
+ * FILE_MOVE_REQUEST message.
+ *
+ * @author Eleanor McMurtry
+ */
+public class FileMoveRequest extends Message {
+    public FileMoveRequest(FileDescriptor fileDescriptor, String oldPathName) {
+        super("FILE_MOVE:" + oldPathName + ":" + fileDescriptor);
+        document.append("command", MessageType.FILE_MOVE_REQUEST);
+        document.join(fileDescriptor.toJSON());
+        document.append("oldPathName", oldPathName);
+    }
+}
@@ -0,0 +1,55 @@
+package unimelb.bitbox.messages;
+
+import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.fs.FileDescriptor;
+import unimelb.bitbox.util.fs.FileManagerException;
+
+/**
+ * FILE_MOVE_RESPONSE message.
+ *
+ * @author Eleanor McMurtry
+ */
+public class FileMoveResponse extends Response {
+    private static final String SUCCESS = "file moved";
+    private final FileDescriptor fd;
+    private final String oldPathName;
+
+    public FileMoveResponse(FileDescriptor fileDescriptor, String oldPathName, Peer peer) {
+        super("FILE_MOVE:" + oldPathName + ":" + fileDescriptor, peer);
+        fd = fileDescriptor;
+        this.oldPathName = oldPathName;
+
+        document.append("command", MessageType.FILE_MOVE_RESPONSE);
+        document.join(fileDescriptor.toJSON());
+        document.append("oldPathName", oldPathName);
+    }
+
+    @Override
+    void onSent() {
+        String reply = SUCCESS;
+        if (!PeerServer.fsManager().isSafePathName(fd.pathName)
+                || !PeerServer.fsManager().isSafePathName(oldPathName)) {
+            reply = "unsafe pathname given";
+        } else if (PeerServer.fsManager().isIgnored(fd.pathName, false)
+                || PeerServer.fsManager().isIgnored(oldPathName, false)) {
+            reply = "ignored pathname given";
+        } else if (PeerServer.fsManager().fileMatches(fd)) {
+            reply = "file already exists locally";
+        } else {
+            try {
+                PeerServer.fsManager().moveFile(oldPathName, fd);
+            } catch (FileManagerException e) {
+                reply = "there was a problem moving the file: " + e.getMessage();
+            }
+        }
+
+        boolean successful = reply.equals(SUCCESS);
+        if (successful) {
+            PeerServer.log().info("Moved file " + oldPathName + " to " + fd.pathName);
+        }
+
+        document.append("message", reply);
+        document.append("status", successful);
+    }
+}
@@ -0,0 +1,28 @@
+package unimelb.bitbox.messages;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.util.network.JSONDocument;
+
+import java.util.Base64;
+
+/**
+ * Sends the content of small files along with FILE_CREATE_REQUEST and FILE_MODIFY_REQUEST, so that the receiver can
+ * write them straight away instead of asking for the bytes in another round trip.
+ * <br/>
+ * The content is read when the change is detected (see
+ * {@link unimelb.bitbox.util.fs.FileSystemManager#inlineContent(unimelb.bitbox.util.fs.FileDescriptor)}), so that
+ * building a request never touches the disk. A receiver that doesn't understand the content ignores it and asks for
+ * the bytes as usual.
+ *
+ * @author Eleanor McMurtry
+ */
+final class InlineContent {
+    /**
+     * Adds the content of the file to the request, if there is any.
+     */
+    static void append(JSONDocument document, Maybe<byte[]> content) {
+        content.consume(bytes -> document.append("content", Base64.getEncoder().encodeToString(bytes)));
+    }
+
+    private InlineContent() {}
+}
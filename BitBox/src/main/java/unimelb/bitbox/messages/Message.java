@@ -26,6 +26,24 @@ public abstract class Message implements IJSONData {
         document.appendIfMissing("friendlyName", name);
     }
 
+    /**
+     * Marks the message with its position in our change log, so that the receiver can acknowledge it.
+     */
+    public Message setSequence(String logId, long sequence) {
+        document.append("logId", logId);
+        document.append("sequence", sequence);
+        return this;
+    }
+
+    /**
+     * Tells the receiver how many changes just before this one were deliberately not sent to it, so that it can
+     * still acknowledge this one.
+     */
+    public Message setSkipped(long skipped) {
+        document.append("skipped", skipped);
+        return this;
+    }
+
     public Result<MessageType, JSONException> getCommand() {
         return document.getString("command")
                        .andThen(MessageType::fromString);
@@ -17,16 +17,30 @@ public enum MessageType {
     FILE_CREATE_RESPONSE,
     FILE_MODIFY_REQUEST,
     FILE_MODIFY_RESPONSE,
+    FILE_MOVE_REQUEST,
+    FILE_MOVE_RESPONSE,
     FILE_BYTES_REQUEST,
     FILE_BYTES_RESPONSE,
+    FILE_BYTES_CREDIT,
     FILE_DELETE_REQUEST,
     FILE_DELETE_RESPONSE,
     DIRECTORY_CREATE_REQUEST,
     DIRECTORY_CREATE_RESPONSE,
     DIRECTORY_DELETE_REQUEST,
     DIRECTORY_DELETE_RESPONSE,
+    DIRECTORY_CREATE_BATCH_REQUEST,
+    DIRECTORY_CREATE_BATCH_RESPONSE,
+    FILE_DELETE_BATCH_REQUEST,
+    FILE_DELETE_BATCH_RESPONSE,
     AUTHENTICATE_REQUEST,
-    AUTHENTICATE_RESPONSE;
+    AUTHENTICATE_RESPONSE,
+    SYNC_REQUEST,
+    SYNC_RESPONSE,
+    CHANGES_REQUEST,
+    CHANGES_RESPONSE,
+    BOOTSTRAP_REQUEST,
+    BOOTSTRAP_RESPONSE,
+    RESYNC_COMPLETE;
 
     /**
      * Convert a String to a MessageType.
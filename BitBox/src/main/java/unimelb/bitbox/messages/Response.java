@@ -1,6 +1,11 @@
 package unimelb.bitbox.messages;
 
 import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.util.network.JSONDocument;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Base class for all responses.
@@ -21,6 +26,25 @@ public abstract class Response extends Message {
      */
     abstract void onSent();
 
+    /**
+     * Adds the outcome of a batch request to the response: a status and message for the whole batch, and a
+     * <code>failed</code> list giving the reason for each path name that failed.
+     */
+    final void appendBatchOutcome(String success, int size, Map<String, String> failures) {
+        List<JSONDocument> failed = new ArrayList<>();
+        failures.forEach((pathName, reason) -> failed.add(new JSONDocument().append("pathName", pathName)
+                                                                            .append("message", reason)));
+        String reply = (size - failures.size()) + " of " + size + " " + success;
+        if (!failures.isEmpty()) {
+            Map.Entry<String, String> example = failures.entrySet().iterator().next();
+            reply += "; " + example.getKey() + ": " + example.getValue();
+        }
+
+        document.append("failed", failed);
+        document.append("message", reply);
+        document.append("status", failures.isEmpty());
+    }
+
     @Override
     public final String networkEncode() {
         onSent();
@@ -0,0 +1,17 @@
+package unimelb.bitbox.messages;
+
+/**
+ * RESYNC_COMPLETE message. Sent after the last message of a full synchronisation or archive (see
+ * {@link ChangesResponse}), once the peer has been sent everything in our share directory as of the given point in
+ * our change log. Only then may the peer continue from that point. It needs no response.
+ *
+ * @author Eleanor McMurtry
+ */
+public class ResyncComplete extends Message {
+    public ResyncComplete(String logId, long head) {
+        super("RESYNCED:" + logId + ":" + head);
+        document.append("command", MessageType.RESYNC_COMPLETE);
+        document.append("logId", logId);
+        document.append("head", head);
+    }
+}
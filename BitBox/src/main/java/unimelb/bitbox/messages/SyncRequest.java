@@ -0,0 +1,16 @@
+package unimelb.bitbox.messages;
+
+/**
+ * SYNC_REQUEST message. Carries the sender's Merkle hash of a directory, so that the receiver can tell whether
+ * anything below it differs.
+ *
+ * @author Eleanor McMurtry
+ */
+public class SyncRequest extends Message {
+    public SyncRequest(String pathName, String hash) {
+        super("SYNC:" + pathName);
+        document.append("command", MessageType.SYNC_REQUEST);
+        document.append("pathName", pathName);
+        document.append("hash", hash);
+    }
+}
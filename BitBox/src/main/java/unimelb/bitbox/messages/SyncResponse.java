@@ -0,0 +1,51 @@
+package unimelb.bitbox.messages;
+
+import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.fs.MerkleEntry;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SYNC_RESPONSE message. If the local hash of the directory differs from the one in the request, lists the local
+ * children of the directory with their hashes, so that the requester can work out what to send.
+ *
+ * @author Eleanor McMurtry
+ */
+public class SyncResponse extends Response {
+    private static final String SUCCESS = "directory compared";
+    private final String pathName;
+    private final String hash;
+
+    public SyncResponse(String pathName, String hash, Peer peer) {
+        super("SYNC:" + pathName, peer);
+
+        this.pathName = pathName;
+        this.hash = hash;
+        document.append("command", MessageType.SYNC_RESPONSE);
+        document.append("pathName", pathName);
+    }
+
+    @Override
+    void onSent() {
+        String reply = SUCCESS;
+        boolean inSync = false;
+        List<MerkleEntry> children = Collections.emptyList();
+        if (!pathName.isEmpty() && !PeerServer.fsManager().isSafePathName(pathName)) {
+            reply = "unsafe pathname given";
+        } else {
+            inSync = PeerServer.fsManager().syncHash(pathName)
+                               .map(hash::equals)
+                               .orElse(false);
+            if (!inSync) {
+                children = PeerServer.fsManager().syncChildren(pathName);
+            }
+        }
+
+        document.append("inSync", inSync);
+        document.append("children", children);
+        document.append("message", reply);
+        document.append("status", reply.equals(SUCCESS));
+    }
+}
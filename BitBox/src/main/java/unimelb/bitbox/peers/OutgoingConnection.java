@@ -2,19 +2,36 @@ package unimelb.bitbox.peers;
 
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Represents an outgoing connection to a peer.
+ * <br/>
+ * Bulk messages (e.g. synchronisation) are not queued up front. Instead, whenever the queue runs dry, the connection
+ * asks for the next one via the refill action, so that live messages are never stuck behind a long synchronisation.
  *
  * @author Eleanor McMurtry
  */
 abstract class OutgoingConnection implements Runnable {
+    private static final long REFILL_INTERVAL = 100;
+
     private final BlockingQueue<OutgoingMessage> messages = new LinkedBlockingQueue<>();
+    private Runnable refill = () -> {};
+
+    final void setRefill(Runnable refill) {
+        this.refill = refill;
+    }
 
     final void addMessage(OutgoingMessage message) {
         messages.add(message);
     }
     final OutgoingMessage takeMessage() throws InterruptedException {
-        return messages.take();
+        OutgoingMessage message = messages.poll();
+        while (message == null) {
+            refill.run();
+            // If refilling didn't add anything, wait a while before trying again
+            message = messages.poll(REFILL_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        return message;
     }
 }
\ No newline at end of file
@@ -0,0 +1,18 @@
+package unimelb.bitbox.peers;
+
+/**
+ * A class to pair a message with a function to run when the message is sent.
+ */
+class OutgoingMessage {
+    public final String message;
+    public final Runnable onSent;
+
+    OutgoingMessage(String message, Runnable onSent) {
+        this.message = message;
+        this.onSent = onSent;
+    }
+
+    String networkEncoded() {
+        return message.trim() + "\n";
+    }
+}
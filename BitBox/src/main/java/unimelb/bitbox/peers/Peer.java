@@ -1,19 +1,27 @@
 package unimelb.bitbox.peers;
 
+import functional.algebraic.Maybe;
 import unimelb.bitbox.messages.Message;
 import unimelb.bitbox.messages.MessageType;
 import unimelb.bitbox.messages.ReceivedMessage;
 import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.config.Configuration;
+import unimelb.bitbox.util.fs.ContentSummary;
 import unimelb.bitbox.util.network.HostPort;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -52,6 +60,11 @@ public abstract class Peer {
     private final List<Runnable> onClose = Collections.synchronizedList(new ArrayList<>());
     private final Lock activationLock = new ReentrantLock();
     private final Condition activated = activationLock.newCondition();
+    private final Queue<Iterator<? extends Message>> bulkMessages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger bulkOutstanding = new AtomicInteger();
+    private final AtomicLong withheldChanges = new AtomicLong();
+    private volatile Maybe<ContentSummary> contentSummary = Maybe.nothing();
+    private static final int DEFAULT_MAX_OUTSTANDING = 64;
 
     public boolean awaitActivation() throws InterruptedException {
         try {
@@ -74,7 +87,10 @@ public abstract class Peer {
     public void forceIncoming() {
         type = PeerType.INCOMING;
     }
-    void addCloseTask(Runnable task) {
+    /**
+     * Registers an action to perform when the peer is closed.
+     */
+    public void addCloseTask(Runnable task) {
         onClose.add(task);
     }
 
@@ -163,7 +179,9 @@ public abstract class Peer {
 
         state.set(type == PeerType.OUTGOING ? PeerState.WAIT_FOR_RESPONSE : PeerState.WAIT_FOR_REQUEST);
         this.outConn = outConn;
+        outConn.setRefill(this::sendNextBulkMessage);
         submit(outConn);
+        onClose.add(bulkMessages::clear);
     }
 
     /**
@@ -201,6 +219,65 @@ public abstract class Peer {
         sendMessage(message, () -> {});
     }
 
+    /**
+     * Records that changes from our change log were deliberately not sent to this peer (because it made them).
+     */
+    public final void withholdChanges(long count) {
+        withheldChanges.addAndGet(count);
+    }
+
+    /**
+     * @return the number of changes withheld from this peer since the last change that was sent to it
+     */
+    public final long takeWithheldChanges() {
+        return withheldChanges.getAndSet(0);
+    }
+
+    /**
+     * Records the summary of the contents the peer holds that it last sent us, if any.
+     */
+    public final void setContentSummary(Maybe<ContentSummary> contentSummary) {
+        this.contentSummary = contentSummary;
+    }
+
+    /**
+     * @return the summary of the contents the peer holds, as far as we know
+     */
+    public final Maybe<ContentSummary> getContentSummary() {
+        return contentSummary;
+    }
+
+    /**
+     * Send a stream of messages to this peer, e.g. for synchronisation. The messages are generated as the peer can
+     * take them: only when nothing else is waiting to be sent, and while fewer than <code>syncMaxOutstanding</code>
+     * of the requests are still waiting for a response. Streams are sent one after the other.
+     */
+    public final void sendLazily(Iterator<? extends Message> messages) {
+        bulkMessages.add(messages);
+    }
+
+    private void sendNextBulkMessage() {
+        int maxOutstanding = Configuration.getConfigurationValue("syncMaxOutstanding")
+                                          .map(Integer::parseInt)
+                                          .orElse(DEFAULT_MAX_OUTSTANDING);
+        if (bulkOutstanding.get() >= maxOutstanding) {
+            return;
+        }
+
+        Iterator<? extends Message> stream;
+        while ((stream = bulkMessages.peek()) != null) {
+            if (stream.hasNext()) {
+                Message message = stream.next();
+                if (message.isRequest()) {
+                    bulkOutstanding.incrementAndGet();
+                }
+                sendMessage(message);
+                return;
+            }
+            bulkMessages.poll();
+        }
+    }
+
     /**
      * Send a message to this peer, then close the peer.
      */
@@ -242,6 +319,8 @@ public abstract class Peer {
             if (message.getCommand().orElse(null) != MessageType.HANDSHAKE_RESPONSE) {
                 activateInternal();
             }
+            // Any response makes room for another bulk request; we don't need to match them up exactly
+            bulkOutstanding.updateAndGet(count -> Math.max(0, count - 1));
             responseReceived(message);
         }
     }
@@ -267,21 +346,3 @@ public abstract class Peer {
         return name + " @ " + address;
     }
 }
-
-
-/**
- * A class to pair a message with a function to run when the message is sent.
- */
-class OutgoingMessage {
-    public final String message;
-    public final Runnable onSent;
-
-    OutgoingMessage(String message, Runnable onSent) {
-        this.message = message;
-        this.onSent = onSent;
-    }
-
-    String networkEncoded() {
-        return message.trim() + "\n";
-    }
-}
\ No newline at end of file
@@ -18,8 +18,8 @@ public class PeerTCP extends Peer {
 
     public PeerTCP(String name, Socket socket, PeerType type) {
         super(name, type, socket.getInetAddress().getHostAddress(), socket.getPort(), new OutgoingConnectionTCP(socket));
-        submit(this::receiveMessages);
         this.socket = socket;
+        submit(this::receiveMessages);
     }
 
     @Override
@@ -1,5 +1,8 @@
 package unimelb.bitbox.peers;
 
+import functional.algebraic.Maybe;
+import unimelb.bitbox.messages.FileBytesCredit;
+import unimelb.bitbox.messages.FileBytesResponse;
 import unimelb.bitbox.server.PeerServer;
 import unimelb.bitbox.util.fs.FileDescriptor;
 import unimelb.bitbox.util.network.Conversion;
@@ -8,8 +11,13 @@ import unimelb.bitbox.util.network.FileTransfer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
@@ -27,6 +35,13 @@ import java.util.stream.Stream;
 public class ReadWriteManager {
     private final ExecutorService executor = Executors.newCachedThreadPool();
     private final Set<FileTransfer> downloads = ConcurrentHashMap.newKeySet();
+    // Only one download of any given content runs at once (the primary); other files with the same content wait for
+    // it to finish, then are copied from it locally. Both maps are keyed by MD5 and guarded by `primaries`.
+    private final Map<String, FileTransfer> primaries = new HashMap<>();
+    private final Map<String, List<FileTransfer>> followers = new HashMap<>();
+    private final TransferWatchdog watchdog = new TransferWatchdog();
+    // The files we are streaming to each peer (see FileBytesRequest)
+    private final Map<Peer, Map<FileDescriptor, OutgoingStream>> streams = new ConcurrentHashMap<>();
 
     /**
      * Initiate a transfer.
@@ -34,6 +49,7 @@ public class ReadWriteManager {
      */
     private void addFile(FileTransfer ft) {
         // Check for existing transfers of the same file
+        List<FileTransfer> replaced = new ArrayList<>();
         for (Iterator<FileTransfer> it = downloads.iterator(); it.hasNext();) {
             FileTransfer existing = it.next();
             if (existing.pathName().equals(ft.pathName())) {
@@ -41,19 +57,115 @@ public class ReadWriteManager {
                 if (existing.fileDescriptor.lastModified() < ft.fileDescriptor.lastModified()) {
                     PeerServer.fsManager().cancelFileLoader(existing);
                     it.remove();
+                    replaced.add(existing);
                 } else {
                     PeerServer.log().fine(ft.peer.getForeignName() + ": received create/modify request, but was already transferring same or newer file");
                     return;
                 }
             }
         }
+        replaced.forEach(this::promoteFollowers);
+
+        String md5 = ft.fileDescriptor.md5();
+        synchronized (primaries) {
+            FileTransfer primary = primaries.get(md5);
+            if (primary != null && !primary.equals(ft)) {
+                followers.computeIfAbsent(md5, key -> new ArrayList<>()).add(ft);
+                PeerServer.log().fine(ft.peer.getForeignName() + ": waiting for download of " + primary.pathName() +
+                                      " to create " + ft.pathName());
+                return;
+            }
+            primaries.put(md5, ft);
+        }
 
         downloads.add(ft);
+        watchdog.requested(ft, ft.peer, 0);
         ft.sendInitialBytesRequest();
+        PeerServer.relayDownload(ft);
+    }
+
+    /**
+     * Stops tracking a download as the primary for its content.
+     * @return the transfers that were waiting for it
+     */
+    private List<FileTransfer> finished(FileTransfer ft) {
+        String md5 = ft.fileDescriptor.md5();
+        synchronized (primaries) {
+            if (!ft.equals(primaries.get(md5))) {
+                return Collections.emptyList();
+            }
+            primaries.remove(md5);
+            return Maybe.of(followers.remove(md5)).orElse(Collections.emptyList());
+        }
+    }
+
+    /**
+     * Creates the files that were waiting for a download from the now completed file.
+     */
+    private void completeFollowers(FileTransfer primary) {
+        for (FileTransfer follower : finished(primary)) {
+            executor.execute(() -> PeerServer.fsManager().checkShortcut(follower, primary.fileDescriptor)
+                    .match(res -> {
+                        if (res) {
+                            PeerServer.log().fine(follower.peer.getForeignName() + ": created " + follower.pathName() +
+                                                  " from download of " + primary.pathName());
+                        } else {
+                            // The completed file has already changed, so download this one after all
+                            addFile(follower);
+                        }
+                    }, err -> PeerServer.log().fine(follower.peer.getForeignName() + ": transfer of " +
+                                                    follower.pathName() + " was cancelled while waiting")));
+        }
+    }
+
+    /**
+     * Restarts the files that were waiting for a cancelled download; the first of them becomes the new primary.
+     */
+    private void promoteFollowers(FileTransfer cancelled) {
+        finished(cancelled).forEach(this::addFile);
     }
 
+    /**
+     * Fills a newly opened file loader, from a local file with the same content if there is one, and otherwise by
+     * downloading it from the peer. Copying a local file can take a while, so it is done on a worker thread rather
+     * than holding up the connection.
+     */
     public void addFile(Peer peer, FileDescriptor fd) {
-        addFile(new FileTransfer(peer, fd));
+        FileTransfer ft = new FileTransfer(peer, fd);
+        executor.execute(() -> PeerServer.fsManager().checkShortcut(ft)
+                  .match(res -> {
+                      if (!res) {
+                          PeerServer.log().fine(peer.getForeignName() + ": file " + fd.pathName +
+                                  " not available locally. Send a FILE_BYTES_REQUEST");
+                          addFile(ft);
+                      }
+                  }, err -> PeerServer.log().severe(peer.getForeignName() + ": error checking shortcut for " + fd.pathName)));
+    }
+
+    /**
+     * Fills a newly opened file loader with the content the peer sent along with its request, without a transfer.
+     * If it didn't send any, or the content doesn't match, the file is filled as in {@link #addFile(Peer, FileDescriptor)}.
+     */
+    public void addFile(Peer peer, FileDescriptor fd, Maybe<ByteBuffer> content) {
+        if (!content.isJust()) {
+            addFile(peer, fd);
+            return;
+        }
+        FileTransfer ft = new FileTransfer(peer, fd);
+        PeerServer.fsManager().completeFileLoader(ft, content.get())
+                  .match(res -> {
+                      if (res) {
+                          PeerServer.log().fine(peer.getForeignName() + ": wrote " + fd.pathName + " from inline content");
+                      } else if (PeerServer.fsManager().fileLoading(fd)) {
+                          PeerServer.log().fine(peer.getForeignName() + ": inline content of " + fd.pathName +
+                                                " did not match; downloading it instead");
+                          addFile(peer, fd);
+                      } else {
+                          // Writing failed and the loader was closed, so the change needs to be sent again
+                          PeerServer.forgetChanges(peer);
+                      }
+                  }, err -> PeerServer.log().warning(peer.getForeignName() + ": error writing inline content of " +
+                                                     fd.pathName + ": " + err.getMessage()));
     }
 
 
@@ -63,12 +175,68 @@ public class ReadWriteManager {
     public void readFile(FilePacket packet) {
         executor.execute(packet::sendBytesResponse);
     }
+
+    /**
+     * Streams the file from the packet's position to the peer, if it asked for more than one block and the
+     * connection is reliable enough to stream over; otherwise, just sends the first block.
+     * @param streamLength the number of bytes the peer asked to have streamed
+     * @param credits      the number of blocks we may send before the peer has written any
+     */
+    public void readFile(FilePacket packet, long streamLength, long credits) {
+        Peer peer = packet.peer();
+        if (streamLength <= packet.length || credits <= 0 || !(peer instanceof PeerTCP)) {
+            readFile(packet);
+            return;
+        }
+
+        long end = Math.min(packet.position + streamLength, packet.fd().fileSize());
+        OutgoingStream stream = new OutgoingStream(peer, packet.fd(), packet.position, end, credits);
+        Map<FileDescriptor, OutgoingStream> peerStreams = streams.computeIfAbsent(peer, key -> {
+            key.addCloseTask(() -> streams.remove(key));
+            return new ConcurrentHashMap<>();
+        });
+        // A new request for the same file replaces the stream, e.g. because the peer had to request it again
+        Maybe.of(peerStreams.put(packet.fd(), stream)).consume(OutgoingStream::close);
+        PeerServer.log().fine(peer.getForeignName() + ": streaming " + packet.pathName() + " from " +
+                              packet.position + " to " + end);
+        stream.send();
+    }
+
+    /**
+     * Lets a stream we are sending to the peer send more blocks.
+     */
+    public void addCredits(Peer peer, FileDescriptor fd, long credits) {
+        Maybe.of(streams.get(peer))
+             .andThen(peerStreams -> Maybe.of(peerStreams.get(fd)))
+             .consume(stream -> stream.addCredits(credits));
+    }
+
+    /**
+     * Handles a peer's failure to send the bytes we asked for. They are requested again later if the peer might yet
+     * be able to, or from another peer that has the content if not; otherwise, the download is cancelled.
+     * @param retry    whether the peer said the request is worth retrying
+     * @param streamed whether the bytes were part of a stream, which the failure ended
+     */
+    public void readFailed(FilePacket packet, boolean retry, boolean streamed) {
+        if (retry) {
+            PeerServer.log().fine(packet.peer().getForeignName() + ": retrying byte request for " + packet.pathName());
+            watchdog.failed(packet, streamed);
+        } else if (!watchdog.unavailable(packet)) {
+            // If the request failed for a permanent reason, just give up for now
+            cancelFile(packet.fd());
+        }
+    }
+
     /**
      * Write the provided chunk to the provided file, and send another FILE_BYTES_REQUEST if necessary
      * @param content   the actual bytes to write, encoded in base 64
+     * @param blockMd5  the digest of the bytes, if the peer sent one
+     * @param streamed  whether the peer is streaming the file, so that it only needs to be given credit for more
      */
-    public void writeFile(FilePacket packet, String content) {
-        executor.execute(new WriteWorker(packet, content));
+    public void writeFile(FilePacket packet, String content, Maybe<String> blockMd5, boolean streamed) {
+        // Blocks are accounted for in the order they arrive, although they may be written in any order
+        boolean current = watchdog.received(packet, streamed);
+        executor.execute(new WriteWorker(packet, content, blockMd5, streamed, current));
     }
 
     public void reportDownloads() {
@@ -78,10 +246,6 @@ public class ReadWriteManager {
         StringBuilder inProgress = new StringBuilder();
         downloads.forEach(ft -> {
             float completion = ft.getCompletion();
-            if (completion == 0) {
-                ft.sendInitialBytesRequest();
-            }
-
             totalDone.updateAndGet(v -> v + (long) (completion / 100 * ft.fileDescriptor.fileSize()));
             totalWaiting.updateAndGet(v -> v + ft.fileDescriptor.fileSize());
 
@@ -103,11 +267,21 @@ public class ReadWriteManager {
 
     private class WriteWorker implements Runnable {
         private final String content;
+        private final Maybe<String> blockMd5;
         private final FilePacket packet;
+        private final boolean streamed;
+        private final boolean current;
 
-        WriteWorker(FilePacket packet, String content) {
+        /**
+         * @param current whether this is the block we were waiting for, rather than a late answer to an earlier
+         *                request for it; only then is the next block asked for
+         */
+        WriteWorker(FilePacket packet, String content, Maybe<String> blockMd5, boolean streamed, boolean current) {
             this.content = content;
+            this.blockMd5 = blockMd5;
             this.packet = packet;
+            this.streamed = streamed;
+            this.current = current;
             updateFile(packet);
 
             // When the peer that responded closes, we need to cancel any transfers they were performing
@@ -116,10 +290,33 @@ public class ReadWriteManager {
 
         @Override
         public void run() {
+            Maybe<FileTransfer> download = Maybe.of(downloads.stream()
+                                                             .filter(packet.transfer::equals)
+                                                             .findFirst()
+                                                             .orElse(null));
+            if (!download.isJust()) {
+                // e.g. the download was cancelled, or another block completed it
+                return;
+            }
+            // A streamed file has several blocks in flight, which must not complete the file at the same time
+            synchronized (download.get()) {
+                if (downloads.contains(packet.transfer)) {
+                    write();
+                }
+            }
+        }
+
+        private void write() {
             // Write bytes
             try {
                 ByteBuffer decoded = ByteBuffer.wrap(Base64.getDecoder().decode(content));
-                packet.writeData(decoded);
+                if (!packet.writeData(decoded, blockMd5)) {
+                    PeerServer.log().warning(packet.peer().getForeignName() + ": bytes of " + packet.pathName() +
+                            " at position: [" + packet.position + "/" + packet.fd().fileSize() +
+                            "] did not match their digest");
+                    watchdog.failed(packet, streamed);
+                    return;
+                }
                 PeerServer.log().fine(packet.peer().getForeignName() + ": wrote bytes to " + packet.pathName() +
                         " at position: [" + packet.position + "/" + packet.fd().fileSize() + "]");
             }
@@ -132,16 +329,22 @@ public class ReadWriteManager {
 
 
             // Check if more bytes are needed
-            PeerServer.fsManager().checkWriteComplete(packet.fd())
+            PeerServer.fsManager().checkWriteComplete(packet.transfer)
                       .ifOk(res -> {
                           // If the write isn't finished, send another request
                           if (res) {
                               downloads.remove(packet.transfer);
+                              watchdog.remove(packet.transfer);
+                              completeFollowers(packet.transfer);
                               if (downloads.isEmpty()) {
                                   PeerServer.log().info("All downloads complete!");
                               }
                               PeerServer.log().fine(packet.peer().getForeignName() + ": received all bytes for " + packet.pathName() + ": file transfer successful");
-                          } else {
+                          } else if (current && streamed) {
+                              packet.peer().sendMessage(new FileBytesCredit(packet.fd(), 1));
+                          } else if (current) {
+                              // Ask whichever peer answered for the next block
+                              watchdog.requested(packet.transfer, packet.peer(), packet.nextPosition());
                               packet.sendBytesRequest();
                           }
                       })
@@ -168,15 +371,20 @@ public class ReadWriteManager {
     }
 
     private void cancelFile(FilePacket packet) {
-        cancelFile(packet.transfer);
+        // The packet may have come from a different peer than the one that sent us the file
+        cancelFile(downloads.stream().filter(packet.transfer::equals).findFirst().orElse(packet.transfer));
     }
 
     private void cancelFile(FileTransfer transfer) {
         PeerServer.fsManager().cancelFileLoader(transfer);
+        watchdog.remove(transfer);
+        // The change that started the download won't be sent again unless we resynchronise
+        PeerServer.forgetChanges(transfer.peer);
 
         if (!downloads.remove(transfer)) {
             PeerServer.log().warning("tried to remove " + transfer + " but was not found");
         } else {
+            promoteFollowers(transfer);
             PeerServer.log().info("Removed download of " + transfer.pathName() + ".");
             if (downloads.isEmpty()) {
                 PeerServer.log().info("All downloads complete!");
@@ -185,10 +393,21 @@ public class ReadWriteManager {
     }
 
     private void cancelPeerFiles(Peer peer) {
+        // Files waiting for other downloads can't be fetched from this peer any more either
+        List<FileTransfer> waiting = new ArrayList<>();
+        synchronized (primaries) {
+            followers.values().forEach(list -> list.removeIf(ft -> ft.peer == peer && waiting.add(ft)));
+            followers.values().removeIf(List::isEmpty);
+        }
+        waiting.forEach(PeerServer.fsManager()::cancelFileLoader);
+
         Stream<FileTransfer> toRemove = downloads.stream().filter(ft -> ft.peer == peer);
         // Clear any file transfers associated with this peer
         toRemove.forEach(ft -> {
             downloads.remove(ft);
+            watchdog.remove(ft);
+            promoteFollowers(ft);
+            PeerServer.forgetChanges(ft.peer);
             PeerServer.fsManager().cancelFileLoader(ft)
                     .ifOk(res -> {
                         if (res) {
@@ -198,4 +417,78 @@ public class ReadWriteManager {
                     .ifErr(err -> PeerServer.log().warning(ft.peer.getForeignName() + ": failed cancelling file loader: "+ err.getMessage()));
         });
     }
+
+    /**
+     * A file we are streaming to a peer: consecutive blocks from <code>position</code> up to <code>end</code>, sent
+     * on a worker thread while the peer has credit for them. The stream ends when it reaches the end, when a block
+     * can't be read (the peer is told, and can ask again), or when the peer asks for the file again. One the peer has
+     * abandoned is forgotten when the peer disconnects.
+     */
+    private final class OutgoingStream implements Runnable {
+        private final Peer peer;
+        private final FileDescriptor fd;
+        private final long end;
+        // Guarded by `this`
+        private long position;
+        private long credits;
+        private boolean sending = false;
+        private boolean closed = false;
+
+        OutgoingStream(Peer peer, FileDescriptor fd, long position, long end, long credits) {
+            this.peer = peer;
+            this.fd = fd;
+            this.position = position;
+            this.end = end;
+            this.credits = credits;
+        }
+
+        void addCredits(long more) {
+            synchronized (this) {
+                credits += more;
+            }
+            send();
+        }
+
+        /**
+         * Starts sending blocks, unless they are already being sent or there is no credit for them.
+         */
+        void send() {
+            synchronized (this) {
+                if (sending || closed || credits <= 0 || position >= end) {
+                    return;
+                }
+                sending = true;
+            }
+            executor.execute(this);
+        }
+
+        synchronized void close() {
+            closed = true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                FilePacket packet;
+                synchronized (this) {
+                    if (closed || credits <= 0 || position >= end) {
+                        sending = false;
+                        return;
+                    }
+                    packet = new FilePacket(peer, fd, position, end - position);
+                    position = packet.nextPosition();
+                    --credits;
+                }
+
+                // The block is read as the response is sent
+                FileBytesResponse response = new FileBytesResponse(packet, true);
+                peer.sendMessage(response);
+                if (!response.isSuccessful() || packet.nextPosition() >= end) {
+                    close();
+                    Maybe.of(streams.get(peer)).consume(peerStreams -> peerStreams.remove(fd, this));
+                    return;
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,243 @@
+package unimelb.bitbox.peers;
+
+import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.network.FilePacket;
+import unimelb.bitbox.util.network.FileTransfer;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the downloads in progress, and requests a block again when its response is overdue.
+ * <br/>
+ * Each download has one block requested at a time. Its deadline adapts to how long the download's blocks have been
+ * taking, like TCP's retransmission timeout: the smoothed round trip plus four times its deviation, between
+ * <code>MIN_TIMEOUT</code> and <code>MAX_TIMEOUT</code>. Every time a block is overdue or the peer answers that it
+ * couldn't read it for now, the block is requested again after a delay that doubles each time, with random jitter
+ * so that many stalled downloads don't all retry at once. After <code>FAILOVER_ATTEMPTS</code> such failures in a
+ * row, the block is requested from another peer that has the content instead, going by its summary (see
+ * {@link unimelb.bitbox.util.fs.ContentSummary}); the rest of the download follows whichever peer answers.
+ *
+ * @author Eleanor McMurtry
+ */
+class TransferWatchdog {
+    private static final long CHECK_INTERVAL = 1000;
+    private static final long INITIAL_TIMEOUT = 30 * 1000;
+    // Blocks are large, and may be queued behind the rest of a stream on a slow link
+    private static final long MIN_TIMEOUT = 15 * 1000;
+    private static final long MAX_TIMEOUT = 2 * 60 * 1000;
+    private static final long RETRY_DELAY = 500;
+    private static final long MAX_RETRY_DELAY = 30 * 1000;
+    private static final int FAILOVER_ATTEMPTS = 2;
+
+    private static final class Watch {
+        private final FileTransfer transfer;
+        // The peer the outstanding block was requested from, and where it starts
+        private Peer source;
+        private long position;
+        private long sentAt;
+        private long deadline;
+        // Nothing is scheduled to be requested while this is negative
+        private long retryAt = -1;
+        private int attempts = 0;
+        // Smoothed round trip time and its mean deviation, or 0 before the first sample
+        private long roundTrip = 0;
+        private long deviation = 0;
+        private final Set<Peer> failedSources = new HashSet<>();
+
+        private Watch(FileTransfer transfer) {
+            this.transfer = transfer;
+            source = transfer.peer;
+        }
+
+        /**
+         * @return how long to wait for the outstanding block, doubled for each failed attempt at it
+         */
+        private long timeout() {
+            long timeout = roundTrip == 0 ? INITIAL_TIMEOUT
+                                          : Math.max(MIN_TIMEOUT, roundTrip + 4 * deviation);
+            return Math.min(MAX_TIMEOUT, timeout << Math.min(attempts, 8));
+        }
+
+        /**
+         * @return how long to wait before requesting the outstanding block again, doubled for each failed attempt
+         */
+        private long retryDelay() {
+            return Math.min(MAX_RETRY_DELAY, RETRY_DELAY << Math.min(attempts, 16));
+        }
+    }
+
+    private final Map<FileTransfer, Watch> watches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+    TransferWatchdog() {
+        timer.scheduleWithFixedDelay(this::check, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records that a block of a download was requested from a peer.
+     */
+    void requested(FileTransfer ft, Peer source, long position) {
+        Watch watch = watches.computeIfAbsent(ft, Watch::new);
+        synchronized (watch) {
+            watch.source = source;
+            watch.position = position;
+            watch.sentAt = System.currentTimeMillis();
+            watch.deadline = watch.sentAt + watch.timeout();
+            watch.retryAt = -1;
+        }
+    }
+
+    /**
+     * Records that a block of a download arrived, and updates how long blocks are expected to take. If the peer is
+     * streaming the download, the next block is then expected without being requested, and the time between blocks
+     * is used as the round trip.
+     * @return whether it is the block that was last requested, rather than a late answer to an earlier request
+     *         for it; only then should the next block be requested
+     */
+    boolean received(FilePacket packet, boolean streamed) {
+        Watch watch = watches.get(packet.transfer);
+        if (watch == null) {
+            return false;
+        }
+        synchronized (watch) {
+            if (packet.position != watch.position) {
+                return false;
+            }
+            // After a retry, we can't tell which request this answers, so it says nothing about the round trip
+            long sample = System.currentTimeMillis() - watch.sentAt;
+            if (watch.attempts == 0 && watch.roundTrip == 0) {
+                watch.roundTrip = Math.max(1, sample);
+                watch.deviation = sample / 2;
+            } else if (watch.attempts == 0) {
+                watch.deviation += (Math.abs(sample - watch.roundTrip) - watch.deviation) / 4;
+                watch.roundTrip += (sample - watch.roundTrip) / 8;
+            }
+            watch.attempts = 0;
+            watch.retryAt = -1;
+            watch.failedSources.clear();
+            if (streamed && packet.nextPosition() < watch.transfer.fileDescriptor.fileSize()) {
+                watch.position = packet.nextPosition();
+                watch.sentAt = System.currentTimeMillis();
+                watch.deadline = watch.sentAt + watch.timeout();
+            } else {
+                // Nothing is outstanding until the next block is requested
+                watch.deadline = Long.MAX_VALUE;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Requests a block again after a delay, because the peer couldn't read it for now or it was damaged.
+     * @param streamed whether the block was part of a stream; if so, the rest of the file is requested again from
+     *                 it, even though later blocks may already be expected
+     */
+    void failed(FilePacket packet, boolean streamed) {
+        Watch watch = watches.get(packet.transfer);
+        if (watch == null) {
+            return;
+        }
+        synchronized (watch) {
+            boolean rewind = streamed && packet.position < watch.position;
+            if (!rewind && (packet.position != watch.position || watch.retryAt >= 0)) {
+                return;
+            }
+            watch.position = packet.position;
+            failedAttempt(watch);
+        }
+    }
+
+    /**
+     * Requests a block from another peer straight away, because the peer we asked doesn't have the content.
+     * @return false if there is no other peer to ask
+     */
+    boolean unavailable(FilePacket packet) {
+        Watch watch = watches.get(packet.transfer);
+        if (watch == null) {
+            return false;
+        }
+        synchronized (watch) {
+            watch.failedSources.add(packet.peer());
+            if (!failover(watch)) {
+                return false;
+            }
+            watch.position = Math.min(watch.position, packet.position);
+            watch.retryAt = System.currentTimeMillis();
+            return true;
+        }
+    }
+
+    /**
+     * Stops watching a download, because it is complete or was cancelled.
+     */
+    void remove(FileTransfer ft) {
+        watches.remove(ft);
+    }
+
+    private void check() {
+        long now = System.currentTimeMillis();
+        try {
+            watches.values().forEach(watch -> check(watch, now));
+        } catch (RuntimeException e) {
+            // Otherwise the timer would stop running the check
+            PeerServer.log().warning("error checking downloads: " + e.getMessage());
+        }
+    }
+
+    private void check(Watch watch, long now) {
+        synchronized (watch) {
+            if (watch.retryAt >= 0 && now >= watch.retryAt) {
+                watch.retryAt = -1;
+                watch.sentAt = now;
+                watch.deadline = now + watch.timeout();
+                watch.transfer.sendBytesRequest(watch.source, watch.position);
+            } else if (watch.retryAt < 0 && now >= watch.deadline) {
+                PeerServer.log().fine(watch.source.getForeignName() + ": block of " + watch.transfer.pathName() +
+                                      " at " + watch.position + " is overdue");
+                failedAttempt(watch);
+            }
+        }
+    }
+
+    /**
+     * Schedules the outstanding block to be requested again, from another peer if it has failed too often.
+     */
+    private void failedAttempt(Watch watch) {
+        long delay = watch.retryDelay();
+        ++watch.attempts;
+        if (watch.attempts >= FAILOVER_ATTEMPTS) {
+            watch.failedSources.add(watch.source);
+            if (failover(watch)) {
+                watch.attempts = 0;
+            }
+        }
+        watch.retryAt = System.currentTimeMillis() + delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Chooses another peer to request the download from: the peer that sent us the file, or one whose summary says it
+     * has the content. Peers that have failed since the last block arrived are avoided while there are others.
+     * @return whether a different peer was chosen
+     */
+    private boolean failover(Watch watch) {
+        String md5 = watch.transfer.fileDescriptor.md5();
+        for (Peer peer : PeerServer.connection().getActivePeers()) {
+            if (peer != watch.source && !watch.failedSources.contains(peer)
+                    && (peer == watch.transfer.peer
+                        || peer.getContentSummary().map(summary -> summary.mightContain(md5)).orElse(false))) {
+                PeerServer.log().info("Switching download of " + watch.transfer.pathName() + " from " +
+                                      watch.source.getForeignName() + " to " + peer.getForeignName());
+                watch.source = peer;
+                return true;
+            }
+        }
+        return false;
+    }
+}
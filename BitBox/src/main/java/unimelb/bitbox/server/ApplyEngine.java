@@ -0,0 +1,161 @@
+package unimelb.bitbox.server;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.util.config.Configuration;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Applies incoming changes to the share directory on a bounded pool of threads, so that a large synchronisation uses
+ * every core instead of being one long serial chain on the message processor.
+ * <br/>
+ * Each change names the paths it touches, and waits only for the earlier changes it conflicts with:
+ * <li>earlier changes to the same path;</li>
+ * <li>an earlier delete of a directory containing one of its paths;</li>
+ * <li>for a directory delete, every earlier change below the directory, so its contents are dealt with first.</li>
+ * <br/>
+ * Creating a path doesn't wait for its parent directory to be created, since the file system manager creates missing
+ * parents itself. Whatever order changes finish in, their acknowledgements run in the order the changes arrived, so
+ * that our position in the sender's change log only ever moves past changes that have been applied.
+ * <br/>
+ * The pool has <code>applyThreads</code> threads, or one per core if that is not set or is 0.
+ *
+ * @author Eleanor McMurtry
+ */
+class ApplyEngine {
+    private static final class Change {
+        private final List<String> paths;
+        private final boolean subtree;
+        private final Runnable apply;
+        private final Runnable acknowledge;
+        private final List<Change> dependents = new ArrayList<>();
+        private int waiting = 0;
+        private boolean applied = false;
+
+        private Change(List<String> paths, boolean subtree, Runnable apply, Runnable acknowledge) {
+            this.paths = paths;
+            this.subtree = subtree;
+            this.apply = apply;
+            this.acknowledge = acknowledge;
+        }
+    }
+
+    private final Executor pool;
+    // The latest unfinished change to each path, and to each directory as a whole
+    private final Map<String, Change> latest = new HashMap<>();
+    private final Map<String, Change> latestSubtree = new HashMap<>();
+    // The unfinished changes strictly below each directory
+    private final Map<String, Set<Change>> pendingUnder = new HashMap<>();
+    private final Queue<Change> arrivals = new ArrayDeque<>();
+
+    ApplyEngine() {
+        int threads = Configuration.getConfigurationValue("applyThreads")
+                                   .map(Integer::parseInt)
+                                   .orElse(0);
+        pool = Executors.newFixedThreadPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an engine that applies changes on the given executor instead of its own pool.
+     */
+    ApplyEngine(Executor pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Schedules a change to the share directory.
+     * @param paths       the paths the change touches, relative to the share directory
+     * @param subtree     whether the change affects everything below the paths too (i.e. deletes a directory)
+     * @param apply       performs the change; runs on the pool
+     * @param acknowledge runs once the change and every change before it have been applied
+     */
+    synchronized void submit(Collection<String> paths, boolean subtree, Runnable apply, Runnable acknowledge) {
+        List<String> normalised = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            normalised.add(path.replace('\\', '/'));
+        }
+        Change change = new Change(normalised, subtree, apply, acknowledge);
+
+        Set<Change> dependencies = new HashSet<>();
+        for (String path : change.paths) {
+            Maybe.of(latest.get(path)).consume(dependencies::add);
+            for (String dir = parent(path); dir != null; dir = parent(dir)) {
+                Maybe.of(latestSubtree.get(dir)).consume(dependencies::add);
+            }
+            if (subtree) {
+                dependencies.addAll(pendingUnder.getOrDefault(path, Collections.emptySet()));
+            }
+        }
+        for (Change dependency : dependencies) {
+            dependency.dependents.add(change);
+            ++change.waiting;
+        }
+
+        for (String path : change.paths) {
+            latest.put(path, change);
+            if (subtree) {
+                latestSubtree.put(path, change);
+            }
+            for (String dir = parent(path); dir != null; dir = parent(dir)) {
+                pendingUnder.computeIfAbsent(dir, ignored -> new HashSet<>()).add(change);
+            }
+        }
+        arrivals.add(change);
+        if (change.waiting == 0) {
+            pool.execute(() -> run(change));
+        }
+    }
+
+    private void run(Change change) {
+        try {
+            change.apply.run();
+        } catch (RuntimeException e) {
+            PeerServer.log().warning("failed applying change to " + change.paths.get(0) + ": " + e.getMessage());
+        }
+        applied(change);
+    }
+
+    private synchronized void applied(Change change) {
+        change.applied = true;
+        for (String path : change.paths) {
+            latest.remove(path, change);
+            if (change.subtree) {
+                latestSubtree.remove(path, change);
+            }
+            for (String dir = parent(path); dir != null; dir = parent(dir)) {
+                Set<Change> pending = pendingUnder.get(dir);
+                if (pending != null) {
+                    pending.remove(change);
+                    if (pending.isEmpty()) {
+                        pendingUnder.remove(dir);
+                    }
+                }
+            }
+        }
+        for (Change dependent : change.dependents) {
+            if (--dependent.waiting == 0) {
+                pool.execute(() -> run(dependent));
+            }
+        }
+
+        while (!arrivals.isEmpty() && arrivals.peek().applied) {
+            arrivals.poll().acknowledge.run();
+        }
+    }
+
+    private static String parent(String path) {
+        int separator = path.lastIndexOf('/');
+        return separator < 0 ? null : path.substring(0, separator);
+    }
+}
@@ -0,0 +1,160 @@
+package unimelb.bitbox.server;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.messages.*;
+import unimelb.bitbox.util.fs.FileDescriptor;
+import unimelb.bitbox.util.fs.FileEventType;
+import unimelb.bitbox.util.fs.FileSystemEvent;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Turns a sequence of file system events into the requests that carry them, combining namespace changes so that a
+ * large tree doesn't cost one round trip per entry:
+ * <li>a run of directory creations is sent as DIRECTORY_CREATE_BATCH_REQUESTs;</li>
+ * <li>in a run of deletions, a deleted directory carries everything below it, since the receiver deletes
+ * directories recursively; the remaining file deletions are sent as FILE_DELETE_BATCH_REQUESTs.</li>
+ * <br/>
+ * Only neighbouring events are combined, so the requests are applied in the same order as the events, and a batch is
+ * never larger than <code>BATCH_LIMIT</code> entries. A lone event is sent as the usual request. Each request records
+ * how far through the events it gets, so that a receiver can acknowledge a long run of changes as it goes.
+ *
+ * @author Eleanor McMurtry
+ */
+class ChangeBatcher {
+    static final int BATCH_LIMIT = 1000;
+
+    /**
+     * A request, with the last event it accounts for if every earlier event is also accounted for by then.
+     */
+    static final class Batch {
+        final Message message;
+        final Maybe<FileSystemEvent> completes;
+
+        private Batch(Message message, Maybe<FileSystemEvent> completes) {
+            this.message = message;
+            this.completes = completes;
+        }
+    }
+
+    /**
+     * @return the requests for the events, in order; the last one always completes the events
+     */
+    static List<Batch> batches(List<FileSystemEvent> events) {
+        List<Batch> batches = new ArrayList<>();
+        int start = 0;
+        while (start < events.size()) {
+            FileSystemEvent ev = events.get(start);
+            int end = start + 1;
+            if (ev.event == FileEventType.DIRECTORY_CREATE) {
+                while (end < events.size() && events.get(end).event == FileEventType.DIRECTORY_CREATE) {
+                    ++end;
+                }
+                createBatches(events.subList(start, end), batches);
+            } else if (isDelete(ev)) {
+                while (end < events.size() && isDelete(events.get(end))) {
+                    ++end;
+                }
+                deleteBatches(events.subList(start, end), batches);
+            } else {
+                batches.add(new Batch(message(ev), Maybe.just(ev)));
+            }
+            start = end;
+        }
+        return batches;
+    }
+
+    /**
+     * @return the usual request for a single event
+     */
+    static Message message(FileSystemEvent ev) {
+        FileDescriptor fd = ev.fileDescriptor;
+        switch (ev.event) {
+            case DIRECTORY_CREATE:
+                return new DirectoryCreateRequest(ev.pathName);
+            case DIRECTORY_DELETE:
+                return new DirectoryDeleteRequest(ev.pathName);
+            case FILE_CREATE:
+                return new FileCreateRequest(fd, ev.content);
+            case FILE_DELETE:
+                return new FileDeleteRequest(fd);
+            case FILE_MODIFY:
+                return new FileModifyRequest(fd, ev.content);
+            case FILE_MOVE:
+                return new FileMoveRequest(fd, ev.oldPathName);
+            default:
+                throw new RuntimeException("unrecognised event " + ev.event);
+        }
+    }
+
+    private static boolean isDelete(FileSystemEvent ev) {
+        return ev.event == FileEventType.FILE_DELETE || ev.event == FileEventType.DIRECTORY_DELETE;
+    }
+
+    private static void createBatches(List<FileSystemEvent> creates, List<Batch> batches) {
+        if (creates.size() == 1) {
+            batches.add(new Batch(message(creates.get(0)), Maybe.just(creates.get(0))));
+            return;
+        }
+        for (int i = 0; i < creates.size(); i += BATCH_LIMIT) {
+            List<FileSystemEvent> chunk = creates.subList(i, Math.min(i + BATCH_LIMIT, creates.size()));
+            batches.add(new Batch(new DirectoryCreateBatchRequest(chunk.stream()
+                                                                       .map(ev -> ev.pathName)
+                                                                       .collect(Collectors.toList())),
+                                  Maybe.just(chunk.get(chunk.size() - 1))));
+        }
+    }
+
+    private static void deleteBatches(List<FileSystemEvent> deletes, List<Batch> batches) {
+        Set<String> deletedDirectories = deletes.stream()
+                                                .filter(ev -> ev.event == FileEventType.DIRECTORY_DELETE)
+                                                .map(ev -> ev.pathName)
+                                                .collect(Collectors.toCollection(HashSet::new));
+        List<FileDescriptor> files = new ArrayList<>();
+        List<FileSystemEvent> directories = new ArrayList<>();
+        for (FileSystemEvent ev : deletes) {
+            if (insideAny(ev.pathName, deletedDirectories)) {
+                continue;
+            }
+            if (ev.event == FileEventType.FILE_DELETE) {
+                files.add(ev.fileDescriptor);
+            } else {
+                directories.add(ev);
+            }
+        }
+
+        // The files can't be inside the remaining directories, so it doesn't matter which go first. The requests
+        // don't follow the order of the events, so only the last one accounts for them.
+        List<Message> messages = new ArrayList<>();
+        if (files.size() == 1) {
+            messages.add(new FileDeleteRequest(files.get(0)));
+        } else {
+            for (int i = 0; i < files.size(); i += BATCH_LIMIT) {
+                messages.add(new FileDeleteBatchRequest(files.subList(i, Math.min(i + BATCH_LIMIT, files.size()))));
+            }
+        }
+        for (FileSystemEvent ev : directories) {
+            messages.add(message(ev));
+        }
+        for (int i = 0; i < messages.size(); ++i) {
+            batches.add(new Batch(messages.get(i), i == messages.size() - 1 ? Maybe.just(deletes.get(deletes.size() - 1))
+                                                                            : Maybe.nothing()));
+        }
+    }
+
+    private static boolean insideAny(String pathName, Set<String> directories) {
+        for (String parent = new File(pathName).getParent(); parent != null; parent = new File(parent).getParent()) {
+            if (directories.contains(parent)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ChangeBatcher() {}
+}
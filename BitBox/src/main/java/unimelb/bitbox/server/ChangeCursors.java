@@ -0,0 +1,143 @@
+package unimelb.bitbox.server;
+
+import unimelb.bitbox.util.network.HostPort;
+import unimelb.bitbox.util.network.JSONDocument;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Remembers, for each peer, how far through the peer's change log we have applied. When we reconnect to a peer, or
+ * periodically synchronise with it, we send it our cursor and it only needs to send us the changes after it.
+ * <br/>
+ * The cursor only advances when the next change in sequence arrives, so that a change that was lost or skipped is
+ * sent again at the next synchronisation.
+ *
+ * @author Eleanor McMurtry
+ */
+class ChangeCursors {
+    private static final String CURSOR_FILE = "changecursors";
+
+    private final Map<String, Cursor> cursors = new ConcurrentHashMap<>();
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean writePending = new AtomicBoolean();
+
+    /**
+     * A position in a peer's change log.
+     */
+    static final class Cursor {
+        final String logId;
+        final long sequence;
+
+        private Cursor(String logId, long sequence) {
+            this.logId = logId;
+            this.sequence = sequence;
+        }
+    }
+
+    ChangeCursors() {
+        load();
+    }
+
+    /**
+     * @return our position in the peer's change log, or an empty cursor if we have never synchronised with it
+     */
+    Cursor get(HostPort peer) {
+        return cursors.getOrDefault(peer.toString(), new Cursor("", 0));
+    }
+
+    /**
+     * Records that we have applied a change from the peer's change log.
+     * @param skipped the number of changes before this one that the peer chose not to send us
+     */
+    void acknowledge(HostPort peer, String logId, long sequence, long skipped) {
+        boolean[] advanced = {false};
+        cursors.computeIfPresent(peer.toString(), (key, cursor) -> {
+            if (cursor.logId.equals(logId) && cursor.sequence + 1 + skipped == sequence) {
+                advanced[0] = true;
+                return new Cursor(logId, sequence);
+            }
+            return cursor;
+        });
+        if (advanced[0]) {
+            scheduleWrite();
+        }
+    }
+
+    /**
+     * Moves to a new position in the peer's change log, after the peer has sent us its whole share directory.
+     */
+    void reset(HostPort peer, String logId, long sequence) {
+        cursors.put(peer.toString(), new Cursor(logId, sequence));
+        scheduleWrite();
+    }
+
+    /**
+     * Forgets our position in the peer's change log, e.g. because a change we acknowledged could not be completed.
+     * The next synchronisation with the peer will be a full one.
+     */
+    void invalidate(HostPort peer) {
+        if (cursors.remove(peer.toString()) != null) {
+            scheduleWrite();
+        }
+    }
+
+    /**
+     * Forgets our position in every peer's change log, e.g. because downloads we acknowledged were discarded, and we
+     * don't know which peers they came from.
+     */
+    void invalidateAll() {
+        if (!cursors.isEmpty()) {
+            cursors.clear();
+            scheduleWrite();
+        }
+    }
+
+    private void scheduleWrite() {
+        // Coalesce writes, since a burst of changes would otherwise rewrite the file once per change
+        if (writePending.compareAndSet(false, true)) {
+            worker.execute(this::write);
+        }
+    }
+
+    private void load() {
+        try (BufferedReader reader = new BufferedReader(new FileReader(CURSOR_FILE))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JSONDocument.parse(line).ifOk(doc ->
+                    doc.getString("peer").ifOk(peer ->
+                    doc.getString("logId").ifOk(logId ->
+                    doc.getLong("sequence").ifOk(sequence ->
+                        cursors.put(peer, new Cursor(logId, sequence))))));
+            }
+        } catch (FileNotFoundException ignored) {
+            // This is fine, the file just might not exist yet
+        } catch (IOException e) {
+            PeerServer.log().warning("failed reading change cursors: " + e.getMessage());
+        }
+    }
+
+    private void write() {
+        writePending.set(false);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(CURSOR_FILE))) {
+            for (Map.Entry<String, Cursor> entry : cursors.entrySet()) {
+                writer.write(new JSONDocument().append("peer", entry.getKey())
+                                               .append("logId", entry.getValue().logId)
+                                               .append("sequence", entry.getValue().sequence)
+                                               .toString());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            PeerServer.log().warning("failed writing change cursors: " + e.getMessage());
+        }
+    }
+}
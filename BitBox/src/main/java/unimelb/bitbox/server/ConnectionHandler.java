@@ -1,7 +1,6 @@
 package unimelb.bitbox.server;
 
 import functional.algebraic.Maybe;
-import unimelb.bitbox.messages.Message;
 import unimelb.bitbox.peers.Peer;
 import unimelb.bitbox.util.concurrency.DelayedInitialiser;
 import unimelb.bitbox.util.config.CfgValue;
@@ -111,10 +110,6 @@ public abstract class ConnectionHandler implements IJSONData {
         return false;
     }
 
-    void broadcastMessage(Message message) {
-        getActivePeers().forEach(peer -> peer.sendMessage(message));
-    }
-
     public void closeConnection(Peer peer) {
         if (peers.contains(peer)) {
             peers.remove(peer);
@@ -5,15 +5,24 @@ import functional.algebraic.Result;
 import org.jetbrains.annotations.NotNull;
 import unimelb.bitbox.messages.*;
 import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.util.fs.ArchiveEntry;
+import unimelb.bitbox.util.fs.ContentSummary;
 import unimelb.bitbox.util.fs.FileDescriptor;
+import unimelb.bitbox.util.fs.MerkleEntry;
 import unimelb.bitbox.util.network.FilePacket;
 import unimelb.bitbox.util.network.HostPort;
 import unimelb.bitbox.util.network.JSONDocument;
 import unimelb.bitbox.util.network.JSONException;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Collectors;
 
 /**
  * The message processor collects messages from the various PeerConnections, and then responds appropriately.
@@ -22,6 +31,7 @@ import java.util.concurrent.LinkedBlockingQueue;
  */
 public class MessageProcessor implements Runnable  {
     private final BlockingQueue<ReceivedMessage> messages = new LinkedBlockingQueue<>();
+    private final ApplyEngine engine = new ApplyEngine();
 
     public void add(ReceivedMessage message) {
         messages.add(message);
@@ -84,38 +94,109 @@ public class MessageProcessor implements Runnable  {
                                                                           Result.value(new FilePacket(peer, fd, pos, len))
                                                                           )));
         Result<String, JSONException> content = document.getString("content");
+        Result<String, JSONException> oldPathName = document.getString("oldPathName");
         Result<HostPort, JSONException> hostPort = document.getJSON("hostPort")
                                                            .andThen(HostPort::fromJSON);
+        Result<List<String>, JSONException> pathNames = document.getStringArray("pathNames");
+        Result<List<FileDescriptor>, JSONException> fileDescriptors = document.getJSONArray("files")
+                                                                               .andThen(MessageProcessor::parseFiles);
+        Result<List<ArchiveEntry>, JSONException> entries = document.getJSONArray("entries")
+                                                                    .andThen(MessageProcessor::parseEntries);
 
         switch (command) {
-            /* Trivial requests */
+            /* Changes to the share directory, which are applied in parallel unless they conflict */
             case FILE_CREATE_REQUEST:
-                peer.sendMessage(new FileCreateResponse(fileDescriptor.get(), peer));
+                apply(peer, command, document, new FileCreateResponse(fileDescriptor.get(), inlineContent(content), peer),
+                      false, Collections.singletonList(pathName.get()));
                 break;
             case FILE_MODIFY_REQUEST:
-                peer.sendMessage(new FileModifyResponse(fileDescriptor.get(), peer));
+                apply(peer, command, document, new FileModifyResponse(fileDescriptor.get(), inlineContent(content), peer),
+                      false, Collections.singletonList(pathName.get()));
                 break;
-            case FILE_BYTES_REQUEST:
-                PeerServer.rwManager().readFile(packet.get());
+            case FILE_MOVE_REQUEST:
+                apply(peer, command, document, new FileMoveResponse(fileDescriptor.get(), oldPathName.get(), peer),
+                      false, Arrays.asList(oldPathName.get(), pathName.get()));
                 break;
             case FILE_DELETE_REQUEST:
-                peer.sendMessage(new FileDeleteResponse(fileDescriptor.get(), peer));
+                apply(peer, command, document, new FileDeleteResponse(fileDescriptor.get(), peer), false,
+                      Collections.singletonList(pathName.get()));
                 break;
             case DIRECTORY_CREATE_REQUEST:
-                peer.sendMessage(new DirectoryCreateResponse(pathName.get(), peer));
+                apply(peer, command, document, new DirectoryCreateResponse(pathName.get(), peer), false,
+                      Collections.singletonList(pathName.get()));
                 break;
             case DIRECTORY_DELETE_REQUEST:
-                peer.sendMessage(new DirectoryDeleteResponse(pathName.get(), peer));
+                apply(peer, command, document, new DirectoryDeleteResponse(pathName.get(), peer), true,
+                      Collections.singletonList(pathName.get()));
+                break;
+            case DIRECTORY_CREATE_BATCH_REQUEST:
+                apply(peer, command, document, new DirectoryCreateBatchResponse(pathNames.get(), peer), false,
+                      pathNames.get());
+                break;
+            case FILE_DELETE_BATCH_REQUEST:
+                apply(peer, command, document, new FileDeleteBatchResponse(fileDescriptors.get(), peer), false,
+                      fileDescriptors.get().stream().map(fd -> fd.pathName).collect(Collectors.toList()));
+                break;
+
+            /* Trivial requests */
+            case FILE_BYTES_REQUEST:
+                PeerServer.rwManager().readFile(packet.get(), document.getLong("streamLength").orElse(0L),
+                                                document.getLong("credits").orElse(0L));
+                break;
+            case FILE_BYTES_CREDIT:
+                PeerServer.rwManager().addCredits(peer, fileDescriptor.get(), document.getLong("credits").get());
+                break;
+            case CHANGES_REQUEST:
+                peer.sendMessage(new ChangesResponse(document.getString("logId").get(),
+                                                     document.getLong("sequence").get(),
+                                                     document.getBoolean("empty").orElse(false),
+                                                     contentSummary(document), peer));
+                break;
+            // Only once everything sent before it has been applied
+            case RESYNC_COMPLETE:
+                String logId = document.getString("logId").get();
+                long head = document.getLong("head").get();
+                engine.submit(Collections.emptyList(), false, () -> {},
+                              () -> PeerServer.resynchronised(peer, logId, head));
+                break;
+            /* The segments of an archive are written in the order they arrive */
+            case BOOTSTRAP_REQUEST:
+                peer.sendMessage(new BootstrapResponse(document.getString("archiveId").get(),
+                                                       document.getLong("segment").get(), entries.get(),
+                                                       document.getBoolean("last").get(), peer));
+                break;
+            case SYNC_REQUEST:
+                peer.sendMessage(new SyncResponse(pathName.get(), document.getString("hash").get(), peer));
                 break;
             /* Trivial responses */
+            // Once the peer has accepted a file, it will have its content
             case FILE_CREATE_RESPONSE:
-                parsedResponse = Maybe.just(new FileCreateResponse(fileDescriptor.get(), peer));
+                parsedResponse = Maybe.just(new FileCreateResponse(fileDescriptor.get(), Maybe.nothing(), peer));
+                if (document.getBoolean("status").get()) {
+                    String md5 = fileDescriptor.get().md5();
+                    peer.getContentSummary().consume(summary -> summary.add(md5));
+                }
                 break;
             case FILE_DELETE_RESPONSE:
                 parsedResponse = Maybe.just(new FileDeleteResponse(fileDescriptor.get(), peer));
                 break;
             case FILE_MODIFY_RESPONSE:
-                parsedResponse = Maybe.just(new FileModifyResponse(fileDescriptor.get(), peer));
+                parsedResponse = Maybe.just(new FileModifyResponse(fileDescriptor.get(), Maybe.nothing(), peer));
+                if (document.getBoolean("status").get()) {
+                    String md5 = fileDescriptor.get().md5();
+                    peer.getContentSummary().consume(summary -> summary.add(md5));
+                }
+                break;
+            // If the peer couldn't move the file, fall back to sending it under its new name
+            case FILE_MOVE_RESPONSE:
+                parsedResponse = Maybe.just(new FileMoveResponse(fileDescriptor.get(), oldPathName.get(), peer));
+
+                if (!document.getBoolean("status").get()) {
+                    FileDescriptor fd = fileDescriptor.get();
+                    peer.sendMessage(new FileCreateRequest(fd));
+                    peer.sendMessage(new FileDeleteRequest(new FileDescriptor(oldPathName.get(), fd.lastModified(),
+                                                                              fd.md5(), fd.fileSize())));
+                }
                 break;
             case DIRECTORY_CREATE_RESPONSE:
                 parsedResponse = Maybe.just(new DirectoryCreateResponse(pathName.get(), peer));
@@ -123,6 +204,40 @@ public class MessageProcessor implements Runnable  {
             case DIRECTORY_DELETE_RESPONSE:
                 parsedResponse = Maybe.just(new DirectoryDeleteResponse(pathName.get(), peer));
                 break;
+            case DIRECTORY_CREATE_BATCH_RESPONSE:
+                parsedResponse = Maybe.just(new DirectoryCreateBatchResponse(pathNames.get(), peer));
+                break;
+            case FILE_DELETE_BATCH_RESPONSE:
+                parsedResponse = Maybe.just(new FileDeleteBatchResponse(fileDescriptors.get(), peer));
+                break;
+            case BOOTSTRAP_RESPONSE:
+                parsedResponse = Maybe.just(new BootstrapResponse(document.getString("archiveId").get(),
+                                                                  document.getLong("segment").get(),
+                                                                  Collections.emptyList(), false, peer));
+                break;
+            // If the peer's copy of the directory differs, work out which of our children to send
+            case SYNC_RESPONSE:
+                parsedResponse = Maybe.just(new SyncResponse(pathName.get(), "", peer));
+
+                if (document.getBoolean("status").get() && !document.getBoolean("inSync").get()) {
+                    List<MerkleEntry> children = new ArrayList<>();
+                    for (JSONDocument child : document.getJSONArray("children").get()) {
+                        children.add(MerkleEntry.fromJSON(child).get());
+                    }
+                    PeerServer.continueSynchronisation(peer, pathName.get(), children);
+                }
+                PeerServer.compared(peer, pathName.get());
+                break;
+            // If the peer is sending its whole share directory, we continue from the head of its change log once it's done
+            case CHANGES_RESPONSE:
+                parsedResponse = Maybe.just(new ChangesResponse(document.getString("logId").get(),
+                                                                document.getLong("sequence").get(), false,
+                                                                Maybe.nothing(), peer));
+
+                if (document.getBoolean("resync").get()) {
+                    PeerServer.awaitResync(peer);
+                }
+                break;
             case HANDSHAKE_RESPONSE:
                 parsedResponse = Maybe.just(new HandshakeResponse(peer, hostPort.get()));
 
@@ -130,25 +245,25 @@ public class MessageProcessor implements Runnable  {
                     peer.activate(hostPort.get());
 
                     PeerServer.log().fine(peer + ": sending synchronisation requests");
-                    PeerServer.synchroniseFiles(peer);
+                    PeerServer.requestChanges(peer, hostPort.get());
                 }
                 break;
 
             // Write the received bytes, if we're downloading the file
             case FILE_BYTES_RESPONSE:
-                final FileBytesResponse response = new FileBytesResponse(packet.get());
-                parsedResponse = Maybe.just(response);
+                parsedResponse = Maybe.just(new FileBytesResponse(packet.get()));
 
                 if (PeerServer.fsManager().fileLoading(fileDescriptor.get())) {
+                    boolean streamed = document.getBoolean("stream").orElse(false);
                     if (document.getBoolean("status").get()) {
-                        PeerServer.rwManager().writeFile(packet.get(), content.get());
-                    } else if (document.getBoolean("retry").orElse(false)) {
-                        // If the request failed for a random reason, let's request the bytes again!
-                        PeerServer.log().fine("retrying byte request for " + pathName);
-                        peer.sendMessage(FileBytesRequest.retry(response));
+                        PeerServer.rwManager().writeFile(packet.get(), content.get(),
+                                                         document.getString("blockMd5")
+                                                                 .map(Maybe::just)
+                                                                 .orElse(Maybe.nothing()),
+                                                         streamed);
                     } else {
-                        // If the request failed for a permanent reason, just give up for now
-                        PeerServer.rwManager().cancelFile(fileDescriptor.get());
+                        PeerServer.rwManager().readFailed(packet.get(), document.getBoolean("retry").orElse(false),
+                                                          streamed);
                     }
                 }
                 break;
@@ -166,7 +281,7 @@ public class MessageProcessor implements Runnable  {
                     PeerServer.log().fine("responding to " + hostPort.get());
                     peer.sendMessage(new HandshakeResponse(peer, hostPort.get()));
 
-                    PeerServer.synchroniseFiles(peer);
+                    PeerServer.requestChanges(peer, hostPort.get());
                 }
                 break;
 
@@ -209,6 +324,94 @@ public class MessageProcessor implements Runnable  {
         });
     }
 
+    /**
+     * Applies a change to the share directory by sending the response, which performs the change as it is sent. Once
+     * it has been applied, acknowledges it if it came from the peer's change log.
+     */
+    private void apply(Peer peer, MessageType command, JSONDocument document, Response response, boolean subtree,
+                       List<String> paths) {
+        engine.submit(paths, subtree, () -> peer.sendMessage(response), () -> acknowledgeChange(peer, command, document));
+    }
+
+    /**
+     * If the message was a change from the peer's change log, record that we have applied it.
+     */
+    private void acknowledgeChange(Peer peer, MessageType command, JSONDocument document) {
+        switch (command) {
+            case FILE_CREATE_REQUEST:
+            case FILE_MODIFY_REQUEST:
+            case FILE_MOVE_REQUEST:
+            case FILE_DELETE_REQUEST:
+            case DIRECTORY_CREATE_REQUEST:
+            case DIRECTORY_DELETE_REQUEST:
+            case DIRECTORY_CREATE_BATCH_REQUEST:
+            case FILE_DELETE_BATCH_REQUEST:
+                document.getString("logId").ifOk(logId ->
+                    document.getLong("sequence").ifOk(sequence ->
+                        PeerServer.changeCursors().acknowledge(peer.getHostPort(), logId, sequence,
+                                                               document.getLong("skipped").orElse(0L))));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Decodes the content a peer sent along with a FILE_CREATE_REQUEST or FILE_MODIFY_REQUEST. If there is none, or it
+     * isn't valid, the file is downloaded as usual.
+     */
+    private static Maybe<ByteBuffer> inlineContent(Result<String, JSONException> content) {
+        try {
+            return content.map(encoded -> Maybe.just(ByteBuffer.wrap(Base64.getDecoder().decode(encoded))))
+                          .orElse(Maybe.nothing());
+        } catch (IllegalArgumentException e) {
+            return Maybe.nothing();
+        }
+    }
+
+    /**
+     * Reads the summary of its contents a peer sent along with a CHANGES_REQUEST. If there is none, or it isn't
+     * valid, we assume nothing about what the peer has.
+     */
+    private static Maybe<ContentSummary> contentSummary(JSONDocument document) {
+        return document.getJSON("contentSummary")
+                       .andThen(ContentSummary::fromJSON)
+                       .map(Maybe::just)
+                       .orElse(Maybe.nothing());
+    }
+
+    /**
+     * Parses a list of files, each given as in a FILE_DELETE_REQUEST.
+     */
+    private static Result<List<FileDescriptor>, JSONException> parseFiles(List<JSONDocument> files) {
+        Result<List<FileDescriptor>, JSONException> fileDescriptors = Result.value(new ArrayList<>());
+        for (JSONDocument file : files) {
+            fileDescriptors = fileDescriptors.andThen(list ->
+                              file.getString("pathName").andThen(name ->
+                              file.getJSON("fileDescriptor").andThen(doc ->
+                              FileDescriptor.fromJSON(name, doc).map(fd -> {
+                                  list.add(fd);
+                                  return list;
+                              }))));
+        }
+        return fileDescriptors;
+    }
+
+    /**
+     * Parses the entries of an archive, as in a BOOTSTRAP_REQUEST.
+     */
+    private static Result<List<ArchiveEntry>, JSONException> parseEntries(List<JSONDocument> documents) {
+        Result<List<ArchiveEntry>, JSONException> entries = Result.value(new ArrayList<>());
+        for (JSONDocument entry : documents) {
+            entries = entries.andThen(list ->
+                      ArchiveEntry.fromJSON(entry).map(parsed -> {
+                          list.add(parsed);
+                          return list;
+                      }));
+        }
+        return entries;
+    }
+
     /**
      * A helper method to send an INVALID_PROTOCOL message.
      */
@@ -4,18 +4,35 @@ import functional.algebraic.Maybe;
 import unimelb.bitbox.messages.*;
 import unimelb.bitbox.peers.Peer;
 import unimelb.bitbox.peers.ReadWriteManager;
+import unimelb.bitbox.util.concurrency.Iteration;
 import unimelb.bitbox.util.concurrency.KeepAlive;
 import unimelb.bitbox.util.config.CfgDependent;
 import unimelb.bitbox.util.config.CfgEnumValue;
 import unimelb.bitbox.util.config.CfgValue;
-import unimelb.bitbox.util.fs.FileDescriptor;
+import unimelb.bitbox.util.config.Configuration;
+import unimelb.bitbox.util.fs.ArchiveEntry;
+import unimelb.bitbox.util.fs.ContentSummary;
+import unimelb.bitbox.util.fs.FileEventType;
 import unimelb.bitbox.util.fs.FileSystemEvent;
 import unimelb.bitbox.util.fs.FileSystemManager;
 import unimelb.bitbox.util.fs.FileSystemObserver;
+import unimelb.bitbox.util.fs.MerkleEntry;
+import unimelb.bitbox.util.network.FileTransfer;
 import unimelb.bitbox.util.network.HostPort;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,6 +54,9 @@ enum ConnectionMode {
  * @author Benjamin(Jingyi Li) Li
  */
 public class PeerServer implements FileSystemObserver {
+    // Roughly how much an archive entry adds to a message besides its content
+    private static final int ARCHIVE_ENTRY_OVERHEAD = 128;
+
     /* Configuration values */
     private final CfgValue<Long> udpBlockSize = CfgValue.createLong("udpBlockSize");
     private final CfgValue<Long> blockSize = CfgValue.createLong("blockSize");
@@ -51,6 +71,8 @@ public class PeerServer implements FileSystemObserver {
     private final FileSystemManager fileSystemManager;
     private final MessageProcessor processor = new MessageProcessor();
     private final ReadWriteManager rwManager = new ReadWriteManager();
+    private final ChangeCursors changeCursors;
+    private final Resyncs resyncs = new Resyncs();
     private ConnectionHandler connection;
 
     /* Getters */
@@ -58,6 +80,7 @@ public class PeerServer implements FileSystemObserver {
         return get().fileSystemManager;
     }
     public static ReadWriteManager rwManager() { return get().rwManager; }
+    static ChangeCursors changeCursors() { return get().changeCursors; }
 
     public static Logger log() {
         return get().log;
@@ -83,34 +106,284 @@ public class PeerServer implements FileSystemObserver {
     }
 
     /* File system event handling */
-    static void synchroniseFiles(Peer peer) {
-        fsManager().generateSyncEvents().forEach(ev -> peer.sendMessage(processEvent(ev)));
+
+    /**
+     * Asks a peer for the changes it has made since we last synchronised with it.
+     * @param hostPort the address the peer advertises, which identifies its change log
+     */
+    static void requestChanges(Peer peer, HostPort hostPort) {
+        ChangeCursors.Cursor cursor = get().changeCursors.get(hostPort);
+        // Leave room in the message for base64 encoding
+        peer.sendMessage(new ChangesRequest(cursor.logId, cursor.sequence, fsManager().isEmpty(),
+                                            fsManager().contentSummary(maxBlockSize() / 2)));
+    }
+
+    /**
+     * Forgets how far through a peer's change log we are, because a change from it could not be completed.
+     */
+    public static void forgetChanges(Peer peer) {
+        get().changeCursors.invalidate(peer.getHostPort());
+        get().resyncs.failed(peer);
+    }
+
+    /**
+     * Records that a peer is sending us its whole share directory, since our place in its change log was lost.
+     */
+    static void awaitResync(Peer peer) {
+        get().resyncs.awaiting(peer);
+    }
+
+    /**
+     * Continues from the given point in a peer's change log, once the whole share directory it sent us has been
+     * applied, unless any of it could not be completed.
+     */
+    static void resynchronised(Peer peer, String logId, long head) {
+        if (get().resyncs.received(peer)) {
+            get().changeCursors.reset(peer.getHostPort(), logId, head);
+        }
+    }
+
+    /**
+     * Starts synchronising with a peer by sending the hash of the whole share directory.
+     * If the peer's hash differs, it replies with its children, and we continue in {@link #continueSynchronisation}.
+     */
+    public static void synchroniseFiles(Peer peer) {
+        fsManager().syncHash("").consume(hash -> peer.sendMessage(new SyncRequest("", hash)));
+    }
+
+    /**
+     * Synchronises the whole share directory with a peer whose place in our change log was lost. Once every
+     * directory has been compared and everything the peer is missing has been sent, the peer is told to continue
+     * from the given point in our change log.
+     */
+    public static void resynchronise(Peer peer, String logId, long head) {
+        get().resyncs.start(peer, logId, head);
+        synchroniseFiles(peer);
+    }
+
+    /**
+     * Called once a peer has compared one of our directories with its own, after anything it was missing has been
+     * queued to send.
+     */
+    static void compared(Peer peer, String pathName) {
+        peer.sendLazily(get().resyncs.answered(peer, pathName));
+    }
+
+    /**
+     * Sends a peer that has nothing yet the whole share directory as an archive (see
+     * {@link FileSystemManager#archiveEntries(long)}), a block's worth of entries per request, at the pace the peer
+     * can write them. After the last segment, the peer is told to continue from the given point in our change log.
+     */
+    public static void bootstrap(Peer peer, String logId, long head) {
+        String archiveId = UUID.randomUUID().toString();
+        long blockSize = maxBlockSize();
+        Iterator<ArchiveEntry> entries = fsManager().archiveEntries(blockSize);
+        AtomicReference<ArchiveEntry> carried = new AtomicReference<>();
+        AtomicLong segment = new AtomicLong();
+        log().info(peer.getForeignName() + ": sending share directory as an archive");
+        peer.sendLazily(Iteration.generate(() -> {
+            List<ArchiveEntry> batch = new ArrayList<>();
+            long size = 0;
+            ArchiveEntry entry = carried.getAndSet(null);
+            while (entry != null || entries.hasNext()) {
+                if (entry == null) {
+                    entry = entries.next();
+                }
+                long cost = entry.content.length + entry.pathName.length() + ARCHIVE_ENTRY_OVERHEAD;
+                if (!batch.isEmpty() && (batch.size() >= ChangeBatcher.BATCH_LIMIT || size + cost > blockSize)) {
+                    carried.set(entry);
+                    break;
+                }
+                batch.add(entry);
+                size += cost;
+                entry = null;
+            }
+            if (batch.isEmpty()) {
+                return Maybe.nothing();
+            }
+            boolean last = carried.get() == null && !entries.hasNext();
+            return Maybe.just(new BootstrapRequest(archiveId, segment.getAndIncrement(), batch, last));
+        }));
+        peer.sendLazily(Collections.singletonList((Message) new ResyncComplete(logId, head)).iterator());
+    }
+
+    /**
+     * Compares our children of a directory with the peer's, and sends whatever the peer is missing.
+     * Files that are missing or have different content are sent, directories that are missing are sent in full,
+     * and directories that differ are compared recursively. The messages are generated lazily, at the pace the
+     * peer can take them.
+     * <br/>
+     * Files whose content the peer's summary says it already has are sent first, and without their content, since
+     * the peer can copy them straight away, and its other downloads may then find content to copy too. The same goes
+     * for the files of each chunk of a missing directory.
+     */
+    static void continueSynchronisation(Peer peer, String pathName, List<MerkleEntry> remoteChildren) {
+        Map<String, MerkleEntry> remote = new HashMap<>();
+        remoteChildren.forEach(child -> remote.put(child.name, child));
+
+        Maybe<ContentSummary> summary = peer.getContentSummary();
+        List<MerkleEntry> ordered = new ArrayList<>(fsManager().syncChildren(pathName));
+        ordered.sort(Comparator.comparing(child -> child.isDirectory || !peerHasContent(summary, child.hash)));
+        Iterator<MerkleEntry> children = ordered.iterator();
+        peer.sendLazily(Iteration.flatten(Iteration.generate(() -> {
+            while (children.hasNext()) {
+                MerkleEntry local = children.next();
+                String childPath = pathName.isEmpty() ? local.name : pathName + File.separator + local.name;
+                MerkleEntry other = remote.get(local.name);
+                if (other != null && local.matches(other)) {
+                    continue;
+                }
+
+                if (!local.isDirectory) {
+                    boolean inline = !peerHasContent(summary, local.hash);
+                    return Maybe.just(fsManager().fileDescriptor(childPath)
+                                                 .map(fd -> (Message) new FileCreateRequest(fd, inline
+                                                         ? fsManager().inlineContent(fd)
+                                                         : Maybe.nothing()))
+                                                 .map(Collections::singletonList)
+                                                 .orElse(Collections.emptyList())
+                                                 .iterator());
+                } else if (other == null || !other.isDirectory) {
+                    return Maybe.just(Iteration.flatten(Iteration.map(
+                            Iteration.chunk(fsManager().generateSyncEvents(childPath), ChangeBatcher.BATCH_LIMIT),
+                            events -> syncMessages(summary, events).iterator())));
+                } else {
+                    get().resyncs.requested(peer, childPath);
+                    return Maybe.just(Collections.singletonList((Message) new SyncRequest(childPath, local.hash))
+                                                 .iterator());
+                }
+            }
+            return Maybe.nothing();
+        })));
+    }
+
+    /**
+     * Creates the requests for a chunk of the events that create a missing directory, sending the files whose content
+     * the peer has before the others.
+     */
+    private static List<Message> syncMessages(Maybe<ContentSummary> summary, List<FileSystemEvent> events) {
+        List<FileSystemEvent> directories = new ArrayList<>();
+        List<Message> copies = new ArrayList<>();
+        List<FileSystemEvent> files = new ArrayList<>();
+        for (FileSystemEvent ev : events) {
+            if (ev.event == FileEventType.DIRECTORY_CREATE) {
+                directories.add(ev);
+            } else if (ev.event == FileEventType.FILE_CREATE && peerHasContent(summary, ev.fileDescriptor.md5())) {
+                copies.add(new FileCreateRequest(ev.fileDescriptor));
+            } else {
+                files.add(ev);
+            }
+        }
+
+        // Directories already come before files, so they are still all created first
+        List<Message> messages = new ArrayList<>();
+        ChangeBatcher.batches(directories).forEach(batch -> messages.add(batch.message));
+        messages.addAll(copies);
+        ChangeBatcher.batches(files).forEach(batch -> messages.add(batch.message));
+        return messages;
+    }
+
+    private static boolean peerHasContent(Maybe<ContentSummary> summary, String md5) {
+        return summary.map(s -> s.mightContain(md5)).orElse(false);
+    }
+
+    /**
+     * Tells our other peers about a file we have started downloading, so that they can download it from us as it
+     * arrives (see {@link FileSystemManager#readFile(String, long, long)}) rather than once it is complete. Peers
+     * that already have the content, going by their summaries, are left to learn of the file in the usual way.
+     */
+    public static void relayDownload(FileTransfer ft) {
+        if (!Configuration.getConfigurationValue("relayDownloads").map(Boolean::parseBoolean).orElse(true)) {
+            return;
+        }
+        String md5 = ft.fileDescriptor.md5();
+        for (Peer peer : get().connection.getActivePeers()) {
+            if (peer != ft.peer && !peerHasContent(peer.getContentSummary(), md5)) {
+                log().fine(peer.getForeignName() + ": relaying download of " + ft.pathName());
+                peer.sendMessage(new FileCreateRequest(ft.fileDescriptor));
+            }
+        }
     }
 
     @Override
-    public void processFileSystemEvent(FileSystemEvent ev) {
-        connection.broadcastMessage(processEvent(ev));
-    }
-
-    private static Message processEvent(FileSystemEvent ev) {
-        FileDescriptor fd = ev.fileDescriptor;
-        switch (ev.event) {
-            case DIRECTORY_CREATE:
-                return new DirectoryCreateRequest(ev.pathName);
-            case DIRECTORY_DELETE:
-                return new DirectoryDeleteRequest(ev.pathName);
-            case FILE_CREATE:
-                return new FileCreateRequest(fd);
-            case FILE_DELETE:
-                return new FileDeleteRequest(fd);
-            case FILE_MODIFY:
-                return new FileModifyRequest(fd);
-            default:
-                throw new RuntimeException("unrecognised event " + ev.event);
+    public void processFileSystemEvents(List<FileSystemEvent> events) {
+        // Most of the time every peer gets the same messages
+        List<Message> shared = null;
+        for (Peer peer : connection.getActivePeers()) {
+            long skipped = peer.takeWithheldChanges();
+            if (skipped == 0 && events.stream().noneMatch(ev -> ev.origin == peer)) {
+                if (shared == null) {
+                    shared = changeMessages(events, 0);
+                }
+                shared.forEach(peer::sendMessage);
+                continue;
+            }
+
+            List<FileSystemEvent> run = new ArrayList<>();
+            for (FileSystemEvent ev : events) {
+                if (ev.origin != peer) {
+                    run.add(ev);
+                    continue;
+                }
+                // The peer made this change itself, so don't echo it back
+                if (!run.isEmpty()) {
+                    changeMessages(run, skipped).forEach(peer::sendMessage);
+                    run.clear();
+                    skipped = 0;
+                }
+                ++skipped;
+            }
+            if (!run.isEmpty()) {
+                changeMessages(run, skipped).forEach(peer::sendMessage);
+                skipped = 0;
+            }
+            peer.withholdChanges(skipped);
+        }
+    }
+
+    /**
+     * Creates the requests for a run of consecutive events from our change log, combining them where possible. Each
+     * request that completes a prefix of the run is marked with the sequence number of its last event, and with how
+     * many changes before that it also accounts for, so that the receiver can acknowledge them all at once.
+     * @param skipped the number of changes just before the run that were not sent
+     */
+    private static List<Message> changeMessages(List<FileSystemEvent> events, long skipped) {
+        long acknowledged = events.get(0).sequence - 1 - skipped;
+        List<Message> messages = new ArrayList<>();
+        for (ChangeBatcher.Batch batch : ChangeBatcher.batches(events)) {
+            if (batch.completes.isJust()) {
+                long sequence = batch.completes.get().sequence;
+                batch.message.setSequence(fsManager().changeLogId(), sequence);
+                if (sequence - acknowledged > 1) {
+                    batch.message.setSkipped(sequence - acknowledged - 1);
+                }
+                acknowledged = sequence;
+            }
+            messages.add(batch.message);
         }
+        return messages;
     }
+
+    /**
+     * Creates the requests for a series of events from our change log, e.g. to catch a peer up.
+     */
+    public static Iterator<Message> changeMessages(Iterator<FileSystemEvent> events) {
+        return Iteration.flatten(Iteration.map(Iteration.chunk(events, ChangeBatcher.BATCH_LIMIT),
+                                               chunk -> changeMessages(chunk, 0).iterator()));
+    }
+
     private static void synchroniseFiles() {
-        fsManager().generateSyncEvents().forEach(get()::processFileSystemEvent);
+        for (Peer peer : get().connection.getActivePeers()) {
+            // Don't start another full synchronisation while one is in flight
+            if (!get().resyncs.isReceiving(peer)) {
+                requestChanges(peer, peer.getHostPort());
+            }
+            // Also compare the whole share directory, in case a change never made it through the change log. This
+            // costs a single message when nothing differs.
+            if (!get().resyncs.isSending(peer)) {
+                synchroniseFiles(peer);
+            }
+        }
     }
 
     public static int getPeerCount() {
@@ -135,11 +408,17 @@ public class PeerServer implements FileSystemObserver {
     private PeerServer() throws IOException {
         INSTANCE = Maybe.just(this);
         log.setLevel(Level.FINER);
+        changeCursors = new ChangeCursors();
 
         // Create the file system manager
         CfgValue<String> path = CfgValue.createString("path");
         path.setOnChanged(() -> log.warning("Path was changed in config, but will not be updated until restart"));
         fileSystemManager = new FileSystemManager(path.get());
+        // We acknowledge a change as soon as its download starts, so any download we discarded must be sent again
+        if (fileSystemManager.discardedTransfers()) {
+            log.info("discarded unfinished downloads; synchronising fully with every peer");
+            changeCursors.invalidateAll();
+        }
 
 		// Create the processor thread
         KeepAlive.submit(processor);
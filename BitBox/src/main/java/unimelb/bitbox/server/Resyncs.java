@@ -0,0 +1,130 @@
+package unimelb.bitbox.server;
+
+import unimelb.bitbox.messages.Message;
+import unimelb.bitbox.messages.ResyncComplete;
+import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.util.concurrency.Iteration;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the full synchronisations in flight with each peer, in both directions. A peer's cursor into our change log
+ * may only move to the head once it has everything in our share directory, so the last message of a full
+ * synchronisation is followed by a {@link ResyncComplete}.
+ * <br/>
+ * For a Merkle synchronisation, that is once every directory we asked the peer to compare has been answered, and the
+ * messages each answer produced have all been sent. For an archive, it is simply after the last segment.
+ *
+ * @author Eleanor McMurtry
+ */
+class Resyncs {
+    /**
+     * A full synchronisation we are sending a peer.
+     */
+    private static final class Sending {
+        final String logId;
+        final long head;
+        // The directories we have asked the peer to compare, and have not yet had an answer for
+        final Map<String, Integer> outstanding = new HashMap<>();
+
+        private Sending(String logId, long head) {
+            this.logId = logId;
+            this.head = head;
+        }
+    }
+
+    private final Map<Peer, Sending> sending = new ConcurrentHashMap<>();
+    // Whether a change from the synchronisation has failed since it started
+    private final Map<Peer, Boolean> receiving = new ConcurrentHashMap<>();
+
+    /**
+     * Starts a Merkle synchronisation with a peer, from the comparison of the whole share directory.
+     */
+    void start(Peer peer, String logId, long head) {
+        Sending resync = new Sending(logId, head);
+        resync.outstanding.put("", 1);
+        if (sending.put(peer, resync) == null) {
+            peer.addCloseTask(() -> sending.remove(peer));
+        }
+    }
+
+    /**
+     * @return whether we are still sending the peer a Merkle synchronisation
+     */
+    boolean isSending(Peer peer) {
+        return sending.containsKey(peer);
+    }
+
+    /**
+     * Records that we have asked the peer to compare a directory.
+     */
+    void requested(Peer peer, String pathName) {
+        Sending resync = sending.get(peer);
+        if (resync != null) {
+            synchronized (resync) {
+                resync.outstanding.merge(pathName, 1, Integer::sum);
+            }
+        }
+    }
+
+    /**
+     * Records that the peer has compared a directory. The returned stream should be sent after the messages the
+     * answer produced; once it is reached, if nothing else is outstanding, it ends the synchronisation.
+     */
+    Iterator<Message> answered(Peer peer, String pathName) {
+        Sending resync = sending.get(peer);
+        if (resync == null) {
+            return Collections.emptyIterator();
+        }
+        return Iteration.defer(() -> {
+            synchronized (resync) {
+                resync.outstanding.computeIfPresent(pathName, (key, count) -> count > 1 ? count - 1 : null);
+                if (!resync.outstanding.isEmpty() || !sending.remove(peer, resync)) {
+                    return Collections.emptyIterator();
+                }
+            }
+            return Collections.singletonList((Message) new ResyncComplete(resync.logId, resync.head)).iterator();
+        });
+    }
+
+    /**
+     * Records that the peer is sending us a full synchronisation. If the peer closes before it is complete, or a
+     * change from it can't be completed, we forget our place in its change log.
+     */
+    void awaiting(Peer peer) {
+        if (receiving.put(peer, false) == null) {
+            peer.addCloseTask(() -> {
+                if (receiving.remove(peer) != null) {
+                    PeerServer.forgetChanges(peer);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return whether the peer is still sending us a full synchronisation
+     */
+    boolean isReceiving(Peer peer) {
+        return receiving.containsKey(peer);
+    }
+
+    /**
+     * Records that a change from the peer could not be completed, so that a synchronisation in flight no longer
+     * brings us up to date.
+     */
+    void failed(Peer peer) {
+        receiving.replace(peer, true);
+    }
+
+    /**
+     * Ends the full synchronisation the peer was sending us.
+     * @return whether every change from it was completed
+     */
+    boolean received(Peer peer) {
+        return Boolean.FALSE.equals(receiving.remove(peer));
+    }
+}
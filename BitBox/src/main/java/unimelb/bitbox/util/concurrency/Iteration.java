@@ -1,8 +1,16 @@
 package unimelb.bitbox.util.concurrency;
 
+import functional.algebraic.Maybe;
+
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * A collection of iteration utilities.
@@ -27,5 +35,99 @@ public class Iteration {
         }
     }
 
+    /**
+     * Creates a lazy iterator that calls the generator for each element, until it returns nothing.
+     * The generator is called one element ahead, so that hasNext() can be answered.
+     */
+    public static <T> Iterator<T> generate(Supplier<Maybe<T>> generator) {
+        return new Iterator<T>() {
+            private Maybe<T> next = generator.get();
+
+            @Override
+            public boolean hasNext() {
+                return next.isJust();
+            }
+
+            @Override
+            public T next() {
+                if (!next.isJust()) {
+                    throw new NoSuchElementException();
+                }
+                T value = next.get();
+                next = generator.get();
+                return value;
+            }
+        };
+    }
+
+    /**
+     * Lazily applies a function to each element of an iterator.
+     */
+    public static <T, R> Iterator<R> map(Iterator<T> it, Function<? super T, ? extends R> func) {
+        return generate(() -> it.hasNext() ? Maybe.just(func.apply(it.next())) : Maybe.nothing());
+    }
+
+    /**
+     * Lazily joins a sequence of iterators into one.
+     */
+    public static <T> Iterator<T> flatten(Iterator<? extends Iterator<? extends T>> its) {
+        return new Iterator<T>() {
+            private Iterator<? extends T> current = null;
+
+            @Override
+            public boolean hasNext() {
+                while ((current == null || !current.hasNext()) && its.hasNext()) {
+                    current = its.next();
+                }
+                return current != null && current.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    /**
+     * Creates an iterator only once it is first needed, e.g. so that it reflects what has happened by the time the
+     * elements before it have been consumed.
+     */
+    public static <T> Iterator<T> defer(Supplier<? extends Iterator<? extends T>> supplier) {
+        return flatten(new Iterator<Iterator<? extends T>>() {
+            private boolean created = false;
+
+            @Override
+            public boolean hasNext() {
+                return !created;
+            }
+
+            @Override
+            public Iterator<? extends T> next() {
+                if (created) {
+                    throw new NoSuchElementException();
+                }
+                created = true;
+                return supplier.get();
+            }
+        });
+    }
+
+    /**
+     * Lazily groups the elements of an iterator into lists of at most the given size, in order.
+     */
+    public static <T> Iterator<List<T>> chunk(Iterator<T> it, int size) {
+        return generate(() -> {
+            List<T> chunk = new ArrayList<>();
+            while (chunk.size() < size && it.hasNext()) {
+                chunk.add(it.next());
+            }
+            return chunk.isEmpty() ? Maybe.nothing() : Maybe.just(chunk);
+        });
+    }
+
     private Iteration() {}
 }
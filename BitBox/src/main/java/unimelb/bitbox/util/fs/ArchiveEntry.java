@@ -0,0 +1,76 @@
+package unimelb.bitbox.util.fs;
+
+import functional.algebraic.Maybe;
+import functional.algebraic.Result;
+import unimelb.bitbox.util.network.IJSONData;
+import unimelb.bitbox.util.network.JSONDocument;
+import unimelb.bitbox.util.network.JSONException;
+
+import java.util.Base64;
+
+/**
+ * A single entry in an archive of the share directory (see {@link FileSystemManager#archiveEntries(long)}): either
+ * a directory, or a consecutive piece of a file's content. A file is made of one or more pieces, in order, and a
+ * file with no content has a single empty piece.
+ *
+ * @author Eleanor McMurtry
+ */
+public class ArchiveEntry implements IJSONData {
+    public final String pathName;
+    public final Maybe<FileDescriptor> fileDescriptor;
+    public final long offset;
+    public final byte[] content;
+
+    private ArchiveEntry(String pathName, Maybe<FileDescriptor> fileDescriptor, long offset, byte[] content) {
+        this.pathName = pathName;
+        this.fileDescriptor = fileDescriptor;
+        this.offset = offset;
+        this.content = content;
+    }
+
+    static ArchiveEntry directory(String pathName) {
+        return new ArchiveEntry(pathName, Maybe.nothing(), 0, new byte[0]);
+    }
+
+    static ArchiveEntry piece(FileDescriptor fd, long offset, byte[] content) {
+        return new ArchiveEntry(fd.pathName, Maybe.just(fd), offset, content);
+    }
+
+    public boolean isDirectory() {
+        return !fileDescriptor.isJust();
+    }
+
+    /**
+     * @return whether this is the last piece of its file
+     */
+    boolean completes() {
+        return fileDescriptor.map(fd -> offset + content.length == fd.fileSize()).orElse(false);
+    }
+
+    /**
+     * Produces an ArchiveEntry from the given {@link JSONDocument}.
+     */
+    public static Result<ArchiveEntry, JSONException> fromJSON(JSONDocument doc) {
+        return doc.getString("pathName").andThen(pathName -> {
+            if (doc.getBoolean("isDirectory").orElse(false)) {
+                return Result.value(directory(pathName));
+            }
+            return doc.getJSON("fileDescriptor").andThen(json -> FileDescriptor.fromJSON(pathName, json))
+                      .andThen(fd -> doc.getLong("offset")
+                      .andThen(offset -> doc.getString("content")
+                      .andThen(content -> Result.ofRuntime(() -> Base64.getDecoder().decode(content))
+                                                .mapError(e -> new JSONException("malformed content for " + pathName))
+                                                .map(bytes -> piece(fd, offset, bytes)))));
+        });
+    }
+
+    @Override
+    public JSONDocument toJSON() {
+        return fileDescriptor.map(fd -> fd.toJSON()
+                                          .append("isDirectory", false)
+                                          .append("offset", offset)
+                                          .append("content", Base64.getEncoder().encodeToString(content)))
+                             .orElse(new JSONDocument().append("pathName", pathName)
+                                                       .append("isDirectory", true));
+    }
+}
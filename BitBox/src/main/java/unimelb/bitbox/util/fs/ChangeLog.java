@@ -0,0 +1,253 @@
+package unimelb.bitbox.util.fs;
+
+import functional.algebraic.Maybe;
+import functional.algebraic.Result;
+import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.concurrency.Iteration;
+import unimelb.bitbox.util.config.Configuration;
+import unimelb.bitbox.util.network.JSONDocument;
+import unimelb.bitbox.util.network.JSONException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * A durable log of the changes made to the share directory. Every change is given a sequence number, so that a peer
+ * that has seen every change up to some sequence number only needs to be sent the changes after it.
+ * <br/>
+ * The log is stored one JSON document per line: a header with the log's ID and the last sequence number that was
+ * compacted away, then one line per change. Each change records the Merkle hash of the share after it was applied;
+ * if the share doesn't match the last recorded hash on startup, it was changed while we weren't watching, so a new
+ * log (with a new ID) is started and peers fall back to a full resynchronisation.
+ * <br/>
+ * Only the last <code>changeLogSize</code> changes are kept.
+ *
+ * @author Eleanor McMurtry
+ */
+class ChangeLog {
+    private static final String CHANGE_LOG_FILE = "changelog";
+    private static final long DEFAULT_SIZE = 10000;
+
+    private static final class Entry {
+        private final long sequence;
+        private final FileEventType event;
+        private final String pathName;
+        private final FileDescriptor fileDescriptor;
+        private final String oldPathName;
+        private final String hash;
+
+        private Entry(long sequence, FileEventType event, String pathName, FileDescriptor fileDescriptor,
+                      String oldPathName, String hash) {
+            this.sequence = sequence;
+            this.event = event;
+            this.pathName = pathName;
+            this.fileDescriptor = fileDescriptor;
+            this.oldPathName = oldPathName;
+            this.hash = hash;
+        }
+
+        private JSONDocument toJSON() {
+            JSONDocument doc = new JSONDocument().append("sequence", sequence)
+                                                 .append("event", event)
+                                                 .append("hash", hash);
+            if (fileDescriptor != null) {
+                doc.join(fileDescriptor);
+            }
+            if (oldPathName != null) {
+                doc.append("oldPathName", oldPathName);
+            }
+            return doc.append("pathName", pathName);
+        }
+
+        private static Result<Entry, JSONException> fromJSON(JSONDocument doc) {
+            return doc.getLong("sequence").andThen(sequence ->
+                   doc.getString("event").andThen(event ->
+                   doc.getString("pathName").andThen(pathName ->
+                   doc.getString("hash").map(hash -> {
+                       FileDescriptor fd = doc.getJSON("fileDescriptor")
+                                              .andThen(json -> FileDescriptor.fromJSON(pathName, json))
+                                              .orElse(null);
+                       return new Entry(sequence, FileEventType.valueOf(event), pathName, fd,
+                                        doc.getString("oldPathName").orElse(null), hash);
+                   }))));
+        }
+    }
+
+    // Readers iterate without holding the lock, so that a long tail can be sent lazily
+    private final Deque<Entry> entries = new ConcurrentLinkedDeque<>();
+    private int count = 0;
+    private String logId;
+    private long base;
+    private String baseHash;
+
+    /**
+     * Loads the log from disk, starting a new one if it is missing or doesn't match the current state of the share.
+     * @param rootHash the Merkle hash of the share directory after the initial scan
+     */
+    ChangeLog(String rootHash) {
+        load();
+        if (logId == null || !headHash().equals(rootHash)) {
+            if (logId != null) {
+                PeerServer.log().info("share directory changed while offline; starting a new change log");
+            }
+            logId = UUID.randomUUID().toString();
+            base = 0;
+            baseHash = rootHash;
+            entries.clear();
+            count = 0;
+            rewrite();
+        }
+    }
+
+    private static long maxSize() {
+        return Configuration.getConfigurationValue("changeLogSize")
+                            .map(Long::parseLong)
+                            .orElse(DEFAULT_SIZE);
+    }
+
+    private String headHash() {
+        return entries.isEmpty() ? baseHash : entries.getLast().hash;
+    }
+
+    synchronized String id() {
+        return logId;
+    }
+
+    synchronized long head() {
+        return entries.isEmpty() ? base : entries.getLast().sequence;
+    }
+
+    /**
+     * Records a batch of changes, and returns the events with their sequence numbers.
+     * @param rootHash the Merkle hash of the share directory after the changes
+     */
+    synchronized List<FileSystemEvent> append(List<FileSystemEvent> events, String rootHash) {
+        List<FileSystemEvent> sequenced = new ArrayList<>();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(CHANGE_LOG_FILE, true))) {
+            for (FileSystemEvent ev : events) {
+                FileDescriptor fd = isFileEvent(ev.event) ? ev.fileDescriptor : null;
+                Entry entry = new Entry(head() + 1, ev.event, ev.pathName, fd, ev.oldPathName, rootHash);
+                entries.addLast(entry);
+                ++count;
+                writer.write(entry.toJSON().toString());
+                writer.newLine();
+                sequenced.add(new FileSystemEvent(ev, entry.sequence));
+            }
+        } catch (IOException e) {
+            PeerServer.log().warning("failed writing change log: " + e.getMessage());
+        }
+
+        // Compact once the log is twice its allowed size, so that the file isn't rewritten on every change
+        long maxSize = Math.max(1, maxSize());
+        if (count > 2 * maxSize) {
+            while (count > maxSize) {
+                Entry dropped = entries.removeFirst();
+                --count;
+                base = dropped.sequence;
+                baseHash = dropped.hash;
+            }
+            rewrite();
+        }
+        return sequenced;
+    }
+
+    /**
+     * Returns the changes made after the given sequence number, as events for the given file system manager.
+     * The events are generated lazily, and include any changes appended while iterating. If the changes still to be
+     * sent are compacted away during iteration, it stops at the gap, and the peer falls back to a full
+     * synchronisation next time.
+     * @return the changes, or nothing if the log can't provide them (it's a different log, or they were compacted)
+     */
+    synchronized Maybe<Iterator<FileSystemEvent>> since(String id, long sequence, FileSystemManager fsManager) {
+        if (!logId.equals(id) || sequence < base || sequence > head()) {
+            return Maybe.nothing();
+        }
+        Iterator<Entry> it = entries.iterator();
+        long[] expected = {sequence + 1};
+        return Maybe.just(Iteration.generate(() -> {
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.sequence < expected[0]) {
+                    continue;
+                }
+                if (entry.sequence > expected[0]) {
+                    break;
+                }
+                ++expected[0];
+                return Maybe.just(new FileSystemEvent(fsManager.eventFromLog(entry.pathName, entry.event,
+                                                                             entry.fileDescriptor, entry.oldPathName),
+                                                      entry.sequence));
+            }
+            return Maybe.nothing();
+        }));
+    }
+
+    private static boolean isFileEvent(FileEventType event) {
+        return event == FileEventType.FILE_CREATE
+            || event == FileEventType.FILE_MODIFY
+            || event == FileEventType.FILE_MOVE
+            || event == FileEventType.FILE_DELETE;
+    }
+
+    private void load() {
+        try (BufferedReader reader = new BufferedReader(new FileReader(CHANGE_LOG_FILE))) {
+            JSONDocument header = JSONDocument.parse(reader.readLine()).get();
+            String id = header.getString("logId").get();
+            base = header.getLong("base").get();
+            baseHash = header.getString("hash").get();
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // A torn final line (e.g. from a crash) is simply ignored
+                JSONDocument.parse(line).andThen(Entry::fromJSON).ifOk(entry -> {
+                    entries.addLast(entry);
+                    ++count;
+                });
+            }
+            logId = id;
+        } catch (FileNotFoundException ignored) {
+            // This is fine, the log just might not exist yet
+        } catch (Exception e) {
+            PeerServer.log().warning("failed reading change log: " + e.getMessage());
+            entries.clear();
+            count = 0;
+        }
+    }
+
+    private void rewrite() {
+        String temp = CHANGE_LOG_FILE + ".tmp";
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(temp))) {
+            writer.write(new JSONDocument().append("logId", logId)
+                                           .append("base", base)
+                                           .append("hash", baseHash)
+                                           .toString());
+            writer.newLine();
+            for (Entry entry : entries) {
+                writer.write(entry.toJSON().toString());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            PeerServer.log().warning("failed writing change log: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(Paths.get(temp), Paths.get(CHANGE_LOG_FILE), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            PeerServer.log().warning("failed replacing change log: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package unimelb.bitbox.util.fs;
+
+import unimelb.bitbox.util.config.Configuration;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Holds back changes to files that are still being written. A changed file is only reported (and hashed) once its
+ * {@link FileStamp} has stayed the same for the quiet period given by <code>settleTime</code>, or once
+ * <code>settleMaxDelay</code> has passed since the change was first seen, whichever comes first.
+ * <br/>
+ * Since nothing is reported while a file is settling, a create followed by any number of modifications is reported
+ * as a single create, and a run of modifications as a single modify.
+ * <br/>
+ * Both values are in milliseconds. A <code>settleTime</code> of 0 reports every change immediately.
+ *
+ * @author Eleanor McMurtry
+ */
+class ChangeSettler {
+    private static final long DEFAULT_SETTLE_TIME = 2000;
+    private static final long DEFAULT_MAX_DELAY = 60000;
+
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+
+    private static final class Pending {
+        private final long firstSeen;
+        private long lastChanged;
+        private FileStamp stamp;
+
+        private Pending(FileStamp stamp, long now) {
+            this.stamp = stamp;
+            firstSeen = now;
+            lastChanged = now;
+        }
+    }
+
+    private static long configValue(String key, long defaultValue) {
+        return Configuration.getConfigurationValue(key)
+                            .map(Long::parseLong)
+                            .orElse(defaultValue);
+    }
+
+    /**
+     * Records that a file was seen with the given stamp, and decides whether its change can now be reported.
+     * @return true if the file has settled, in which case it is no longer tracked
+     */
+    boolean isSettled(String pathName, FileStamp stamp) {
+        long settleTime = configValue("settleTime", DEFAULT_SETTLE_TIME);
+        if (settleTime <= 0) {
+            pending.remove(pathName);
+            return true;
+        }
+
+        long now = System.currentTimeMillis();
+        Pending entry = pending.get(pathName);
+        if (entry == null) {
+            pending.put(pathName, new Pending(stamp, now));
+            return false;
+        }
+        if (!entry.stamp.equals(stamp)) {
+            entry.stamp = stamp;
+            entry.lastChanged = now;
+        }
+        if (now - entry.lastChanged >= settleTime
+                || now - entry.firstSeen >= configValue("settleMaxDelay", DEFAULT_MAX_DELAY)) {
+            pending.remove(pathName);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return whether a change to the file is being held back
+     */
+    boolean isPending(String pathName) {
+        return pending.containsKey(pathName);
+    }
+
+    /**
+     * Stops tracking a file, e.g. because it has returned to its last reported state.
+     */
+    void forget(String pathName) {
+        pending.remove(pathName);
+    }
+
+    /**
+     * Stops tracking any files that do not satisfy the predicate (e.g. because they were deleted while settling).
+     */
+    void retainIf(Predicate<? super String> pred) {
+        pending.keySet().removeIf(pred.negate());
+    }
+}
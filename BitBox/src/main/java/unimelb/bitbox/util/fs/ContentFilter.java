@@ -0,0 +1,117 @@
+package unimelb.bitbox.util.fs;
+
+import functional.algebraic.Maybe;
+
+import java.util.function.Supplier;
+
+/**
+ * A counting Bloom filter of the contents in the {@link ContentIndex}, kept up to date as digests are added and
+ * removed, from which a {@link ContentSummary} for peers is taken.
+ * <br/>
+ * Each bit of the filter is a one-byte counter, so that removing a digest only clears the bits no other digest
+ * shares. Counters that overflow stay full rather than wrap. When the filter holds more digests than it has room
+ * for, it doubles in size and is rebuilt from the index, like a hash table. Since a digest may be added or removed
+ * while it is rebuilt, the filter is occasionally slightly wrong, which costs peers no more than a missed shortcut.
+ *
+ * @author Eleanor McMurtry
+ */
+class ContentFilter {
+    private static final int MIN_SIZE = 1 << 16;
+    private static final int COUNTERS_PER_DIGEST = 8;
+    // Beyond this, a summary would say that a peer has almost everything, which is worse than no summary at all
+    private static final double MAX_FALSE_POSITIVES = 0.25;
+
+    private final Supplier<Iterable<Digests.Key>> digests;
+    private byte[] counters = new byte[MIN_SIZE];
+    private long count;
+
+    /**
+     * @param digests the digests currently in the index, used to rebuild the filter when it grows
+     */
+    ContentFilter(Supplier<Iterable<Digests.Key>> digests) {
+        this.digests = digests;
+    }
+
+    /**
+     * Records that some file now has content that no file had before. This is called before the digest is added to
+     * the index.
+     */
+    synchronized void add(Digests.Key key) {
+        if (count + 1 > counters.length / COUNTERS_PER_DIGEST && counters.length <= Integer.MAX_VALUE / 2) {
+            rebuild(counters.length * 2);
+        }
+        increment(key);
+        ++count;
+    }
+
+    /**
+     * Records that no file has the content any more. This is called once the digest has been removed from the index.
+     */
+    synchronized void remove(Digests.Key key) {
+        count = Math.max(0, count - 1);
+        for (int i = 0; i < ContentSummary.HASHES; ++i) {
+            int bit = ContentSummary.bit(key, i, counters.length);
+            // Full counters may have been incremented any number of times, so they are never decremented
+            if (counters[bit] != 0 && counters[bit] != (byte) 0xff) {
+                --counters[bit];
+            }
+        }
+    }
+
+    private void increment(Digests.Key key) {
+        for (int i = 0; i < ContentSummary.HASHES; ++i) {
+            int bit = ContentSummary.bit(key, i, counters.length);
+            if (counters[bit] != (byte) 0xff) {
+                ++counters[bit];
+            }
+        }
+    }
+
+    private void rebuild(int size) {
+        counters = new byte[size];
+        count = 0;
+        for (Digests.Key key : digests.get()) {
+            increment(key);
+            ++count;
+        }
+    }
+
+    /**
+     * Takes a summary of the filter, folded in half while it still has room for the digests it holds, and then as
+     * often as it takes to fit.
+     * @param maxBytes the most bytes the summary may take
+     * @return the summary, or nothing if it would be too full to be of use
+     */
+    Maybe<ContentSummary> summary(long maxBytes) {
+        byte[] bits;
+        long digests;
+        synchronized (this) {
+            digests = count;
+            bits = new byte[counters.length / 8];
+            for (int bit = 0; bit < counters.length; ++bit) {
+                if (counters[bit] != 0) {
+                    bits[bit >>> 3] |= 1 << (bit & 7);
+                }
+            }
+        }
+
+        // Bits are chosen modulo the size, so bit i of the folded filter is set if bit i of either half was
+        while (bits.length > 1 && (bits.length > maxBytes || bits.length * 4L >= digests * COUNTERS_PER_DIGEST)) {
+            byte[] folded = new byte[bits.length / 2];
+            for (int i = 0; i < folded.length; ++i) {
+                folded[i] = (byte) (bits[i] | bits[i + folded.length]);
+            }
+            bits = folded;
+        }
+
+        long set = 0;
+        for (byte b : bits) {
+            set += Integer.bitCount(b & 0xff);
+        }
+        double falsePositives = Math.pow((double) set / (bits.length * 8L), ContentSummary.HASHES);
+        if (bits.length > maxBytes || falsePositives > MAX_FALSE_POSITIVES) {
+            return Maybe.nothing();
+        }
+        return Maybe.just(new ContentSummary(bits, ContentSummary.HASHES));
+    }
+}
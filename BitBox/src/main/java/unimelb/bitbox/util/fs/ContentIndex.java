@@ -0,0 +1,73 @@
+package unimelb.bitbox.util.fs;
+
+import functional.algebraic.Maybe;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds the watched files that have a given content (its MD5 digest), used to serve and shortcut transfers from any
+ * local copy of the content.
+ * <br/>
+ * The files are indexed by the {@link FileMetadataStore} itself, so that an off-heap store keeps the index off the
+ * heap as well. Changes to the watched files go through here, so that a {@link ContentFilter} of the digests can be
+ * kept alongside, for the summaries we send peers.
+ *
+ * @author Eleanor McMurtry
+ */
+class ContentIndex {
+    private final FileMetadataStore files;
+    private final ContentFilter filter;
+
+    ContentIndex(FileMetadataStore files) {
+        this.files = files;
+        filter = new ContentFilter(files::contents);
+    }
+
+    /**
+     * Stores a file's metadata, recording its content.
+     */
+    void put(String pathName, FileDescriptor fd, FileStamp stamp) {
+        Maybe<Digests.Key> previous = files.get(pathName).andThen(old -> Digests.Key.of(old.md5()));
+        Maybe<Digests.Key> key = Digests.Key.of(fd.md5());
+        if (key.isJust() && !files.hasContent(key.get())) {
+            filter.add(key.get());
+        }
+        files.put(pathName, fd, stamp);
+        previous.consume(this::forgetIfGone);
+    }
+
+    /**
+     * Removes a file's metadata, and its content if no other file has it.
+     */
+    void remove(String pathName) {
+        files.remove(pathName).consume(fd -> Digests.Key.of(fd.md5()).consume(this::forgetIfGone));
+    }
+
+    private void forgetIfGone(Digests.Key key) {
+        if (!files.hasContent(key)) {
+            filter.remove(key);
+        }
+    }
+
+    /**
+     * @return whether any file has the given content
+     */
+    boolean contains(Digests.Key key) {
+        return files.hasContent(key);
+    }
+
+    /**
+     * @see ContentFilter#summary(long)
+     */
+    Maybe<ContentSummary> summary(long maxBytes) {
+        return filter.summary(maxBytes);
+    }
+
+    /**
+     * @return a snapshot of the files with the given content, which is not affected by later changes
+     */
+    List<String> pathsOf(String md5) {
+        return Digests.Key.of(md5).map(files::pathsOf).orElse(Collections.emptyList());
+    }
+}
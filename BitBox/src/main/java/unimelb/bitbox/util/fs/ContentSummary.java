@@ -0,0 +1,87 @@
+package unimelb.bitbox.util.fs;
+
+import functional.algebraic.Result;
+import unimelb.bitbox.util.network.IJSONData;
+import unimelb.bitbox.util.network.JSONDocument;
+import unimelb.bitbox.util.network.JSONException;
+
+import java.util.Base64;
+
+/**
+ * A Bloom filter of the file contents (MD5 digests) a peer holds, which peers send each other so that they know which
+ * files the other can copy from content it already has, rather than download (see {@link ContentFilter}).
+ * <br/>
+ * A summary can say a peer has content that it doesn't, but never the reverse, so it is only used to decide what to
+ * send first and what is worth sending inline. The filter has a power-of-two number of bits, so that a larger filter
+ * can be folded in half to fit in a message.
+ *
+ * @author Eleanor McMurtry
+ */
+public class ContentSummary implements IJSONData {
+    static final int HASHES = 4;
+    private static final int MAX_HASHES = 16;
+
+    private final byte[] bits;
+    private final int hashes;
+
+    ContentSummary(byte[] bits, int hashes) {
+        this.bits = bits;
+        this.hashes = hashes;
+    }
+
+    /**
+     * @return the bit that the given probe of a digest sets in a filter of the given size, a power of two
+     */
+    static int bit(Digests.Key key, int probe, long size) {
+        return (int) (key.probe(probe) & (size - 1));
+    }
+
+    /**
+     * @return whether the peer might have the content; if not, it certainly doesn't
+     */
+    public synchronized boolean mightContain(String md5) {
+        return Digests.Key.of(md5).map(key -> {
+            for (int i = 0; i < hashes; ++i) {
+                int bit = bit(key, i, bits.length * 8L);
+                if ((bits[bit >>> 3] & (1 << (bit & 7))) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }).orElse(false);
+    }
+
+    /**
+     * Records that the peer now has the content, e.g. because it has accepted a file we sent it.
+     */
+    public synchronized void add(String md5) {
+        Digests.Key.of(md5).consume(key -> {
+            for (int i = 0; i < hashes; ++i) {
+                int bit = bit(key, i, bits.length * 8L);
+                bits[bit >>> 3] |= 1 << (bit & 7);
+            }
+        });
+    }
+
+    /**
+     * Produces a ContentSummary from the given {@link JSONDocument}.
+     */
+    public static Result<ContentSummary, JSONException> fromJSON(JSONDocument doc) {
+        return doc.getLong("hashes").andThen(hashes -> doc.getString("bits").andThen(encoded ->
+               Result.ofRuntime(() -> Base64.getDecoder().decode(encoded))
+                     .mapError(e -> new JSONException("malformed content summary"))
+                     .andThen(bits -> {
+                         if (hashes < 1 || hashes > MAX_HASHES || bits.length == 0
+                                 || Integer.bitCount(bits.length) != 1) {
+                             return Result.error(new JSONException("malformed content summary"));
+                         }
+                         return Result.value(new ContentSummary(bits, hashes.intValue()));
+                     })));
+    }
+
+    @Override
+    public synchronized JSONDocument toJSON() {
+        return new JSONDocument().append("hashes", hashes)
+                                 .append("bits", Base64.getEncoder().encodeToString(bits));
+    }
+}
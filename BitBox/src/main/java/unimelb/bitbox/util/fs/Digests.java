@@ -0,0 +1,143 @@
+package unimelb.bitbox.util.fs;
+
+import functional.algebraic.Maybe;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Conversions between the hexadecimal MD5 strings used in the protocol and their 16-byte binary form.
+ *
+ * @author Eleanor McMurtry
+ */
+final class Digests {
+    static final int MD5_BYTES = 16;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Encodes a digest as a lower-case hexadecimal string.
+     */
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Decodes a hexadecimal MD5 string.
+     * @throws IllegalArgumentException if the string is not a valid MD5 digest
+     */
+    static byte[] fromHex(String md5) {
+        if (md5.length() != MD5_BYTES * 2) {
+            throw new IllegalArgumentException("malformed md5: " + md5);
+        }
+        byte[] bytes = new byte[MD5_BYTES];
+        for (int i = 0; i < MD5_BYTES; ++i) {
+            int hi = Character.digit(md5.charAt(2 * i), 16);
+            int lo = Character.digit(md5.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("malformed md5: " + md5);
+            }
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+        return bytes;
+    }
+
+    /**
+     * Computes the MD5 digest of some content.
+     */
+    static byte[] md5(byte[] content) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            // If MD5 isn't available, we're screwed anyway.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A digest in binary, as a pair of longs rather than as a 32-character string, for use as a key in large maps.
+     */
+    static final class Key {
+        private final long high;
+        private final long low;
+
+        private Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        /**
+         * @return the key for the digest, or nothing if it is not a valid MD5 digest (e.g. from a misbehaving peer)
+         */
+        static Maybe<Key> of(String md5) {
+            try {
+                return Maybe.just(of(fromHex(md5)));
+            } catch (IllegalArgumentException e) {
+                return Maybe.nothing();
+            }
+        }
+
+        static Key of(byte[] bytes) {
+            long high = 0;
+            long low = 0;
+            for (int i = 0; i < 8; ++i) {
+                high = (high << 8) | (bytes[i] & 0xff);
+                low = (low << 8) | (bytes[i + 8] & 0xff);
+            }
+            return new Key(high, low);
+        }
+
+        /**
+         * Reads a digest stored in binary at the given position of a buffer.
+         */
+        static Key read(ByteBuffer buffer, int position) {
+            return new Key(buffer.getLong(position), buffer.getLong(position + Long.BYTES));
+        }
+
+        /**
+         * @return whether the digest stored in binary at the given position of a buffer is this one
+         */
+        boolean matches(ByteBuffer buffer, int position) {
+            return buffer.getLong(position) == high && buffer.getLong(position + Long.BYTES) == low;
+        }
+
+        /**
+         * @return the i-th of a series of independent hashes of the digest, for a Bloom filter
+         */
+        long probe(int i) {
+            // The digest is already uniformly distributed, so double hashing with its two halves is enough
+            return high + i * (low | 1);
+        }
+
+        byte[] toBytes() {
+            byte[] bytes = new byte[MD5_BYTES];
+            for (int i = 0; i < 8; ++i) {
+                bytes[7 - i] = (byte) (high >>> (8 * i));
+                bytes[15 - i] = (byte) (low >>> (8 * i));
+            }
+            return bytes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return high == other.high && low == other.low;
+        }
+
+        @Override
+        public int hashCode() {
+            // The digest is already uniformly distributed
+            return (int) low;
+        }
+    }
+
+    private Digests() {}
+}
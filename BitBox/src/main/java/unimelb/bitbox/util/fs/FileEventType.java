@@ -24,6 +24,11 @@ public enum FileEventType {
      * An existing file has been modified.
      */
     FILE_MODIFY,
+    /**
+     * An existing file has been moved to a new name, without changing
+     * its content.
+     */
+    FILE_MOVE,
     /**
      * A new directory has been created. The parent directory must
      * exist for this event to be emitted.
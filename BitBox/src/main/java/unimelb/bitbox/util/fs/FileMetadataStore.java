@@ -0,0 +1,84 @@
+package unimelb.bitbox.util.fs;
+
+import functional.algebraic.Maybe;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Stores the metadata of every watched file, keyed by path name relative to the share directory, and indexes the files
+ * by their content. The {@link MerkleTree} reads the digests of the files in each directory from here, rather than
+ * keeping its own copy.
+ * The {@link FileSystemManager} chooses an implementation on startup, according to the
+ * <code>metadataStore</code> configuration value:
+ * <li><code>heap</code> (default): {@link HeapMetadataStore}</li>
+ * <li><code>offheap</code>: {@link OffHeapMetadataStore}</li>
+ * <br/>
+ * Implementations need not return the same {@link FileDescriptor} object twice, so callers must not
+ * synchronise on the returned descriptors.
+ *
+ * @author Eleanor McMurtry
+ */
+interface FileMetadataStore {
+    Maybe<FileDescriptor> get(String pathName);
+
+    /**
+     * Looks up the attributes the file had when it was last hashed.
+     */
+    Maybe<FileStamp> stamp(String pathName);
+    boolean containsKey(String pathName);
+    void put(String pathName, FileDescriptor fd, FileStamp stamp);
+    Maybe<FileDescriptor> remove(String pathName);
+
+    /**
+     * Performs an action on every stored file.
+     */
+    void forEach(BiConsumer<? super String, ? super FileDescriptor> action);
+
+    /**
+     * Lazily lists the stored files at or below the given path.
+     */
+    Iterator<String> keysUnder(String pathName);
+
+    /**
+     * Lists the stored files directly inside the given directory.
+     */
+    List<String> childKeys(String pathName);
+
+    /**
+     * Performs an action on every stored file directly inside the given directory, given its name (rather than its
+     * path name) and the MD5 digest of its content in binary.
+     */
+    void forEachChild(String pathName, BiConsumer<? super String, ? super byte[]> action);
+
+    /**
+     * @return a snapshot of all stored path names
+     */
+    List<String> keys();
+    int size();
+
+    /**
+     * @return a snapshot of the stored files with the given content
+     */
+    List<String> pathsOf(Digests.Key content);
+
+    /**
+     * @return whether any stored file has the given content
+     */
+    boolean hasContent(Digests.Key content);
+
+    /**
+     * @return a snapshot of the distinct contents of the stored files
+     */
+    List<Digests.Key> contents();
+
+    /**
+     * Creates the store selected in the configuration file.
+     */
+    static FileMetadataStore create(String type) {
+        return type.equalsIgnoreCase("offheap")
+               ? new OffHeapMetadataStore()
+               : new HeapMetadataStore();
+    }
+}
@@ -0,0 +1,119 @@
+package unimelb.bitbox.util.fs;
+
+import functional.algebraic.Maybe;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The attributes of a file that the scanner uses to decide whether the file has changed since it was last hashed:
+ * its size, modification time, status change time (ctime), and identity (device and inode).
+ * <br/>
+ * Comparing all of them catches rewrites that leave the modification time unchanged, such as an atomic replace by
+ * rename, or a tool that restores the original timestamp. They are read in a single system call; on platforms
+ * without the unix attribute view, the status change time and identity are left as 0.
+ *
+ * @author Eleanor McMurtry
+ */
+final class FileStamp {
+    private static final boolean UNIX_VIEW = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+    private static final String ATTRIBUTES = UNIX_VIEW
+            ? "unix:size,lastModifiedTime,ctime,dev,ino,isDirectory,isRegularFile"
+            : "size,lastModifiedTime,isDirectory,isRegularFile";
+
+    final long fileSize;
+    final long lastModified;
+    final long changed;
+    final long device;
+    final long inode;
+
+    FileStamp(long fileSize, long lastModified, long changed, long device, long inode) {
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.changed = changed;
+        this.device = device;
+        this.inode = inode;
+    }
+
+    /**
+     * A directory entry as the scanner sees it: its stamp, and what kind of entry it is.
+     */
+    static final class Entry {
+        final FileStamp stamp;
+        final boolean isDirectory;
+        final boolean isRegularFile;
+
+        private Entry(FileStamp stamp, boolean isDirectory, boolean isRegularFile) {
+            this.stamp = stamp;
+            this.isDirectory = isDirectory;
+            this.isRegularFile = isRegularFile;
+        }
+    }
+
+    /**
+     * Reads the stamp and type of a directory entry, following symbolic links.
+     */
+    static Entry readEntry(Path path) throws IOException {
+        Map<String, Object> attrs = Files.readAttributes(path, ATTRIBUTES);
+        FileStamp stamp = new FileStamp((Long) attrs.get("size"),
+                                        ((FileTime) attrs.get("lastModifiedTime")).toMillis(),
+                                        time(attrs.get("ctime")),
+                                        number(attrs.get("dev")),
+                                        number(attrs.get("ino")));
+        return new Entry(stamp, (Boolean) attrs.get("isDirectory"), (Boolean) attrs.get("isRegularFile"));
+    }
+
+    /**
+     * Reads a fresh stamp for the given file.
+     */
+    static FileStamp read(Path path) throws IOException {
+        return readEntry(path).stamp;
+    }
+
+    private static long time(Object value) {
+        return value instanceof FileTime ? ((FileTime) value).to(TimeUnit.MICROSECONDS) : 0;
+    }
+
+    private static long number(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    /**
+     * @return the device and inode of the file, which stay the same when it is moved within a file system, or
+     *         nothing if the platform doesn't provide them
+     */
+    Maybe<List<Long>> identity() {
+        return inode == 0 ? Maybe.nothing() : Maybe.just(Arrays.asList(device, inode));
+    }
+
+    @Override
+    public boolean equals(Object rhs) {
+        if (rhs instanceof FileStamp) {
+            FileStamp other = (FileStamp) rhs;
+            return fileSize == other.fileSize
+                    && lastModified == other.lastModified
+                    && changed == other.changed
+                    && device == other.device
+                    && inode == other.inode;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(fileSize) * 31 + Long.hashCode(lastModified);
+    }
+
+    @Override
+    public String toString() {
+        return "size " + fileSize + ", mtime " + lastModified + ", ctime " + changed + ", device " + device +
+               ", inode " + inode;
+    }
+}
@@ -1,15 +1,22 @@
 package unimelb.bitbox.util.fs;
 
+import functional.algebraic.Maybe;
+import unimelb.bitbox.peers.Peer;
+
 import java.nio.file.FileSystems;
 
 /**
  * Describes the case when a file is
- * created/deleted/modified or when a directory is created/deleted.
+ * created/deleted/modified/moved or when a directory is created/deleted.
  * <li>{@link #name}</li>
  * <li>{@link #path}</li>
  * <li>{@link #pathName}</li>
  * <li>{@link #event}</li>
  * <li>{@link #fileDescriptor}</li>
+ * <li>{@link #oldPathName}</li>
+ * <li>{@link #sequence}</li>
+ * <li>{@link #origin}</li>
+ * <li>{@link #content}</li>
  *
  * @author Aaron Harwood
  */
@@ -36,6 +43,23 @@ public class FileSystemEvent {
      * Additional information for the file/directory.
      */
     public final FileDescriptor fileDescriptor;
+    /**
+     * For a moved file, the pathname it was moved from, <i>relative</i> to the share directory; otherwise null.
+     */
+    public final String oldPathName;
+    /**
+     * The position of this event in the change log, or 0 if it was not logged.
+     */
+    public final long sequence;
+    /**
+     * The peer whose request caused this change, or null if it was made locally.
+     */
+    public final Peer origin;
+    /**
+     * For a small file that was created or modified, its content, read when the event was produced so that it can be
+     * sent along with the request; otherwise nothing.
+     */
+    public final Maybe<byte[]> content;
 
     /**
      * Constructor for file events.
@@ -44,13 +68,39 @@ public class FileSystemEvent {
      * @param name           The name of the file, excluding its path.
      * @param event          The type of event.
      * @param fileDescriptor The associated file descriptor for the file.
+     * @param content        The content of the file, if it is small enough to send inline.
      */
-    FileSystemEvent(String path, String name, CharSequence root, FileEventType event, FileDescriptor fileDescriptor) {
+    FileSystemEvent(String path, String name, CharSequence root, FileEventType event, FileDescriptor fileDescriptor,
+                    Maybe<byte[]> content) {
         this.path = path;
         this.name = name;
         pathName = (path + FileSystems.getDefault().getSeparator() + name).substring(root.length() + 1);
         this.fileDescriptor = FileDescriptor.rename(fileDescriptor, pathName);
         this.event = event;
+        oldPathName = null;
+        sequence = 0;
+        origin = null;
+        this.content = content;
+    }
+
+    /**
+     * Constructor for file move events.
+     *
+     * @param path           The path to the file's new location, including the share directory.
+     * @param name           The new name of the file, excluding its path.
+     * @param fileDescriptor The associated file descriptor for the file.
+     * @param oldPathName    The pathname the file was moved from, relative to the share directory.
+     */
+    FileSystemEvent(String path, String name, CharSequence root, FileDescriptor fileDescriptor, String oldPathName) {
+        this.path = path;
+        this.name = name;
+        pathName = (path + FileSystems.getDefault().getSeparator() + name).substring(root.length() + 1);
+        this.fileDescriptor = FileDescriptor.rename(fileDescriptor, pathName);
+        event = FileEventType.FILE_MOVE;
+        this.oldPathName = oldPathName;
+        sequence = 0;
+        origin = null;
+        content = Maybe.nothing();
     }
 
     /**
@@ -66,9 +116,49 @@ public class FileSystemEvent {
         pathName = (path + FileSystems.getDefault().getSeparator() + name).substring(root.length() + 1);
         fileDescriptor = FileDescriptor.directory(pathName);
         this.event = event;
+        oldPathName = null;
+        sequence = 0;
+        origin = null;
+        content = Maybe.nothing();
+    }
+
+    /**
+     * Constructor for events that have been recorded in the change log.
+     *
+     * @param src      The event that was recorded.
+     * @param sequence The event's position in the change log.
+     */
+    FileSystemEvent(FileSystemEvent src, long sequence) {
+        path = src.path;
+        name = src.name;
+        pathName = src.pathName;
+        fileDescriptor = src.fileDescriptor;
+        event = src.event;
+        oldPathName = src.oldPathName;
+        this.sequence = sequence;
+        origin = src.origin;
+        content = src.content;
+    }
+
+    /**
+     * Constructor for events caused by a peer.
+     *
+     * @param src    The event.
+     * @param origin The peer that caused it.
+     */
+    FileSystemEvent(FileSystemEvent src, Peer origin) {
+        path = src.path;
+        name = src.name;
+        pathName = src.pathName;
+        fileDescriptor = src.fileDescriptor;
+        event = src.event;
+        oldPathName = src.oldPathName;
+        sequence = src.sequence;
+        this.origin = origin;
+        content = src.content;
     }
 
     public String toString() {
-        return event.name() + " " + pathName;
+        return event.name() + " " + (oldPathName != null ? oldPathName + " -> " : "") + pathName;
     }
 }
\ No newline at end of file
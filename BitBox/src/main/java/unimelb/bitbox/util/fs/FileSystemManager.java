@@ -3,7 +3,10 @@ package unimelb.bitbox.util.fs;
 import functional.algebraic.Maybe;
 import functional.algebraic.Result;
 import functional.throwing.ThrowingFunction;
+import unimelb.bitbox.peers.Peer;
 import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.concurrency.Iteration;
+import unimelb.bitbox.util.config.Configuration;
 import unimelb.bitbox.util.network.FileTransfer;
 
 import java.io.*;
@@ -11,10 +14,15 @@ import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 
 /**
@@ -28,6 +36,7 @@ import java.util.function.Predicate;
  * The file system manager also provides an API
  * for safely making modifications to the files and directories in the share directory:
  * <li>{@link #cancelFileLoader(String)}</li>
+ * <li>{@link #changesSince(String, long)}</li>
  * <li>{@link #createFileLoader(FileDescriptor)}</li>
  * <li>{@link #checkShortcut(FileDescriptor)}</li>
  * <li>{@link #checkWriteComplete(FileDescriptor)}</li>
@@ -36,12 +45,16 @@ import java.util.function.Predicate;
  * <li>{@link #dirNameExists(String)}</li>
  * <li>{@link #fileExists(FileDescriptor)}</li>
  * <li>{@link #fileMatches(FileDescriptor)}</li>
- * <li>{@link #generateSyncEvents()}</li>
+ * <li>{@link #fileDescriptor(String)}</li>
+ * <li>{@link #generateSyncEvents(String)}</li>
  * <li>{@link #isSafePathName(String)}</li>
  * <li>{@link #readFile(String, long, long)}</li>
+ * <li>{@link #syncChildren(String)}</li>
+ * <li>{@link #syncHash(String)}</li>
  * <li>{@link #makeDirectory(String)}</li>
+ * <li>{@link #moveFile(String, FileDescriptor)}</li>
  * <li>{@link #modifyFileLoader(String, String, long, long)}</li>
- * <li>{@link #writeFile(String, ByteBuffer, long)}</li>
+ * <li>{@link #writeFile(String, ByteBuffer, long, Maybe)}</li>
  *
  * @author Aaron Harwood
  * @author Andrew Linxi Wang (contributions to Windows compatibility)
@@ -54,6 +67,12 @@ public final class FileSystemManager extends Thread {
      * as they are ignored by the file system monitor.
      */
     private final String loadingSuffix = "(bitbox)";
+    // Whether the initial scan deleted any downloads that were cut short when we last stopped
+    private boolean discardedTransfers = false;
+
+    // How often files waiting in the pack store are written into the share, and how often the packs are compacted
+    private static final long UNPACK_INTERVAL = 200;
+    private static final long COMPACT_INTERVAL = 10 * 60 * 1000;
 
     /**
      * Construct a new file system manager. If the supplied share directory is not a directory
@@ -65,9 +84,13 @@ public final class FileSystemManager extends Thread {
     public FileSystemManager(String root) throws IOException {
         fileSystemObserver = PeerServer.get();
         this.root = root;
-        watchedFiles = new ConcurrentHashMap<>();
-        watchedDirectories = ConcurrentHashMap.newKeySet();
-        hashMap = new ConcurrentHashMap<>();
+        rootPath = Paths.get(root);
+        snapshots = new ReadSnapshots(rootPath.resolve("snapshots" + loadingSuffix), shortcuts);
+        ignoreRules = new IgnoreRules(root);
+        watchedFiles = FileMetadataStore.create(Configuration.getConfigurationValue("metadataStore").orElse("heap"));
+        contentIndex = new ContentIndex(watchedFiles);
+        merkleTree = new MerkleTree(watchedFiles);
+        watchedDirectories = new PathIndex<>();
         File file = new File(root);
         if (!file.exists() || !file.isDirectory()) {
             PeerServer.log().severe("incorrect root given: " + root);
@@ -75,9 +98,11 @@ public final class FileSystemManager extends Thread {
         } else {
             canonicalRoot = file.getCanonicalPath();
             PeerServer.log().fine("monitoring " + canonicalRoot);
-            initialScanDirectoryTree(root);
+            initialScanDirectoryTree();
+            changeLog = new ChangeLog(merkleTree.hash("").get());
             PeerServer.log().fine("starting file system monitor thread");
             start();
+            packStore.consume(this::startPackWorker);
         }
     }
 
@@ -111,6 +136,17 @@ public final class FileSystemManager extends Thread {
                 canonicalName.length() > canonicalRoot.length() + 1;
     }
 
+    /**
+     * Returns true if the path name is excluded from sharing by the ignore rules (see {@link IgnoreRules}), either
+     * itself or because a directory containing it is.
+     *
+     * @param pathName    The path name to test, relative to the share directory.
+     * @param isDirectory Whether the path name refers to a directory.
+     */
+    public boolean isIgnored(String pathName, boolean isDirectory) {
+        return ignoreRules.isIgnored(separatorsToSystem(pathName), isDirectory);
+    }
+
     // directories
 
     /**
@@ -121,57 +157,98 @@ public final class FileSystemManager extends Thread {
      * @return boolean True if the directory exists.
      */
     public boolean dirNameExists(String pathName) {
-        pathName = separatorsToSystem(pathName);
-        return watchedDirectories.contains(root + FileSystems.getDefault().getSeparator() + pathName);
+        return watchedDirectories.containsKey(separatorsToSystem(pathName));
     }
 
 
     /**
-     * Attempts to make a directory, the parent of the directory
-     * must already exist.
+     * Attempts to make a directory. Any missing parent directories
+     * are made too.
      *
      * @param pathName The name of the directory to make, relative
      *                 to the share directory.
      */
     public void makeDirectory(String pathName) throws FileManagerException {
         pathName = separatorsToSystem(pathName);
+        makeParents(pathName);
         File file = new File(root + FileSystems.getDefault().getSeparator() + pathName);
         FileManagerException.check(file.mkdir(), "Failed creating directory " + pathName);
+        touchParent(pathName);
+    }
+
+    /**
+     * Attempts to make several directories at once. Any missing parent directories are made too, so the order
+     * doesn't matter. A directory that cannot be made does not stop the others.
+     *
+     * @param pathNames The names of the directories to make, relative to the share directory.
+     * @return the reason for each directory that could not be made
+     */
+    public Map<String, String> makeDirectories(List<String> pathNames) {
+        Map<String, String> failures = new LinkedHashMap<>();
+        Set<String> parents = new HashSet<>();
+        for (String pathName : pathNames) {
+            String systemPathName = separatorsToSystem(pathName);
+            try {
+                makeParents(systemPathName);
+                FileManagerException.check(new File(fullPath(systemPathName)).mkdir(),
+                                           "Failed creating directory " + systemPathName);
+            } catch (FileManagerException e) {
+                failures.put(pathName, e.getMessage());
+                continue;
+            }
+            parents.add(Maybe.of(new File(systemPathName).getParent()).orElse(""));
+        }
+        // Most of the parents are among the new directories, which the scanner will walk anyway
+        long now = System.currentTimeMillis();
+        parents.forEach(parent -> scheduler.touch(parent, now));
+        return failures;
+    }
+
+    /**
+     * Makes any missing directories above a path, since a change from a peer can arrive before the directories that
+     * contain it. The scanner is told about the highest new directory, and finds the rest by walking it.
+     */
+    private void makeParents(String pathName) throws FileManagerException {
+        String parent = new File(pathName).getParent();
+        if (parent == null || new File(fullPath(parent)).isDirectory()) {
+            return;
+        }
+        String highest = parent;
+        for (String above = new File(highest).getParent();
+             above != null && !new File(fullPath(above)).isDirectory();
+             above = new File(above).getParent()) {
+            highest = above;
+        }
+        try {
+            Files.createDirectories(Paths.get(fullPath(parent)));
+        } catch (IOException e) {
+            throw new FileManagerException("failed creating parent directories of " + pathName + ": " + e.getMessage());
+        }
+        touchParent(highest);
     }
 
     /**
-     * Attempts to delete a directory, the directory must be
-     * empty.
+     * Attempts to delete a directory and everything in it. Any transfers into the directory are cancelled first.
+     * The tree is deleted in parallel (see {@link TreeDeleter}); this waits for it to finish.
      *
      * @param pathName The name of the directory to delete, relative
      *                 to the share directory.
      */
     public void deleteDirectory(String pathName) throws FileManagerException {
         final String systemPathName = separatorsToSystem(pathName);
-        String dirPath = root + FileSystems.getDefault().getSeparator() + systemPathName;
         // cancel any transfers in this directory
-        loadingFiles.cancelIf(loader -> !watchedFiles.containsKey(loader.fileDescriptor.pathName)
-                                        && loader.fileDescriptor.pathName.contains(dirPath));
+        loadingFiles.cancelUnder(systemPathName);
 
-        File file = new File(dirPath);
-        if (file.isDirectory()) {
-            deleteDirectoryRecursively(file);
-        } else {
-            throw new FileManagerException("Path " + systemPathName + " is not a directory");
-        }
-    }
-
-    private void deleteDirectoryRecursively(File file) throws FileManagerException {
-        if (file.isDirectory()) {
-            File[] entries = file.listFiles();
-            if (entries != null) {
-                for (File entry : entries) {
-                    deleteDirectoryRecursively(entry);
-                }
-            }
+        Path directory = Paths.get(fullPath(systemPathName));
+        FileManagerException.check(Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS),
+                                   "Path " + systemPathName + " is not a directory");
+        try {
+            treeDeleter.delete(directory).join();
+        } catch (CompletionException e) {
+            throw new FileManagerException("failed deleting " + systemPathName + ": " + e.getCause().getMessage());
+        } finally {
+            touchParent(systemPathName);
         }
-        FileManagerException.check(file.delete(), "failed deleting " + file.getPath());
-        PeerServer.log().fine("deleting " + file.getPath());
     }
 
     // files
@@ -185,7 +262,7 @@ public final class FileSystemManager extends Thread {
      * currently loading, returns true.
      */
     public boolean fileExists(FileDescriptor fd) {
-        return watchedFiles.containsKey(fullPath(fd));
+        return watchedFiles.containsKey(relativePath(fd));
     }
 
     /**
@@ -197,11 +274,13 @@ public final class FileSystemManager extends Thread {
      * currently loading, returns true against the existing file.
      */
     public boolean fileMatches(FileDescriptor fd) {
-        return fileExists(fd) && watchedFiles.get(fullPath(fd)).md5().equals(fd.md5());
+        return watchedFiles.get(relativePath(fd))
+                           .map(existing -> existing.md5().equals(fd.md5()))
+                           .orElse(false);
     }
 
     public boolean fileLoading(FileDescriptor fd) {
-        return loadingFiles.containsKey(fullPath(fd));
+        return loadingFiles.containsKey(relativePath(fd));
     }
 
     /**
@@ -209,56 +288,159 @@ public final class FileSystemManager extends Thread {
      * have a last modified timestamp less than or equal to that supplied.
      */
     public void deleteFile(FileDescriptor fd) throws FileManagerException {
-        String pathName = separatorsToSystem(fd.pathName);
-        String fullPathName = fullPath(fd);
-        FileManagerException.check(watchedFiles.containsKey(fullPathName), "file " + pathName + " does not exist");
-        FileManagerException.check(watchedFiles.get(fullPathName).lastModified() <= fd.lastModified() || watchedFiles.get(fullPathName).md5().equals(fd.md5()),
+        String pathName = relativePath(fd);
+        String fullPathName = fullPath(pathName);
+        Maybe<FileDescriptor> existing = watchedFiles.get(pathName);
+        FileManagerException.check(existing.isJust(), "file " + pathName + " does not exist");
+        FileManagerException.check(existing.get().lastModified() <= fd.lastModified() || existing.get().md5().equals(fd.md5()),
                                   "unexpected content for " + pathName);
         File file = new File(fullPathName);
         FileManagerException.check(file.delete(), "failed deleting " + pathName);
+        touchParent(pathName);
         PeerServer.log().fine("deleting " + fullPathName);
     }
 
+    /**
+     * Attempts to delete several files at once, each under the same conditions as {@link #deleteFile(FileDescriptor)}.
+     * A file that cannot be deleted does not stop the others.
+     *
+     * @return the reason for each file that could not be deleted, by path name
+     */
+    public Map<String, String> deleteFiles(List<FileDescriptor> fileDescriptors) {
+        Map<String, String> failures = new LinkedHashMap<>();
+        Set<String> parents = new HashSet<>();
+        for (FileDescriptor fd : fileDescriptors) {
+            String pathName = relativePath(fd);
+            Maybe<FileDescriptor> existing = watchedFiles.get(pathName);
+            if (!existing.isJust()) {
+                failures.put(fd.pathName, "file " + pathName + " does not exist");
+            } else if (existing.get().lastModified() > fd.lastModified() && !existing.get().md5().equals(fd.md5())) {
+                failures.put(fd.pathName, "unexpected content for " + pathName);
+            } else if (!new File(fullPath(pathName)).delete()) {
+                failures.put(fd.pathName, "failed deleting " + pathName);
+            } else {
+                parents.add(Maybe.of(new File(pathName).getParent()).orElse(""));
+                PeerServer.log().fine("deleting " + fullPath(pathName));
+            }
+        }
+        long now = System.currentTimeMillis();
+        parents.forEach(parent -> scheduler.touch(parent, now));
+        return failures;
+    }
+
+    /**
+     * Attempt to move a file within the share directory. The source file must exist and have the content described
+     * by the descriptor, and the destination (the descriptor's path name) must not exist; missing directories above
+     * the destination are made. The move is seen by the scanner like any other local change.
+     *
+     * @param oldPathName The name of the file to move, relative to the share directory.
+     * @param fd          The file descriptor of the file at its new location.
+     */
+    public void moveFile(String oldPathName, FileDescriptor fd) throws FileManagerException {
+        String source = separatorsToSystem(oldPathName);
+        String target = relativePath(fd);
+        Maybe<FileDescriptor> existing = watchedFiles.get(source);
+        FileManagerException.check(existing.isJust(), "file " + source + " does not exist");
+        FileManagerException.check(existing.get().md5().equals(fd.md5()), "unexpected content for " + source);
+        FileManagerException.check(!watchedFiles.containsKey(target) && !loadingFiles.busy(target)
+                                   && !new File(fullPath(target)).exists(), "file " + target + " already exists");
+        makeParents(target);
+        try {
+            Files.move(Paths.get(fullPath(source)), Paths.get(fullPath(target)), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new FileManagerException("failed moving " + source + " to " + target + ": " + e.getMessage());
+        }
+        touchParent(source);
+        touchParent(target);
+        PeerServer.log().fine("moving " + fullPath(source) + " to " + fullPath(target));
+    }
+
     /**
      * Create a file loader for given file name. The file name must not
      * already exist, otherwise use {@link #modifyFileLoader(String, String, long, long)}.
+     * Any missing parent directories are made.
      * The file loader maintains a place holder file with prefix {@link #loadingSuffix}
      * on its filename, called a <i>loader file</i>. Such files never generate file system events. The file loader
-     * can be subsequently accessed via the given name using {@link #writeFile(String, ByteBuffer, long)},
+     * can be subsequently accessed via the given name using {@link #writeFile(String, ByteBuffer, long, Maybe)},
      * {@link #checkWriteComplete(FileDescriptor)} and {@link #checkShortcut(FileDescriptor)}.
      *
      * @param fd           The file descriptor of the file to create.
      * @throws IOException              if any exceptions arose as the result of accessing the file system.
      */
     public void createFileLoader(FileDescriptor fd) throws IOException {
-        String pathName = separatorsToSystem(fd.pathName);
-        String fullPathName = fullPath(fd);
-        FileManagerException.check(!watchedFiles.containsKey(fullPathName), "File " + pathName + " already exists");
-        FileManagerException.check(!loadingFiles.containsKey(fullPathName), "File loader for " + pathName + " already exists");
-        loadingFiles.add(fullPathName, FileDescriptor.rename(fd, fullPathName));
+        String pathName = relativePath(fd);
+        FileManagerException.check(!watchedFiles.containsKey(pathName), "File " + pathName + " already exists");
+        FileManagerException.check(!loadingFiles.busy(pathName), "File loader for " + pathName + " already exists");
+        makeParents(pathName);
+        loadingFiles.add(pathName, FileDescriptor.rename(fd, fullPath(pathName)));
     }
 
     /**
      * Requests the file loader for the associated file name to write the supplied byte buffer
-     * at the supplied position in the loader file.
+     * at the supplied position in the loader file. Bytes that match their block digest can be read by other peers
+     * before the file is complete (see {@link #readFile(String, long, long)}).
      *
      * @param pathName The name of the file to which the file loader is associated (no special prefix).
      * @param src      The bytes to be written.
      * @param position The position to write the bytes.
+     * @param blockMd5 The digest of the bytes, if the peer sent one (see {@link #blockDigest(byte[])}).
+     * @return False if the bytes did not match their digest, in which case nothing was written.
      * @throws IOException If there was an error writing the bytes.
      */
-    public void writeFile(String pathName, ByteBuffer src, long position) throws IOException {
+    public boolean writeFile(String pathName, ByteBuffer src, long position, Maybe<String> blockMd5)
+            throws IOException {
         pathName = separatorsToSystem(pathName);
-        String fullPathName = root + FileSystems.getDefault().getSeparator() + pathName;
-        FileManagerException.check(loadingFiles.containsKey(fullPathName), "file loader for " + pathName + " not open");
-        Maybe<FileLoader> maybeLoader = loadingFiles.get(fullPathName);
+        FileManagerException.check(loadingFiles.containsKey(pathName), "file loader for " + pathName + " not open");
+        if (blockMd5.isJust() && !blockMd5.get().equals(blockDigest(src.array()))) {
+            return false;
+        }
+        Maybe<FileLoader> maybeLoader = loadingFiles.get(pathName);
         if (maybeLoader.isJust()) {
-            maybeLoader.get().writeFile(src, position);
+            maybeLoader.get().write(src, position, blockMd5.isJust());
+            if (blockMd5.isJust()) {
+                loadingFiles.relay(maybeLoader.get());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the digest of a block of a file, which is sent along with it so that the receiver can check it
+     */
+    public static String blockDigest(byte[] block) {
+        return Digests.toHex(Digests.md5(block));
+    }
+
+    /**
+     * Reads the content of a small file, to be sent along with the request that creates or modifies it so that the
+     * receiver doesn't have to ask for it. Files up to <code>inlineThreshold</code> bytes (and no larger than a block)
+     * are read; 0 disables this.
+     * @return the content, or nothing if the file is too large, can't be read, or no longer has the described content
+     */
+    public Maybe<byte[]> inlineContent(FileDescriptor fd) {
+        long threshold = Configuration.getConfigurationValue("inlineThreshold")
+                                      .map(Long::parseLong)
+                                      .orElse(0L);
+        if (threshold <= 0 || fd.fileSize() > Math.min(threshold, PeerServer.maxBlockSize())) {
+            return Maybe.nothing();
+        }
+        try {
+            byte[] content = Files.readAllBytes(Paths.get(fullPath(fd.pathName)));
+            if (content.length == fd.fileSize() && Digests.toHex(Digests.md5(content)).equals(fd.md5())) {
+                return Maybe.just(content);
+            }
+        } catch (IOException e) {
+            PeerServer.log().fine("not sending " + fd.pathName + " inline: " + e.getMessage());
         }
+        return Maybe.nothing();
     }
 
     /**
-     * Read bytes from any file containing the matching specific content.
+     * Read bytes from any file containing the matching specific content. Once a file that takes more than one read
+     * has been read from, the same content can still be read after the file changes (see {@link ReadSnapshots}).
+     * If no file has the content but we are downloading it, bytes that have already arrived and matched their block
+     * digests are read from the file loader. If they haven't arrived yet, the read fails straight away rather than
+     * waiting for them, and the peer retries it later.
      *
      * @param md5      The MD5 hash of the content of the file to read from.
      * @param position The position in the file to start reading from.
@@ -268,32 +450,51 @@ public final class FileSystemManager extends Thread {
      */
     public Result<Maybe<ByteBuffer>, IOException> readFile(String md5, long position, long length) {
         return Result.of(() -> {
-            if (hashMap.containsKey(md5)) {
-                for (String attempt : hashMap.get(md5)) {
-                    synchronized (watchedFiles.get(attempt)) {
-                        File file = new File(attempt);
-                        if (file.exists()) {
-                            PeerServer.log().fine("reading file " + file);
-                            try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
-                                 FileChannel channel = raf.getChannel()) {
-                                channel.lock();
-
-                                String currentMd5 = hashFile(file, attempt, watchedFiles.get(attempt).lastModified());
-                                if (currentMd5.equals(md5)) {
-                                    ByteBuffer bb = ByteBuffer.allocate((int) length);
-                                    channel.position(position);
-                                    int read = channel.read(bb);
-                                    if (read < length) {
-                                        throw new IOException("did not read everything expected: " + read + "/" + length);
-                                    }
-                                    return Maybe.just(bb);
+            // Small files may not have been written into the share yet, and the pack is cheaper to read anyway
+            Maybe<byte[]> packed = packStore.isJust() ? packStore.get().get(md5) : Maybe.nothing();
+            if (packed.isJust() && position + length <= packed.get().length) {
+                return Maybe.just(ByteBuffer.wrap(Arrays.copyOfRange(packed.get(), (int) position,
+                                                                     (int) (position + length))));
+            }
+            // A version someone is still downloading, which may since have changed in the share
+            Maybe<ByteBuffer> snapshot = snapshots.read(md5, position, length);
+            if (snapshot.isJust()) {
+                return snapshot;
+            }
+            for (String attempt : contentIndex.pathsOf(md5)) {
+                Maybe<FileDescriptor> watched = watchedFiles.get(attempt);
+                if (!watched.isJust()) {
+                    continue;
+                }
+                synchronized (lockFor(attempt)) {
+                    File file = new File(fullPath(attempt));
+                    if (file.exists()) {
+                        PeerServer.log().fine("reading file " + file);
+                        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                             FileChannel channel = raf.getChannel()) {
+                            channel.lock();
+
+                            // The indexed content is only trusted while the file has the stamp it was hashed with;
+                            // otherwise it is left until the scanner has seen the change
+                            Maybe<FileStamp> indexed = watchedFiles.stamp(attempt);
+                            FileStamp current = FileStamp.read(file.toPath());
+                            if (watched.get().md5().equals(md5) && indexed.map(current::equals).orElse(false)) {
+                                ByteBuffer bb = ByteBuffer.allocate((int) length);
+                                channel.position(position);
+                                int read = channel.read(bb);
+                                if (read < length) {
+                                    throw new IOException("did not read everything expected: " + read + "/" + length);
+                                }
+                                if (length < channel.size()) {
+                                    snapshots.take(md5, file.toPath(), indexed.get());
                                 }
+                                return Maybe.just(bb);
                             }
                         }
                     }
                 }
             }
-            return Maybe.nothing();
+            return loadingFiles.read(md5, position, length);
         });
     }
 
@@ -308,49 +509,85 @@ public final class FileSystemManager extends Thread {
      *
      * @return True if the file was completed, false if not and the loader is still waiting for more data.
      */
-    public Result<Boolean, IOException> checkWriteComplete(FileDescriptor fd) {
-        return check(fd.pathName, FileLoader::checkWriteComplete);
+    public Result<Boolean, IOException> checkWriteComplete(FileTransfer ft) {
+        return check(ft, FileLoader::checkWriteComplete);
     }
 
     /**
      * Should be called directly after creating a file loader, but can be called at any time.
      * Requests the file loader to check if another file already exists with the same content,
-     * and if so, uses that file's content (i.e. does a copy) to create the intended file. The
+     * and if so, uses that file's content (a clone, hard link or copy; see {@link ShortcutEngine}) to create the
+     * intended file. The
      * file loader is then complete and is no longer accessible.
      * This is much faster than transferring the bytes of the file
      * from a remote source.
      *
      * @return True if a shortcut was used, false otherwise.
      */
-    public Result<Boolean, IOException> checkShortcut(FileDescriptor fd) {
-        return check(fd.pathName, FileLoader::checkShortcut);
+    public Result<Boolean, IOException> checkShortcut(FileTransfer ft) {
+        return check(ft, FileLoader::checkShortcut);
+    }
+
+    /**
+     * Completes a file loader with a copy of a file that was itself just downloaded, and so may not have been seen
+     * by the scanner yet. The source must still have the size and modification time given by its descriptor.
+     *
+     * @param ft     The transfer of the loader to complete.
+     * @param source The file descriptor of the completed download, with the same content.
+     * @return True if the copy was made, false otherwise (in which case the loader is left open).
+     */
+    public Result<Boolean, IOException> checkShortcut(FileTransfer ft, FileDescriptor source) {
+        return check(ft, loader -> loader.fromPack() || loader.copyFrom(relativePath(source), stamp ->
+                stamp.fileSize == source.fileSize() && stamp.lastModified == source.lastModified()));
+    }
+
+    /**
+     * Completes a file loader with content that arrived all at once, e.g. inline with a request, rather than through
+     * {@link #writeFile(String, ByteBuffer, long)}.
+     *
+     * @param ft      The transfer of the loader to complete.
+     * @param content The whole content of the file.
+     * @return True if the content matched the file descriptor and the file was completed, false otherwise (in which
+     * case the loader is left open, unless it failed).
+     */
+    public Result<Boolean, IOException> completeFileLoader(FileTransfer ft, ByteBuffer content) {
+        if (content.remaining() != ft.fileDescriptor.fileSize()) {
+            return Result.value(false);
+        }
+        return check(ft, loader -> {
+            loader.write(content, 0, false);
+            return loader.checkWriteComplete();
+        });
     }
 
     /**
-     * Checks the file described by `pathName` with the predicate `f`.
+     * Checks the file being transferred with the predicate `f`. If the file is complete, it is added to the index
+     * (see {@link #registerCompletions()}), or if its content went to the pack store, it is queued to be written.
      */
-    private Result<Boolean, IOException> check(String pathName, ThrowingFunction<? super FileLoader, Boolean, ? extends IOException> f) {
+    private Result<Boolean, IOException> check(FileTransfer ft, ThrowingFunction<? super FileLoader, Boolean, ? extends IOException> f) {
+        String pathName = ft.pathName();
         return Result.of(() -> {
-            String fullPathName = root + FileSystems.getDefault().getSeparator() + separatorsToSystem(pathName);
-            FileManagerException.check(loadingFiles.containsKey(fullPathName), "file loader for " + pathName + " not open");
-            return loadingFiles.get(fullPathName).map(loader -> {
+            String systemPathName = separatorsToSystem(pathName);
+            FileManagerException.check(loadingFiles.containsKey(systemPathName), "file loader for " + pathName + " not open");
+            return loadingFiles.get(systemPathName).map(loader -> {
                 try {
                     boolean result = f.apply(loader);
                     if (result) {
-                        loadingFiles.close(fullPathName);
+                        loadingFiles.close(systemPathName);
+                        loader.completed(systemPathName, ft);
                     }
                     return result;
                 } catch (IOException e) {
                     try {
                         PeerServer.log().fine("while updating file " + pathName + ":");
                         e.printStackTrace();
-                        loadingFiles.close(fullPathName);
+                        loadingFiles.close(systemPathName);
                     } catch (IOException e2) {
                         PeerServer.log().severe("error while trying to handle error:");
                         e2.printStackTrace();
                     } finally {
                         // Make sure whatever happened, we forget about the file.
-                        loadingFiles.drop(fullPathName);
+                        loadingFiles.drop(systemPathName);
                     }
                 }
                 return false;
@@ -372,12 +609,12 @@ public final class FileSystemManager extends Thread {
      */
     private void modifyFileLoader(String pathName, String md5, long lastModified, long newFileSize) throws IOException {
         pathName = separatorsToSystem(pathName);
-        String fullPathName = root + FileSystems.getDefault().getSeparator() + pathName;
-        FileManagerException.check(watchedFiles.containsKey(fullPathName), "File " + pathName + " does not exist");
-        FileManagerException.check(!loadingFiles.containsKey(fullPathName), "File loader for " + pathName + " already exists");
-        FileManagerException.check(watchedFiles.get(fullPathName).lastModified() <= lastModified || watchedFiles.get(fullPathName).md5().equals(md5),
+        Maybe<FileDescriptor> existing = watchedFiles.get(pathName);
+        FileManagerException.check(existing.isJust(), "File " + pathName + " does not exist");
+        FileManagerException.check(!loadingFiles.busy(pathName), "File loader for " + pathName + " already exists");
+        FileManagerException.check(existing.get().lastModified() <= lastModified || existing.get().md5().equals(md5),
                 "Unexpected content for " + pathName);
-        loadingFiles.add(fullPathName, new FileDescriptor(fullPathName, lastModified, md5, newFileSize));
+        loadingFiles.add(pathName, new FileDescriptor(fullPath(pathName), lastModified, md5, newFileSize));
     }
 
     public void modifyFileLoader(FileDescriptor fd) throws IOException {
@@ -393,10 +630,14 @@ public final class FileSystemManager extends Thread {
      */
     public Result<Boolean, IOException> cancelFileLoader(String pathName) {
         return Result.of(() -> {
-            String fullPathName = root + FileSystems.getDefault().getSeparator() + separatorsToSystem(pathName);
-            if (loadingFiles.containsKey(fullPathName)) {
+            String systemPathName = separatorsToSystem(pathName);
+            if (unpacking.containsKey(systemPathName)) {
+                unpacking.remove(systemPathName).consume(this::release);
+                return true;
+            }
+            if (loadingFiles.containsKey(systemPathName)) {
                 try {
-                    loadingFiles.close(fullPathName);
+                    loadingFiles.close(systemPathName);
                     return true;
                 } catch (IOException e) {
                     PeerServer.log().warning("failed cancelling file loader for " + pathName + ": " + e.getMessage());
@@ -413,45 +654,248 @@ public final class FileSystemManager extends Thread {
     // synchronization
 
     /**
-     * Typically called at the beginning of a connection, in order to ensure that
+     * Used when a remote peer is missing a whole directory, in order to ensure that
      * the remote directory has all of the same contents as the local directory.
      *
-     * @return A list of file system events that create the entire contents of the
-     * share directory.
+     * @param pathName The directory to synchronise, relative to the share directory.
+     *                 The empty string refers to the whole share directory.
+     * @return The file system events that create the entire contents of the directory, including the directory
+     * itself. They are generated lazily as the iterator is advanced, so the share is never copied into memory; the
+     * directories come first, each before its subdirectories, then the files.
      */
-    public Iterable<FileSystemEvent> generateSyncEvents() {
-        List<FileSystemEvent> pathEvents = new ArrayList<>();
+    public Iterator<FileSystemEvent> generateSyncEvents(String pathName) {
+        return generateSyncEvents(pathName, true);
+    }
 
-        // find all directories
-        Iterable<String> keys = new ArrayList<>(watchedDirectories);
-        for (String pathname : keys) {
-            File file = new File(pathname);
-            pathEvents.add(eventFromDirectory(file, FileEventType.DIRECTORY_CREATE));
-        }
-        // sort so that the shallowest directories are created first
-        pathEvents.sort(Comparator.comparingInt(arg0 -> arg0.path.length()));
+    /**
+     * @param withContent whether to read the content of small files into their events (see {@link #inlineContent})
+     */
+    private Iterator<FileSystemEvent> generateSyncEvents(String pathName, boolean withContent) {
+        String systemPathName = separatorsToSystem(pathName);
+        Iterator<String> directories = watchedDirectories.keysUnder(systemPathName);
+        Iterator<String> files = watchedFiles.keysUnder(systemPathName);
+
+        return Iteration.generate(() -> {
+            if (directories.hasNext()) {
+                return Maybe.just(eventFromDirectory(directories.next(), FileEventType.DIRECTORY_CREATE));
+            }
+            while (files.hasNext()) {
+                // The file may have been removed since the iterator reached it
+                String fileName = files.next();
+                Maybe<FileDescriptor> fd = watchedFiles.get(fileName);
+                if (fd.isJust()) {
+                    return Maybe.just(eventFromFile(fileName, fd.get(), FileEventType.FILE_CREATE, withContent));
+                }
+            }
+            return Maybe.nothing();
+        });
+    }
+
+    /**
+     * @return the ID of the change log, which changes whenever the log has to be started afresh
+     */
+    public String changeLogId() {
+        return changeLog.id();
+    }
+
+    /**
+     * @return the sequence number of the most recent change
+     */
+    public long changeLogHead() {
+        return changeLog.head();
+    }
+
+    /**
+     * Returns the changes made to the share directory after the given point in the change log.
+     *
+     * @param logId    The ID of the change log the sequence number belongs to.
+     * @param sequence The sequence number of the last change the caller has seen.
+     * @return The events in order, generated lazily, or nothing if the log no longer has them (in which case the
+     * caller needs a full synchronisation).
+     */
+    public Maybe<Iterator<FileSystemEvent>> changesSince(String logId, long sequence) {
+        return changeLog.since(logId, sequence, this);
+    }
+
+    /**
+     * Returns the Merkle hash of a directory, which summarises the names and content of everything below it.
+     * Peers compare these hashes to find the parts of the share that differ, see {@link #syncChildren(String)}.
+     *
+     * @param pathName The directory, relative to the share directory. The empty string refers to the whole share.
+     * @return The hash, or nothing if the directory does not exist.
+     */
+    public Maybe<String> syncHash(String pathName) {
+        return merkleTree.hash(separatorsToSystem(pathName));
+    }
+
+    /**
+     * Lists the children of a directory together with their Merkle hashes.
+     *
+     * @param pathName The directory, relative to the share directory. The empty string refers to the whole share.
+     * @return The children in name order, or an empty list if the directory does not exist.
+     */
+    public List<MerkleEntry> syncChildren(String pathName) {
+        return merkleTree.children(separatorsToSystem(pathName));
+    }
+
+    /**
+     * Looks up the descriptor of a watched file.
+     *
+     * @param pathName The name of the file, relative to the share directory.
+     */
+    public Maybe<FileDescriptor> fileDescriptor(String pathName) {
+        return watchedFiles.get(separatorsToSystem(pathName))
+                           .map(fd -> FileDescriptor.rename(fd, pathName));
+    }
+
+    /**
+     * Summarises the contents of the files in the share directory for a peer, so that it knows which files we can
+     * copy from content we already have.
+     *
+     * @param maxBytes The most bytes the summary may take.
+     * @return The summary, or nothing if one that small would be of no use.
+     */
+    public Maybe<ContentSummary> contentSummary(long maxBytes) {
+        return contentIndex.summary(maxBytes);
+    }
+
+    // bootstrapping
 
-        // find all files
-        keys = new ArrayList<>(watchedFiles.keySet());
-        for (String pathname : keys) {
-            File file = new File(pathname);
-            pathEvents.add(eventFromFile(file, FileEventType.FILE_CREATE));
+    /**
+     * @return whether downloads that were cut short when we last stopped were discarded at startup. They are not
+     *         resumed, so the changes that started them must be sent again.
+     */
+    public boolean discardedTransfers() {
+        return discardedTransfers;
+    }
+
+    /**
+     * @return whether the share directory has no files or directories in it at all
+     */
+    public boolean isEmpty() {
+        return watchedFiles.size() == 0 && watchedDirectories.size() == 0;
+    }
+
+    /**
+     * Lists the whole share directory as an archive, for a peer that has nothing yet: every directory, each before its
+     * subdirectories, then the content of each file in consecutive pieces. The entries are generated lazily, and each
+     * file is read sequentially as the iterator reaches it, so only one piece is held in memory at a time. A file that
+     * can't be read is cut short; the receiver discards it when the next entry starts.
+     *
+     * @param pieceSize The most content to put in a single entry.
+     */
+    public Iterator<ArchiveEntry> archiveEntries(long pieceSize) {
+        return Iteration.generate(new ArchiveReader(generateSyncEvents("", false), pieceSize)::next);
+    }
+
+    /**
+     * Writes the next entries of an archive sent by a peer (see {@link #archiveEntries(long)}), which must be given in
+     * the order they were sent. Each file is written sequentially into a loader file while its hash is computed, and
+     * renamed into place once its last piece has arrived and its content matches. Files that already exist are left
+     * alone. Completed files are added to the index as if they had been transferred from the peer. If the peer
+     * disconnects before the last entries, the unfinished file is deleted and its changes are synchronised in full
+     * next time.
+     *
+     * @param archiveId Identifies the archive, so that a file may continue from one call to the next.
+     * @param last      Whether these are the final entries of the archive.
+     * @return the reason for each entry that could not be written, by path name
+     */
+    public Map<String, String> unpackArchive(String archiveId, Peer peer, List<ArchiveEntry> entries, boolean last) {
+        ArchiveUnpacker unpacker = archives.computeIfAbsent(archiveId, ignored -> {
+            ArchiveUnpacker created = new ArchiveUnpacker(peer);
+            // If the peer goes before the last entries, the file it was sending is left unfinished, and the rest of
+            // its share is never sent
+            peer.addCloseTask(() -> {
+                if (archives.remove(archiveId, created)) {
+                    synchronized (created) {
+                        created.discard();
+                    }
+                    PeerServer.forgetChanges(peer);
+                }
+            });
+            return created;
+        });
+        Map<String, String> failures = new LinkedHashMap<>();
+        synchronized (unpacker) {
+            for (ArchiveEntry entry : entries) {
+                try {
+                    unpacker.unpack(entry);
+                } catch (IOException e) {
+                    failures.put(entry.pathName, e.getMessage());
+                }
+            }
+            if (last) {
+                unpacker.discard();
+                archives.remove(archiveId);
+            }
+            unpacker.abandoned.forEach(pathName -> failures.put(pathName, "file was cut short"));
+            unpacker.abandoned.clear();
         }
-        return pathEvents;
+
+        long now = System.currentTimeMillis();
+        unpacker.parents.forEach(parent -> scheduler.touch(parent, now));
+        unpacker.parents.clear();
+        return failures;
     }
 
     ////////////////////
     // Internals
     ////////////////////
     private class LoadingFileManager {
-        private final Map<String, FileLoader> loadingFiles = new ConcurrentHashMap<>();
+        private final PathIndex<FileLoader> loadingFiles = new PathIndex<>();
+        // The loader other peers read each content from while we download it, keyed by MD5
+        private final Map<String, FileLoader> relaying = new ConcurrentHashMap<>();
 
         void add(String pathName, FileDescriptor fd) throws IOException {
-            loadingFiles.put(pathName, new FileLoader(fd));
+            FileLoader loader;
+            if (packStore.map(store -> store.accepts(fd.fileSize())).orElse(false)) {
+                loader = new PackLoader(fd, packStore.get());
+            } else {
+                loader = new TempFileLoader(fd);
+            }
+            loadingFiles.put(pathName, loader);
+            relaying.putIfAbsent(fd.md5(), loader);
+        }
+
+        /**
+         * Makes the loader the one its content is read from, since it has received some of it. Other loaders of the
+         * same content are waiting for it to be downloaded, and will never receive anything.
+         */
+        void relay(FileLoader loader) {
+            relaying.put(loader.fileDescriptor.md5(), loader);
+        }
+
+        /**
+         * Reads bytes of a content we are downloading, if they have arrived.
+         * @return the bytes, or nothing if we aren't downloading the content
+         * @throws IOException if the bytes haven't arrived yet, or the loader was closed while reading
+         */
+        Maybe<ByteBuffer> read(String md5, long position, long length) throws IOException {
+            FileLoader loader = relaying.get(md5);
+            if (loader == null) {
+                return Maybe.nothing();
+            }
+            FileManagerException.check(loader.isVerified(position, length),
+                                       "bytes not downloaded yet: " + loader.fileDescriptor.pathName);
+            PeerServer.log().fine("relaying bytes of " + loader.fileDescriptor.pathName + " at " + position);
+            ByteBuffer bb = ByteBuffer.allocate((int) length);
+            loader.read(bb, position);
+            return Maybe.just(bb);
+        }
+
+        private void forget(FileLoader loader) {
+            relaying.remove(loader.fileDescriptor.md5(), loader);
+        }
+
+        /**
+         * @return whether the file is being received, or has been and is waiting to be written from the pack store
+         */
+        boolean busy(String pathName) {
+            return loadingFiles.containsKey(pathName) || unpacking.containsKey(pathName);
         }
 
         public Maybe<FileLoader> get(String pathName) {
-            return Maybe.of(loadingFiles.get(pathName));
+            return loadingFiles.get(pathName);
         }
 
         boolean containsKey(String pathName) {
@@ -459,44 +903,177 @@ public final class FileSystemManager extends Thread {
         }
 
         void close(String pathName) throws IOException {
-            if (loadingFiles.containsKey(pathName)) {
-                loadingFiles.get(pathName).cancel();
+            Maybe<FileLoader> loader = loadingFiles.remove(pathName);
+            if (loader.isJust()) {
+                forget(loader.get());
+                loader.get().cancel();
             }
-            loadingFiles.remove(pathName);
         }
 
         void drop(String pathName) {
-            loadingFiles.remove(pathName);
+            loadingFiles.remove(pathName).consume(this::forget);
         }
 
-        void cancelIf(Predicate<? super FileLoader> pred) {
-            for (Iterator<Map.Entry<String, FileLoader>> iterator = loadingFiles.entrySet().iterator(); iterator.hasNext(); ) {
-                Map.Entry<String, FileLoader> entry = iterator.next();
-                String path = entry.getKey();
-                FileLoader loader = entry.getValue();
-                System.out.println("found loader: " + path);
-
+        /**
+         * Cancels every loader at or below the given path, and forgets any files there that were waiting to be written.
+         */
+        void cancelUnder(String pathName) {
+            unpacking.removeUnder(pathName).values().forEach(FileSystemManager.this::release);
+            loadingFiles.removeUnder(pathName).forEach((path, loader) -> {
+                forget(loader);
                 try {
-                    if (pred.test(loader)) {
-                        if (loadingFiles.containsKey(path)) {
-                            loadingFiles.get(path).cancel();
-                        }
-                        iterator.remove();
-                    }
+                    PeerServer.log().fine("cancelling loader " + path);
+                    loader.cancel();
                 } catch (IOException e) {
                     PeerServer.log().warning("failed cancelling loader for " + path + ": " + e.getMessage());
                 }
-            }
+            });
         }
     }
 
-    private class FileLoader {
+    /**
+     * Receives the content of a file, and completes the file once all of it has arrived or a local copy is found.
+     */
+    private abstract class FileLoader {
         public final FileDescriptor fileDescriptor;
+        // The ranges written so far that matched their block digests, from start to end; guarded by `this`
+        private final TreeMap<Long, Long> verified = new TreeMap<>();
+        private boolean unverified = false;
+
+        private FileLoader(FileDescriptor fileDescriptor) {
+            this.fileDescriptor = fileDescriptor;
+        }
+
+        abstract void cancel() throws IOException;
+
+        abstract void writeFile(ByteBuffer src, long position) throws IOException;
+
+        abstract void read(ByteBuffer dest, long position) throws IOException;
+
+        /**
+         * Writes bytes, and records the range they cover if they were checked against their block digest.
+         */
+        void write(ByteBuffer src, long position, boolean checked) throws IOException {
+            long length = src.remaining();
+            writeFile(src, position);
+            synchronized (this) {
+                if (!checked) {
+                    unverified = true;
+                    return;
+                }
+                long start = position;
+                long end = position + length;
+                Map.Entry<Long, Long> before = verified.floorEntry(start);
+                if (before != null && before.getValue() >= start) {
+                    start = before.getKey();
+                    end = Math.max(end, before.getValue());
+                }
+                Map.Entry<Long, Long> next;
+                while ((next = verified.ceilingEntry(start)) != null && next.getKey() <= end) {
+                    end = Math.max(end, next.getValue());
+                    verified.remove(next.getKey());
+                }
+                verified.put(start, end);
+            }
+        }
+
+        private synchronized boolean isVerified(long position, long length) {
+            Map.Entry<Long, Long> range = verified.floorEntry(position);
+            return range != null && range.getValue() >= position + length;
+        }
+
+        /**
+         * @return whether the file might be complete, and so is worth hashing: either some bytes weren't checked, or
+         *         they all were and cover the whole file
+         */
+        synchronized boolean mightBeComplete() {
+            return unverified || isVerified(0, fileDescriptor.fileSize());
+        }
+
+        abstract boolean checkWriteComplete() throws IOException;
+
+        /**
+         * Completes the loader from the pack store, if it has the content.
+         */
+        boolean fromPack() {
+            return false;
+        }
+
+        /**
+         * Called once the loader is complete, to add the file to the index.
+         */
+        void completed(String pathName, FileTransfer ft) {
+            FileSystemManager.this.completed(pathName, ft);
+            touchParent(pathName);
+        }
+
+        boolean checkShortcut() throws IOException {
+            for (String attempt : contentIndex.pathsOf(fileDescriptor.md5())) {
+                Maybe<FileStamp> indexed = watchedFiles.stamp(attempt);
+                // The source must still be exactly as it was when it was hashed, so its content is known without
+                // locking or re-hashing it
+                if (indexed.isJust() && copyFrom(attempt, indexed.get()::equals)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Completes the loader with a copy of another file in the share directory.
+         * @param unchanged tells whether the source's current stamp shows that it still has the content we want
+         * @return true if the copy was made, false if the source had changed or could not be copied
+         */
+        boolean copyFrom(String sourceName, Predicate<? super FileStamp> unchanged) throws IOException {
+            Path source = Paths.get(fullPath(sourceName));
+            FileStamp before;
+            try {
+                before = FileStamp.read(source);
+            } catch (IOException e) {
+                return false;
+            }
+            if (!unchanged.test(before)) {
+                return false;
+            }
+
+            Path copy = Paths.get(fileDescriptor.pathName + ".shortcut" + loadingSuffix);
+            Files.deleteIfExists(copy);
+            ShortcutEngine.Method method;
+            try {
+                method = shortcuts.copy(source, copy);
+                FileStamp after = FileStamp.read(source);
+                FileManagerException.check(after.fileSize == before.fileSize
+                                           && after.lastModified == before.lastModified,
+                                           "source " + sourceName + " changed during copy");
+            } catch (IOException e) {
+                PeerServer.log().fine("failed copying " + sourceName + ": " + e.getMessage());
+                Files.deleteIfExists(copy);
+                return false;
+            }
+
+            cancel();
+            Path dest = Paths.get(fileDescriptor.pathName);
+            Files.move(copy, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // A hard link shares its modification time with the source, so leave it alone
+            if (method != ShortcutEngine.Method.HARD_LINK) {
+                FileManagerException.check(dest.toFile().setLastModified(fileDescriptor.lastModified()),
+                                           "failed setting modified date of " + dest);
+            }
+            PeerServer.log().fine("created " + dest + " from " + sourceName + " (" + method + ")");
+            return true;
+        }
+
+    }
+
+    /**
+     * Receives a file into a loader file next to it, which is renamed into place once it is complete.
+     */
+    private class TempFileLoader extends FileLoader {
         private final File file;
         private final RandomAccessChannel channel;
 
-        private FileLoader(FileDescriptor fileDescriptor) throws IOException {
-            this.fileDescriptor = fileDescriptor;
+        private TempFileLoader(FileDescriptor fileDescriptor) throws IOException {
+            super(fileDescriptor);
             file = new File(fileDescriptor.pathName + loadingSuffix);
             if (file.exists()) throw new IOException("file loader already in progress: " + fileDescriptor.pathName);
 
@@ -505,49 +1082,36 @@ public final class FileSystemManager extends Thread {
             channel = new RandomAccessChannel(file);
         }
 
+        @Override
         void cancel() throws IOException {
             PeerServer.log().fine("closing transfer " + file.getPath());
             if (file.exists()) {
                 channel.close();
                 FileManagerException.check(file.delete(), "Failed deleting file " + fileDescriptor.pathName);
             }
-
-        }
-
-        boolean checkShortcut() throws IOException {
-            // check for a shortcut
-            if (hashMap.containsKey(fileDescriptor.md5())) {
-                for (String attempt : hashMap.get(fileDescriptor.md5())) {
-                    File file = new File(attempt);
-                    try (RandomAccessFile raf2 = new RandomAccessFile(file, "rw");
-                         FileChannel channel2 = raf2.getChannel()) {
-                        channel2.lock();
-                        String currentMd5 = hashFile(file, attempt, watchedFiles.get(attempt).lastModified());
-                        if (currentMd5.equals(fileDescriptor.md5())) {
-                            cancel();
-
-                            Path dest = Paths.get(fileDescriptor.pathName);
-                            CopyOption[] options = { StandardCopyOption.REPLACE_EXISTING };
-                            InputStream is = Channels.newInputStream(channel2);
-                            Files.copy(is, dest, options);
-
-                            FileManagerException.check(dest.toFile().setLastModified(fileDescriptor.lastModified()), "failed setting modified date of " + dest);
-                            return true;
-                        }
-                    }
-                }
-            }
-
-            return false;
         }
 
+        @Override
         void writeFile(ByteBuffer src, long position) throws IOException {
             FileManagerException.check(position <= fileDescriptor.fileSize(), "trying to write bytes beyond what is expected for " + file.getPath());
             FileManagerException.check(file.exists(), "file deleted during transfer: " + file.getPath());
             channel.write(src, position);
         }
 
+        @Override
+        void read(ByteBuffer dest, long position) throws IOException {
+            while (dest.hasRemaining()) {
+                FileManagerException.check(channel.read(dest, position + dest.position()) >= 0,
+                                           "loading file shorter than expected: " + file.getPath());
+            }
+        }
+
+        @Override
         boolean checkWriteComplete() throws IOException {
+            // Hashing the whole file after every block is slow, so don't while parts of it are known to be missing
+            if (!mightBeComplete()) {
+                return false;
+            }
             String currentMd5 = hashRandomAccess(fileDescriptor.pathName, channel);
             PeerServer.log().fine("compare: " + currentMd5 + " // " + fileDescriptor.md5());
             if (currentMd5.equals(fileDescriptor.md5())) {
@@ -594,68 +1158,620 @@ public final class FileSystemManager extends Thread {
         }
     }
 
-    private final Set<String> watchedDirectories;
-    private final Map<String, HashSet<String>> hashMap;
-    private final FileSystemObserver fileSystemObserver;
-    private final Map<String, FileDescriptor> watchedFiles;
-    private final String root;
-    private final String canonicalRoot;
-    private final LoadingFileManager loadingFiles = new LoadingFileManager();
+    /**
+     * Receives a small file into memory, and completes it by storing the content in the pack store (see
+     * {@link PackStore}). The file is written into the share later, together with others, by {@link #unpack()}.
+     */
+    private class PackLoader extends FileLoader {
+        private final PackStore store;
+        private byte[] content;
+        private boolean packed = false;
+
+        private PackLoader(FileDescriptor fileDescriptor, PackStore store) {
+            super(fileDescriptor);
+            this.store = store;
+            content = new byte[(int) fileDescriptor.fileSize()];
+        }
 
+        @Override
+        void cancel() {
+            content = null;
+        }
 
-    public void run() {
-        List<FileSystemEvent> pathEvents = new ArrayList<>();
-        while (!isInterrupted()) {
-            pathEvents.clear();
-            // check for new/modified files
-            pathEvents.addAll(scanDirectoryTree(root));
-            for (FileSystemEvent pathEvent : pathEvents) {
-                PeerServer.log().fine(pathEvent.toString());
-                fileSystemObserver.processFileSystemEvent(pathEvent);
-            }
+        @Override
+        void writeFile(ByteBuffer src, long position) throws IOException {
+            FileManagerException.check(content != null, "transfer cancelled: " + fileDescriptor.pathName);
+            FileManagerException.check(position + src.remaining() <= content.length,
+                                       "trying to write bytes beyond what is expected for " + fileDescriptor.pathName);
+            src.get(content, (int) position, src.remaining());
+        }
 
-            // check for deleted files
-            pathEvents.clear();
-            Iterable<String> keys = new ArrayList<>(watchedFiles.keySet());
-            for (String pathname : keys) {
-                File file = new File(pathname);
-                if (!file.exists()) {
-                    pathEvents.add(eventFromFile(file, FileEventType.FILE_DELETE));
-                    dropFile(pathname);
-                }
-            }
+        @Override
+        void read(ByteBuffer dest, long position) throws IOException {
+            byte[] bytes = content;
+            FileManagerException.check(bytes != null, "transfer cancelled: " + fileDescriptor.pathName);
+            dest.put(bytes, (int) position, dest.remaining());
+        }
 
-            // check for deleted directories
-            keys = new ArrayList<>(watchedDirectories);
-            for (String pathname : keys) {
-                File file = new File(pathname);
-                if (!file.exists()) {
-                    pathEvents.add(eventFromDirectory(file, FileEventType.DIRECTORY_DELETE));
-                    dropDir(pathname);
-                }
+        @Override
+        boolean checkWriteComplete() throws IOException {
+            FileManagerException.check(content != null, "transfer cancelled: " + fileDescriptor.pathName);
+            if (!Digests.toHex(Digests.md5(content)).equals(fileDescriptor.md5())) {
+                return false;
             }
-            // sort all of the events so they make sense
-            pathEvents.sort((arg0, arg1) ->
-                    arg1.path.length() - arg0.path.length());
+            store.put(fileDescriptor.md5(), content);
+            packed = true;
+            PeerServer.log().info("Download of " + fileDescriptor.pathName + " complete.");
+            return true;
+        }
+
+        @Override
+        boolean fromPack() {
+            packed = store.retain(fileDescriptor.md5());
+            return packed;
+        }
+
+        @Override
+        boolean checkShortcut() throws IOException {
+            return fromPack() || super.checkShortcut();
+        }
 
-            for (FileSystemEvent pathEvent : pathEvents) {
-                PeerServer.log().fine(pathEvent.toString());
-                fileSystemObserver.processFileSystemEvent(pathEvent);
+        @Override
+        void completed(String pathName, FileTransfer ft) {
+            if (packed) {
+                unpacking.put(pathName, new Unpacked(fileDescriptor, ft));
+            } else {
+                super.completed(pathName, ft);
             }
+        }
+    }
 
+    /**
+     * Reads the share directory as a sequence of archive entries, see {@link #archiveEntries(long)}.
+     */
+    private class ArchiveReader {
+        private final Iterator<FileSystemEvent> events;
+        private final long pieceSize;
+        private FileDescriptor file;
+        private FileChannel channel;
+        private long position;
+
+        private ArchiveReader(Iterator<FileSystemEvent> events, long pieceSize) {
+            this.events = events;
+            this.pieceSize = pieceSize;
+        }
+
+        private Maybe<ArchiveEntry> next() {
+            while (true) {
+                if (channel != null) {
+                    try {
+                        ByteBuffer piece = ByteBuffer.allocate((int) Math.min(pieceSize, file.fileSize() - position));
+                        while (piece.hasRemaining()) {
+                            FileManagerException.check(channel.read(piece) >= 0, "file shrank while reading");
+                        }
+                        ArchiveEntry entry = ArchiveEntry.piece(file, position, piece.array());
+                        position += piece.capacity();
+                        if (position >= file.fileSize()) {
+                            channel.close();
+                            channel = null;
+                        }
+                        return Maybe.just(entry);
+                    } catch (IOException e) {
+                        PeerServer.log().fine("failed reading " + file.pathName + " for archive: " + e.getMessage());
+                        close();
+                        continue;
+                    }
+                }
+                if (!events.hasNext()) {
+                    return Maybe.nothing();
+                }
+
+                FileSystemEvent ev = events.next();
+                if (ev.event == FileEventType.DIRECTORY_CREATE) {
+                    return Maybe.just(ArchiveEntry.directory(ev.pathName));
+                }
+                if (ev.fileDescriptor.fileSize() == 0) {
+                    return Maybe.just(ArchiveEntry.piece(ev.fileDescriptor, 0, new byte[0]));
+                }
+                try {
+                    channel = FileChannel.open(Paths.get(fullPath(ev.pathName)), StandardOpenOption.READ);
+                    file = ev.fileDescriptor;
+                    position = 0;
+                } catch (IOException e) {
+                    PeerServer.log().fine("failed opening " + ev.pathName + " for archive: " + e.getMessage());
+                }
+            }
+        }
+
+        private void close() {
             try {
-                Thread.sleep(1000);
+                channel.close();
+            } catch (IOException e) {
+                PeerServer.log().fine("failed closing " + file.pathName + ": " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Writes the entries of an archive received from a peer, see {@link #unpackArchive(String, Peer, List, boolean)}.
+     */
+    private class ArchiveUnpacker {
+        private final Peer peer;
+        private final Set<String> parents = new HashSet<>();
+        private final List<String> abandoned = new ArrayList<>();
+        // The file whose pieces are arriving; without a channel, its pieces are ignored
+        private FileDescriptor file;
+        private Path loaderPath;
+        private FileChannel channel;
+        private MessageDigest digest;
+        private long written;
+
+        private ArchiveUnpacker(Peer peer) {
+            this.peer = peer;
+        }
+
+        void unpack(ArchiveEntry entry) throws IOException {
+            String pathName = separatorsToSystem(entry.pathName);
+            if (entry.isDirectory()) {
+                discard();
+                file = null;
+                makeParents(pathName);
+                File directory = new File(fullPath(pathName));
+                FileManagerException.check(directory.isDirectory() || directory.mkdir(),
+                                           "failed creating directory " + pathName);
+                parents.add(Maybe.of(new File(pathName).getParent()).orElse(""));
+                return;
+            }
+
+            FileDescriptor fd = entry.fileDescriptor.get();
+            if (entry.offset == 0) {
+                discard();
+                file = fd;
+                start(pathName);
+            } else {
+                FileManagerException.check(fd.equals(file) && (channel == null || written == entry.offset),
+                                           "piece of " + pathName + " arrived out of order");
+            }
+            if (channel == null) {
+                return;
+            }
+
+            ByteBuffer content = ByteBuffer.wrap(entry.content);
+            while (content.hasRemaining()) {
+                written += channel.write(content, written);
+            }
+            digest.update(entry.content);
+            if (entry.completes()) {
+                finish(pathName);
+            }
+        }
+
+        private void start(String pathName) throws IOException {
+            Maybe<FileDescriptor> existing = watchedFiles.get(pathName);
+            if (existing.isJust() && existing.get().md5().equals(file.md5())) {
+                return;
+            }
+            FileManagerException.check(!existing.isJust() && !loadingFiles.busy(pathName),
+                                       "file " + pathName + " already exists");
+            makeParents(pathName);
+            loaderPath = Paths.get(fullPath(pathName) + loadingSuffix);
+            channel = FileChannel.open(loaderPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                       StandardOpenOption.WRITE);
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                // If MD5 isn't available, we're screwed anyway.
+                throw new RuntimeException(e);
+            }
+            written = 0;
+        }
+
+        private void finish(String pathName) throws IOException {
+            channel.close();
+            channel = null;
+            Path dest = Paths.get(fullPath(pathName));
+            try {
+                FileManagerException.check(Digests.toHex(digest.digest()).equals(file.md5()),
+                                           "content of " + pathName + " does not match its hash");
+                FileManagerException.check(!Files.exists(dest, LinkOption.NOFOLLOW_LINKS),
+                                           "file " + pathName + " already exists");
+                Files.setLastModifiedTime(loaderPath, FileTime.fromMillis(file.lastModified()));
+                Files.move(loaderPath, dest, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.deleteIfExists(loaderPath);
+                throw e;
+            }
+            completed(pathName, new FileTransfer(peer, file));
+            parents.add(Maybe.of(new File(pathName).getParent()).orElse(""));
+        }
+
+        /**
+         * Deletes the file being written, if it wasn't finished.
+         */
+        void discard() {
+            if (channel == null) {
+                return;
+            }
+            abandoned.add(file.pathName);
+            try {
+                channel.close();
+                Files.deleteIfExists(loaderPath);
+            } catch (IOException e) {
+                PeerServer.log().warning("failed removing " + loaderPath + ": " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * A received file whose content is in the pack store, waiting to be written into the share.
+     */
+    private static final class Unpacked {
+        private final FileDescriptor fileDescriptor;
+        private final FileTransfer transfer;
+
+        private Unpacked(FileDescriptor fileDescriptor, FileTransfer transfer) {
+            this.fileDescriptor = fileDescriptor;
+            this.transfer = transfer;
+        }
+    }
+
+    private final PathIndex<Boolean> watchedDirectories;
+    private final ContentIndex contentIndex;
+    private final ShortcutEngine shortcuts = new ShortcutEngine();
+    private final ReadSnapshots snapshots;
+    private final TreeDeleter treeDeleter = new TreeDeleter();
+    private final Maybe<PackStore> packStore = PackStore.open();
+    private final PathIndex<Unpacked> unpacking = new PathIndex<>();
+    private final Map<String, ArchiveUnpacker> archives = new ConcurrentHashMap<>();
+    private final Map<String, Completion> completions = new ConcurrentHashMap<>();
+    private final FileSystemObserver fileSystemObserver;
+    private final FileMetadataStore watchedFiles;
+    private final String root;
+    private final Path rootPath;
+    private final String canonicalRoot;
+    private final LoadingFileManager loadingFiles = new LoadingFileManager();
+    private final ChangeSettler settler = new ChangeSettler();
+    private final MerkleTree merkleTree;
+    private final ChangeLog changeLog;
+    private final RenameDetector renames = new RenameDetector();
+    private final IgnoreRules ignoreRules;
+    private final ScanScheduler scheduler = new ScanScheduler();
+    private final Object[] fileLocks = new Object[64];
+    {
+        for (int i = 0; i < fileLocks.length; ++i) {
+            fileLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Returns the lock guarding reads of a watched file. The metadata store may hand out a fresh descriptor on
+     * every lookup, so we stripe locks by path name instead of synchronising on the descriptor.
+     */
+    private Object lockFor(String pathName) {
+        return fileLocks[Math.floorMod(pathName.hashCode(), fileLocks.length)];
+    }
+
+
+    public void run() {
+        List<FileSystemEvent> createdEvents = new ArrayList<>();
+        List<FileSystemEvent> movedEvents = new ArrayList<>();
+        List<FileSystemEvent> pathEvents = new ArrayList<>();
+        Map<String, DirectoryListing> listings = new HashMap<>();
+        List<String> vanishedFiles = new ArrayList<>();
+        List<String> vanishedDirectories = new ArrayList<>();
+        while (!isInterrupted()) {
+            // stop watching anything that a change to the ignore rules now excludes, without telling peers
+            if (ignoreRules.reloadIfChanged()) {
+                forgetIgnored();
+            }
+
+            // check for new/modified files in the directories that are due to be scanned
+            long now = System.currentTimeMillis();
+            createdEvents.clear();
+            listings.clear();
+            renames.clear();
+            createdEvents.addAll(registerCompletions());
+            for (String dirName : scheduler.due(now)) {
+                if (!dirName.isEmpty() && !watchedDirectories.containsKey(dirName)) {
+                    scheduler.forget(dirName);
+                    continue;
+                }
+                Maybe<DirectoryListing> listing = scanDirectory(dirName, createdEvents);
+                if (listing.isJust()) {
+                    listings.put(dirName, listing.get());
+                } else {
+                    // the parent directory will notice if it was deleted
+                    scheduler.scanned(dirName, false, now);
+                }
+            }
+
+            // check the same directories for deleted files and subdirectories
+            vanishedFiles.clear();
+            vanishedDirectories.clear();
+            listings.forEach((dirName, listing) -> findVanished(dirName, listing, now, vanishedFiles,
+                                                                vanishedDirectories));
+            // Anything that vanished may have been moved into a directory that isn't due yet, so first list any
+            // directory that has changed since we last did, to see if it turned up there
+            if (!vanishedFiles.isEmpty() || !vanishedDirectories.isEmpty()) {
+                for (String dirName : scheduler.changed(rootPath, listings.keySet())) {
+                    scanDirectory(dirName, createdEvents).consume(listing ->
+                            findVanished(dirName, listing, now, vanishedFiles, vanishedDirectories));
+                }
+            }
+            // report them as deleted, unless they were just moved
+            movedEvents.clear();
+            pathEvents.clear();
+            for (String pathName : vanishedFiles) {
+                checkDeletedFile(pathName, createdEvents, movedEvents, pathEvents);
+            }
+            for (String pathName : vanishedDirectories) {
+                checkDeletedDirectory(pathName, createdEvents, movedEvents, pathEvents);
+            }
+            // forget about any files that were deleted before they settled
+            settler.retainIf(pathName -> new File(fullPath(pathName)).exists());
+
+            // sort all of the events so they make sense: directories need to exist before files are moved into
+            // them, and be emptied before they are deleted. New directories go first (the sort is stable, so parents
+            // stay ahead of their children), so that they can be sent together
+            createdEvents.sort(Comparator.comparing(ev -> ev.event != FileEventType.DIRECTORY_CREATE));
+            pathEvents.sort((arg0, arg1) ->
+                    arg1.path.length() - arg0.path.length());
+            notifyObserver(createdEvents);
+            notifyObserver(movedEvents);
+            notifyObserver(pathEvents);
+
+            try {
+                Thread.sleep(ScanScheduler.minInterval());
             } catch (InterruptedException e) {
                 PeerServer.log().warning(e.getMessage());
             }
         }
     }
 
-    private String hashFile(File file, String name, long lastModified) throws IOException {
-        PeerServer.log().fine("hashing file " + name);
-        if (lastModified != 0 && lastModified == file.lastModified()) {
-            return watchedFiles.get(name).md5();
+    /**
+     * A file we finished writing on behalf of a peer, whose content we therefore already know.
+     */
+    private static final class Completion {
+        private final FileDescriptor fileDescriptor;
+        private final FileStamp stamp;
+        private final Peer origin;
+
+        private Completion(FileDescriptor fileDescriptor, FileStamp stamp, Peer origin) {
+            this.fileDescriptor = fileDescriptor;
+            this.stamp = stamp;
+            this.origin = origin;
         }
+    }
+
+    /**
+     * Records a completed transfer, to be added to the index by the monitor thread.
+     */
+    private void completed(String pathName, FileTransfer ft) {
+        try {
+            FileStamp stamp = FileStamp.read(Paths.get(fullPath(pathName)));
+            FileDescriptor fd = new FileDescriptor(pathName, stamp.lastModified, ft.fileDescriptor.md5(),
+                                                   stamp.fileSize);
+            completions.put(pathName, new Completion(fd, stamp, ft.peer));
+        } catch (IOException e) {
+            // The scanner will pick it up in the usual way
+            PeerServer.log().fine("failed reading " + pathName + " after transfer: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the files waiting in the pack store into the share in batches, and compacts the packs now and then.
+     */
+    private void startPackWorker(PackStore store) {
+        ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor();
+        worker.scheduleWithFixedDelay(this::unpack, UNPACK_INTERVAL, UNPACK_INTERVAL, TimeUnit.MILLISECONDS);
+        worker.scheduleWithFixedDelay(() -> store.compact(contentIndex::contains),
+                                      COMPACT_INTERVAL, COMPACT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes every file waiting in the pack store into the share. Each one is written next to its final name and
+     * renamed into place, then added to the index like any other completed transfer; the directories are told to
+     * the scanner once for the whole batch.
+     */
+    private void unpack() {
+        Map<String, Unpacked> batch = unpacking.removeUnder("");
+        if (batch.isEmpty()) {
+            return;
+        }
+        PackStore store = packStore.get();
+        Set<String> parents = new HashSet<>();
+        batch.forEach((pathName, unpacked) -> {
+            FileDescriptor fd = unpacked.fileDescriptor;
+            Path temp = Paths.get(fd.pathName + loadingSuffix);
+            try {
+                Maybe<byte[]> content = store.get(fd.md5());
+                FileManagerException.check(content.isJust(), "content is missing from the pack store");
+                Files.write(temp, content.get());
+                Files.setLastModifiedTime(temp, FileTime.fromMillis(fd.lastModified()));
+                Files.move(temp, Paths.get(fd.pathName), StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+                completed(pathName, unpacked.transfer);
+                parents.add(Maybe.of(new File(pathName).getParent()).orElse(""));
+            } catch (IOException | RuntimeException e) {
+                PeerServer.log().warning("failed writing " + pathName + " from the pack store: " + e.getMessage());
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e2) {
+                    PeerServer.log().warning("failed removing " + temp + ": " + e2.getMessage());
+                }
+                // The change that sent the file won't be sent again unless we resynchronise
+                PeerServer.forgetChanges(unpacked.transfer.peer);
+            } finally {
+                release(unpacked);
+            }
+        });
+        long now = System.currentTimeMillis();
+        parents.forEach(parent -> scheduler.touch(parent, now));
+        PeerServer.log().fine("wrote " + batch.size() + " files from the pack store");
+    }
+
+    private void release(Unpacked unpacked) {
+        packStore.consume(store -> store.release(unpacked.fileDescriptor.md5()));
+    }
+
+    /**
+     * Adds completed transfers to the index using the descriptor that was verified during the transfer, so the
+     * files are not hashed again. The events are marked with the peer the file came from, so that it isn't sent
+     * straight back.
+     * <br/>
+     * A file that has changed since it was written is left to the scanner. One whose directory we haven't reported
+     * yet is kept until we have, so that other peers hear about the directory first.
+     */
+    private List<FileSystemEvent> registerCompletions() {
+        List<FileSystemEvent> events = new ArrayList<>();
+        for (Iterator<Map.Entry<String, Completion>> it = completions.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Completion> entry = it.next();
+            String pathName = entry.getKey();
+            Completion completion = entry.getValue();
+            String parent = Maybe.of(new File(pathName).getParent()).orElse("");
+            if (!parent.isEmpty() && !watchedDirectories.containsKey(parent)
+                    && new File(fullPath(parent)).isDirectory()) {
+                continue;
+            }
+            it.remove();
+
+            try {
+                if (!FileStamp.read(Paths.get(fullPath(pathName))).equals(completion.stamp)) {
+                    continue;
+                }
+            } catch (IOException e) {
+                continue;
+            }
+            settler.forget(pathName);
+            Maybe<FileDescriptor> existing = watchedFiles.get(pathName);
+            if (existing.isJust()) {
+                if (completion.fileDescriptor.equals(FileDescriptor.rename(existing.get(), pathName))) {
+                    watchedFiles.put(pathName, completion.fileDescriptor, completion.stamp);
+                    continue;
+                }
+                modifyFile(pathName, completion.fileDescriptor, completion.stamp);
+                events.add(new FileSystemEvent(eventFromFile(pathName, FileEventType.FILE_MODIFY), completion.origin));
+            } else {
+                addFile(pathName, completion.fileDescriptor, completion.stamp);
+                events.add(new FileSystemEvent(eventFromFile(pathName, FileEventType.FILE_CREATE), completion.origin));
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Finds the watched files and subdirectories of a directory that are missing from its listing, and schedules the
+     * directory's next scan depending on whether anything changed.
+     */
+    private void findVanished(String dirName, DirectoryListing listing, long now, List<String> vanishedFiles,
+                              List<String> vanishedDirectories) {
+        boolean changed = listing.changed;
+        for (String pathName : watchedFiles.childKeys(dirName)) {
+            if (!listing.entries.contains(pathName)) {
+                changed = true;
+                vanishedFiles.add(pathName);
+            }
+        }
+        for (String pathName : watchedDirectories.childKeys(dirName)) {
+            if (!listing.entries.contains(pathName)) {
+                changed = true;
+                vanishedDirectories.add(pathName);
+            }
+        }
+        scheduler.scanned(dirName, changed, now);
+    }
+
+    /**
+     * Reports a watched file that has disappeared as deleted, or as moved if it reappeared elsewhere in this scan.
+     */
+    private void checkDeletedFile(String pathName, List<FileSystemEvent> createdEvents,
+                                  List<FileSystemEvent> movedEvents, List<FileSystemEvent> pathEvents) {
+        Maybe<FileSystemEvent> moved = detectMove(pathName, createdEvents);
+        if (moved.isJust()) {
+            movedEvents.add(moved.get());
+        } else {
+            pathEvents.add(eventFromFile(pathName, FileEventType.FILE_DELETE));
+            dropFile(pathName);
+        }
+    }
+
+    /**
+     * Reports a watched directory that has disappeared as deleted, along with everything that was in it.
+     */
+    private void checkDeletedDirectory(String dirName, List<FileSystemEvent> createdEvents,
+                                       List<FileSystemEvent> movedEvents, List<FileSystemEvent> pathEvents) {
+        List<String> files = new ArrayList<>();
+        watchedFiles.keysUnder(dirName).forEachRemaining(files::add);
+        for (String pathName : files) {
+            checkDeletedFile(pathName, createdEvents, movedEvents, pathEvents);
+        }
+        List<String> directories = new ArrayList<>();
+        watchedDirectories.keysUnder(dirName).forEachRemaining(directories::add);
+        for (String pathName : directories) {
+            pathEvents.add(eventFromDirectory(pathName, FileEventType.DIRECTORY_DELETE));
+            dropDir(pathName);
+        }
+    }
+
+    private void forgetIgnored() {
+        for (String pathName : watchedFiles.keys()) {
+            if (ignoreRules.isIgnored(pathName, false)) {
+                PeerServer.log().fine("no longer watching ignored file " + pathName);
+                dropFile(pathName);
+            }
+        }
+        settler.retainIf(pathName -> !ignoreRules.isIgnored(pathName, false));
+        for (String pathName : watchedDirectories.keys()) {
+            if (ignoreRules.isIgnored(pathName, true)) {
+                PeerServer.log().fine("no longer watching ignored directory " + pathName);
+                dropDir(pathName);
+            }
+        }
+    }
+
+    /**
+     * Checks whether a file that has disappeared was moved to a file that appeared in the same scan. If so, the
+     * file's descriptor is moved in the index, so the content is neither re-hashed nor re-sent.
+     *
+     * @param createdEvents the events from the scan; if the new file was already reported as created, that event is
+     *                      replaced by the move
+     */
+    private Maybe<FileSystemEvent> detectMove(String oldPathName, List<FileSystemEvent> createdEvents) {
+        return watchedFiles.stamp(oldPathName).andThen(oldStamp ->
+               watchedFiles.get(oldPathName).andThen(oldFd ->
+               // If the new file has been hashed already, its content must match too
+               renames.claim(oldStamp, newPathName -> watchedFiles.get(newPathName)
+                                                                  .map(fd -> fd.md5().equals(oldFd.md5()))
+                                                                  .orElse(true))
+                      .map(arrival -> {
+                          FileDescriptor fd = FileDescriptor.rename(oldFd, arrival.pathName);
+                          createdEvents.removeIf(ev -> ev.event == FileEventType.FILE_CREATE
+                                                    && ev.pathName.equals(arrival.pathName));
+                          dropFile(oldPathName);
+                          addFile(arrival.pathName, fd, arrival.stamp);
+                          settler.forget(arrival.pathName);
+                          return eventFromMove(arrival.pathName, fd, oldPathName);
+                      })));
+    }
+
+    /**
+     * Records the events in the change log, then passes them on to the observer together.
+     */
+    private void notifyObserver(List<FileSystemEvent> pathEvents) {
+        if (pathEvents.isEmpty()) {
+            return;
+        }
+        List<FileSystemEvent> logged = changeLog.append(pathEvents, merkleTree.hash("").get());
+        for (FileSystemEvent pathEvent : logged) {
+            PeerServer.log().fine(pathEvent.toString());
+        }
+        fileSystemObserver.processFileSystemEvents(logged);
+    }
+
+    private String hashFile(File file, String name) throws IOException {
+        PeerServer.log().fine("hashing file " + name);
         try {
             MessageDigest md5Digest = MessageDigest.getInstance("MD5");
             return getFileChecksum(md5Digest, file);
@@ -666,119 +1782,281 @@ public final class FileSystemManager extends Thread {
     }
 
 
-    private void initialScanDirectoryTree(String name) {
-        scanDirectoryTree(name, true);
+    private void initialScanDirectoryTree() {
+        scheduler.watch("", System.currentTimeMillis());
+        scanDirectoryTree(rootPath, true);
+    }
+
+    /**
+     * The entries found by listing a single directory.
+     */
+    private static final class DirectoryListing {
+        private final Set<String> entries = new HashSet<>();
+        private boolean changed = false;
+    }
+
+    /**
+     * Lists a single directory, reading the attributes of each entry once. New and changed files in it are
+     * reported (subject to {@link ChangeSettler}), and new subdirectories are scanned in full; subdirectories that
+     * are already watched are left to their own schedule.
+     *
+     * @param pathEvents where to add the events found
+     * @return the listing, or nothing if the directory couldn't be read
+     */
+    private Maybe<DirectoryListing> scanDirectory(String dirName, Collection<FileSystemEvent> pathEvents) {
+        DirectoryListing listing = new DirectoryListing();
+        int eventsBefore = pathEvents.size();
+        Path dir = rootPath.resolve(dirName);
+        try {
+            // Read before listing, so that anything added while we list the directory changes its stamp
+            scheduler.listed(dirName, FileStamp.read(dir));
+        } catch (IOException e) {
+            PeerServer.log().fine("failed scanning " + dirName + ": " + e.getMessage());
+            return Maybe.nothing();
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                FileStamp.Entry attrs;
+                try {
+                    attrs = FileStamp.readEntry(entry);
+                } catch (IOException e) {
+                    // deleted since it was listed
+                    continue;
+                }
+                String pathName = rootPath.relativize(entry).toString();
+                listing.entries.add(pathName);
+                if (attrs.isDirectory) {
+                    if (!watchedDirectories.containsKey(pathName)) {
+                        pathEvents.addAll(scanDirectoryTree(entry, attrs.stamp, false));
+                    }
+                } else {
+                    scanFile(entry, attrs, false).consume(pathEvents::add);
+                    listing.changed |= settler.isPending(pathName);
+                }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            PeerServer.log().fine("failed scanning " + dirName + ": " + e.getMessage());
+            return Maybe.nothing();
+        }
+        listing.changed |= pathEvents.size() > eventsBefore;
+        return Maybe.just(listing);
     }
 
-    private Collection<FileSystemEvent> scanDirectoryTree(String name) {
-        return scanDirectoryTree(name, false);
+    /**
+     * Walks a directory and everything below it, reading the attributes of each entry once (following symbolic
+     * links), and updates the watched files and directories. A file is only re-hashed if its {@link FileStamp}
+     * differs from the one recorded when it was last hashed.
+     */
+    private Collection<FileSystemEvent> scanDirectoryTree(Path start, boolean clearFiles) {
+        try {
+            return scanDirectoryTree(start, FileStamp.read(start), clearFiles);
+        } catch (IOException e) {
+            PeerServer.log().warning("failed scanning " + start + ": " + e.getMessage());
+            return new ArrayList<>();
+        }
     }
 
-    private Collection<FileSystemEvent> scanDirectoryTree(String name, boolean clearFiles) {
+    /**
+     * @param stamp the stamp of the directory, which the caller has already read
+     */
+    private Collection<FileSystemEvent> scanDirectoryTree(Path start, FileStamp stamp, boolean clearFiles) {
         Collection<FileSystemEvent> pathEvents = new ArrayList<>();
-        File file = new File(name);
+        try {
+            // A new directory may be a link to one above it
+            Deque<FileStamp> ancestors = new ArrayDeque<>();
+            for (Path dir = start.getParent(); dir != null && dir.startsWith(rootPath); dir = dir.getParent()) {
+                ancestors.add(FileStamp.read(dir));
+            }
+            scanDirectoryTree(start, stamp, clearFiles, ancestors, pathEvents);
+        } catch (IOException e) {
+            PeerServer.log().warning("failed scanning " + start + ": " + e.getMessage());
+        }
+        return pathEvents;
+    }
+
+    /**
+     * @param ancestors the directories above this one, to detect symbolic links that lead back up the tree
+     */
+    private void scanDirectoryTree(Path dir, FileStamp stamp, boolean clearFiles, Deque<FileStamp> ancestors,
+                                   Collection<FileSystemEvent> pathEvents) {
+        String pathName = rootPath.relativize(dir).toString();
+        if (pathName.endsWith(loadingSuffix) || !pathName.isEmpty() && ignoreRules.matches(pathName, true)) {
+            return;
+        }
+        if (stamp.identity().isJust()
+                && ancestors.stream().anyMatch(above -> above.device == stamp.device && above.inode == stamp.inode)) {
+            PeerServer.log().fine("not scanning " + dir + ": symbolic link loop");
+            return;
+        }
+        if (!pathName.isEmpty() && !watchedDirectories.containsKey(pathName)) {
+            addDir(pathName);
+            pathEvents.add(eventFromDirectory(pathName, FileEventType.DIRECTORY_CREATE));
+        }
+        scheduler.listed(pathName, stamp);
+
+        ancestors.push(stamp);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                FileStamp.Entry attrs;
+                try {
+                    attrs = FileStamp.readEntry(entry);
+                } catch (IOException e) {
+                    // deleted since it was listed, or a broken link
+                    continue;
+                }
+                if (attrs.isDirectory) {
+                    scanDirectoryTree(entry, attrs.stamp, clearFiles, ancestors, pathEvents);
+                } else {
+                    scanFile(entry, attrs, clearFiles).consume(pathEvents::add);
+                }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            PeerServer.log().warning("failed scanning " + dir + ": " + e.getMessage());
+        } finally {
+            ancestors.pop();
+        }
+    }
+
+    private Maybe<FileSystemEvent> scanFile(Path path, FileStamp.Entry attrs, boolean clearFiles) {
+        File file = path.toFile();
+        String pathName = rootPath.relativize(path).toString();
 
         // Don't add files that are loading
-        if (name.endsWith(loadingSuffix)) {
+        if (pathName.endsWith(loadingSuffix)) {
             if (clearFiles) {
+                discardedTransfers = true;
                 if (file.delete()) {
                     PeerServer.log().fine("deleting old transfer " + file.getPath());
                 } else {
                     PeerServer.log().warning("failed deleting " + file.getPath());
                 }
-                watchedFiles.remove(file.getPath());
-            }
-        } else if (file.isFile()) {
-            long lastModified = file.lastModified();
-            long fileSize = file.length();
-            if (watchedFiles.containsKey(name)) {
-                if (lastModified != watchedFiles.get(name).lastModified()) {
-                    try {
-                        String newHash = hashFile(file, name, 0);
-                        modifyFile(name, newHash, lastModified, fileSize);
-                        pathEvents.add(eventFromFile(file, FileEventType.FILE_MODIFY));
-                    } catch (IOException e) {
-                        PeerServer.log().warning("failed updating " + file.getPath() + ": " + e.getMessage());
-                        dropFile(name);
-                    }
-                }
-            } else {
-                try {
-                    String newHash = hashFile(file, name, 0);
-                    addFile(name, new FileDescriptor(name, lastModified, newHash, fileSize));
-                    pathEvents.add(eventFromFile(file, FileEventType.FILE_CREATE));
-                } catch (IOException e) {
-                    PeerServer.log().warning("failed adding " + file.getPath() + ": " + e.getMessage());
-                }
-            }
-        } else if (file.isDirectory()) {
-            Path path = Paths.get(name);
-            if (!watchedDirectories.contains(name) && !name.equals(root)) {
-                addDir(name);
-                pathEvents.add(eventFromDirectory(file, FileEventType.DIRECTORY_CREATE));
+                contentIndex.remove(pathName);
             }
+            return Maybe.nothing();
+        }
+        // Files we have just written are added to the index by registerCompletions
+        if (!attrs.isRegularFile || ignoreRules.matches(pathName, false) || completions.containsKey(pathName)) {
+            return Maybe.nothing();
+        }
+
+        FileStamp stamp = attrs.stamp;
+        Maybe<FileDescriptor> existing = watchedFiles.get(pathName);
+        if (existing.isJust() && watchedFiles.stamp(pathName).map(stamp::equals).orElse(false)) {
+            settler.forget(pathName);
+            return Maybe.nothing();
+        }
+        if (!existing.isJust() && !clearFiles) {
+            // This might be a file that was moved here, see detectMove
+            renames.arrived(pathName, stamp);
+        }
+        // Wait until the file stops changing before hashing it. Nothing is reported on the initial scan, so there
+        // is no need to wait then.
+        if (!clearFiles && !settler.isSettled(pathName, stamp)) {
+            return Maybe.nothing();
+        }
 
+        if (existing.isJust()) {
             try {
-                DirectoryStream<Path> stream = Files.newDirectoryStream(path);
-                for (Path subpath : stream) {
-                    pathEvents.addAll(scanDirectoryTree(subpath.toString(), clearFiles));
+                String newHash = hashFile(file, pathName);
+                FileDescriptor fd = new FileDescriptor(pathName, stamp.lastModified, newHash, stamp.fileSize);
+                if (fd.equals(FileDescriptor.rename(existing.get(), pathName))) {
+                    // Only the metadata changed (e.g. permissions), so there's nothing to tell other peers
+                    watchedFiles.put(pathName, fd, stamp);
+                    return Maybe.nothing();
                 }
-                stream.close();
+                modifyFile(pathName, fd, stamp);
+                return Maybe.just(eventFromFile(pathName, FileEventType.FILE_MODIFY));
             } catch (IOException e) {
-                PeerServer.log().warning("failed adding subdirectories of " + path + ": " + e.getMessage());
+                PeerServer.log().warning("failed updating " + file.getPath() + ": " + e.getMessage());
+                dropFile(pathName);
+            }
+        } else {
+            try {
+                String newHash = hashFile(file, pathName);
+                addFile(pathName, new FileDescriptor(pathName, stamp.lastModified, newHash, stamp.fileSize), stamp);
+                // The initial scan reports nothing, so there is no event to read the content for
+                return clearFiles ? Maybe.nothing() : Maybe.just(eventFromFile(pathName, FileEventType.FILE_CREATE));
+            } catch (IOException e) {
+                PeerServer.log().warning("failed adding " + file.getPath() + ": " + e.getMessage());
             }
         }
-        return pathEvents;
+        return Maybe.nothing();
     }
 
-    private FileSystemEvent eventFromDirectory(File file, FileEventType type) {
+    private FileSystemEvent eventFromDirectory(String pathName, FileEventType type) {
+        File file = new File(fullPath(pathName));
         return new FileSystemEvent(file.getParent(), file.getName(), root, type);
     }
 
-    private FileSystemEvent eventFromFile(File file, FileEventType type) {
-        return new FileSystemEvent(file.getParent(), file.getName(), root, type, watchedFiles.get(file.getPath()));
+    /**
+     * Rebuilds an event that was recorded in the change log.
+     */
+    FileSystemEvent eventFromLog(String pathName, FileEventType type, FileDescriptor fd, String oldPathName) {
+        if (fd == null) {
+            return eventFromDirectory(pathName, type);
+        }
+        return type == FileEventType.FILE_MOVE ? eventFromMove(pathName, fd, oldPathName)
+                                               : eventFromFile(pathName, fd, type, true);
     }
 
-    private void removeHash(String name) {
-        Set<String> hs = hashMap.get(watchedFiles.get(name).md5());
-        hs.remove(name);
-        if (!hs.isEmpty()) hs.remove(watchedFiles.get(name).md5());
+    private FileSystemEvent eventFromMove(String pathName, FileDescriptor fd, String oldPathName) {
+        File file = new File(fullPath(pathName));
+        return new FileSystemEvent(file.getParent(), file.getName(), root, fd, oldPathName);
     }
 
-    private void addHash(String md5, String name) {
-        if (!hashMap.containsKey(md5)) {
-            hashMap.put(md5, new HashSet<>());
-        }
-        hashMap.get(md5).add(name);
+    private FileSystemEvent eventFromFile(String pathName, FileEventType type) {
+        return eventFromFile(pathName, watchedFiles.get(pathName).get(), type, true);
     }
 
-    private void modifyFile(String name, String md5, long lastModified, long fileSize) {
+    /**
+     * @param withContent whether to read the content of a small created or modified file into the event
+     */
+    private FileSystemEvent eventFromFile(String pathName, FileDescriptor fd, FileEventType type,
+                                          boolean withContent) {
+        File file = new File(fullPath(pathName));
+        Maybe<byte[]> content = withContent && (type == FileEventType.FILE_CREATE || type == FileEventType.FILE_MODIFY)
+                                ? inlineContent(FileDescriptor.rename(fd, pathName))
+                                : Maybe.nothing();
+        return new FileSystemEvent(file.getParent(), file.getName(), root, type, fd, content);
+    }
+
+    private void modifyFile(String name, FileDescriptor fileDescriptor, FileStamp stamp) {
         PeerServer.log().fine("modified file " + name);
-        removeHash(name);
-        watchedFiles.put(name, new FileDescriptor(name, lastModified, md5, fileSize));
-        addHash(md5, name);
+        contentIndex.put(name, fileDescriptor, stamp);
+        merkleTree.fileChanged(name);
     }
 
     private void dropFile(String name) {
         PeerServer.log().fine("dropping file " + name);
-        removeHash(name);
-        watchedFiles.remove(name);
+        contentIndex.remove(name);
+        merkleTree.fileChanged(name);
     }
 
-    private void addFile(String name, FileDescriptor fileDescriptor) {
+    private void addFile(String name, FileDescriptor fileDescriptor, FileStamp stamp) {
         PeerServer.log().fine("adding file " + name);
-        addHash(fileDescriptor.md5(), name);
-        watchedFiles.put(name, fileDescriptor);
+        contentIndex.put(name, fileDescriptor, stamp);
+        merkleTree.fileChanged(name);
     }
 
     private void dropDir(String name) {
         PeerServer.log().fine("dropping directory " + name);
         watchedDirectories.remove(name);
+        merkleTree.removeDirectory(name);
+        scheduler.forget(name);
     }
 
     private void addDir(String name) {
         PeerServer.log().fine("adding new directory " + name);
-        watchedDirectories.add(name);
+        watchedDirectories.put(name, true);
+        merkleTree.putDirectory(name);
+        scheduler.watch(name, System.currentTimeMillis());
+    }
+
+    /**
+     * Makes sure the directory containing a path is scanned soon, since we have just changed it.
+     */
+    private void touchParent(String pathName) {
+        scheduler.touch(Maybe.of(new File(pathName).getParent()).orElse(""), System.currentTimeMillis());
     }
 
     private static String getFileChecksum(MessageDigest digest, File file) throws IOException {
@@ -805,7 +2083,16 @@ public final class FileSystemManager extends Thread {
              : res.replace('\\', File.separatorChar);
     }
 
-    private String fullPath(FileDescriptor fd) {
-        return root + FileSystems.getDefault().getSeparator() + separatorsToSystem(fd.pathName);
+    private String fullPath(String pathName) {
+        return root + FileSystems.getDefault().getSeparator() + pathName;
     }
+
+    /**
+     * Converts a path name received from a peer to the form used as a key in the path indices.
+     */
+    private static String relativePath(FileDescriptor fd) {
+        return separatorsToSystem(fd.pathName);
+    }
+
+
 }
@@ -1,5 +1,7 @@
 package unimelb.bitbox.util.fs;
 
+import java.util.List;
+
 /**
  * Observes file system events from a FileSystemManager.
  *
@@ -7,5 +9,8 @@ package unimelb.bitbox.util.fs;
  */
 @FunctionalInterface
 public interface FileSystemObserver {
-	void processFileSystemEvent(FileSystemEvent fileSystemEvent);
+	/**
+	 * Called with each group of events from a scan, in order, so that related changes can be sent together.
+	 */
+	void processFileSystemEvents(List<FileSystemEvent> fileSystemEvents);
 }
@@ -0,0 +1,148 @@
+package unimelb.bitbox.util.fs;
+
+import functional.algebraic.Maybe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * A {@link FileMetadataStore} that keeps a {@link FileDescriptor} object per file in a {@link PathIndex}.
+ * Fast, but each file costs several heap objects.
+ * <br/>
+ * The paths for each content digest are an immutable array that is replaced whenever it changes, so lookups never
+ * lock and callers can iterate the result while the scanner carries on updating the store. When the last path for a
+ * digest is removed, so is the digest.
+ *
+ * @author Eleanor McMurtry
+ */
+class HeapMetadataStore implements FileMetadataStore {
+    private static final String[] NO_PATHS = new String[0];
+
+    private final PathIndex<Entry> files = new PathIndex<>();
+    private final ConcurrentHashMap<Digests.Key, String[]> contents = new ConcurrentHashMap<>();
+
+    private static final class Entry {
+        private final FileDescriptor fd;
+        private final FileStamp stamp;
+
+        private Entry(FileDescriptor fd, FileStamp stamp) {
+            this.fd = fd;
+            this.stamp = stamp;
+        }
+    }
+
+    @Override
+    public Maybe<FileDescriptor> get(String pathName) {
+        return files.get(pathName).map(entry -> entry.fd);
+    }
+
+    @Override
+    public Maybe<FileStamp> stamp(String pathName) {
+        return files.get(pathName).map(entry -> entry.stamp);
+    }
+
+    @Override
+    public boolean containsKey(String pathName) {
+        return files.containsKey(pathName);
+    }
+
+    @Override
+    public void put(String pathName, FileDescriptor fd, FileStamp stamp) {
+        Maybe<String> previous = get(pathName).map(FileDescriptor::md5);
+        files.put(pathName, new Entry(fd, stamp));
+        if (!previous.map(fd.md5()::equals).orElse(false)) {
+            previous.consume(md5 -> removeContent(md5, pathName));
+            addContent(fd.md5(), pathName);
+        }
+    }
+
+    @Override
+    public Maybe<FileDescriptor> remove(String pathName) {
+        Maybe<FileDescriptor> removed = files.remove(pathName).map(entry -> entry.fd);
+        removed.consume(fd -> removeContent(fd.md5(), pathName));
+        return removed;
+    }
+
+    private void addContent(String md5, String pathName) {
+        Digests.Key.of(md5).consume(key -> contents.compute(key, (ignored, existing) -> {
+            if (existing == null) {
+                return new String[] { pathName };
+            }
+            for (String path : existing) {
+                if (path.equals(pathName)) {
+                    return existing;
+                }
+            }
+            String[] updated = Arrays.copyOf(existing, existing.length + 1);
+            updated[existing.length] = pathName;
+            return updated;
+        }));
+    }
+
+    private void removeContent(String md5, String pathName) {
+        Digests.Key.of(md5).consume(key -> contents.computeIfPresent(key, (ignored, existing) -> {
+            int index = Arrays.asList(existing).indexOf(pathName);
+            if (index < 0) {
+                return existing;
+            }
+            if (existing.length == 1) {
+                // Returning null drops the entry
+                return null;
+            }
+            String[] updated = new String[existing.length - 1];
+            System.arraycopy(existing, 0, updated, 0, index);
+            System.arraycopy(existing, index + 1, updated, index, existing.length - index - 1);
+            return updated;
+        }));
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super FileDescriptor> action) {
+        files.forEach((pathName, entry) -> action.accept(pathName, entry.fd));
+    }
+
+    @Override
+    public Iterator<String> keysUnder(String pathName) {
+        return files.keysUnder(pathName);
+    }
+
+    @Override
+    public List<String> childKeys(String pathName) {
+        return files.childKeys(pathName);
+    }
+
+    @Override
+    public void forEachChild(String pathName, BiConsumer<? super String, ? super byte[]> action) {
+        files.forEachChild(pathName, (name, entry) -> action.accept(name, Digests.fromHex(entry.fd.md5())));
+    }
+
+    @Override
+    public List<String> keys() {
+        return files.keys();
+    }
+
+    @Override
+    public int size() {
+        return files.size();
+    }
+
+    @Override
+    public List<String> pathsOf(Digests.Key content) {
+        return Collections.unmodifiableList(Arrays.asList(Maybe.of(contents.get(content)).orElse(NO_PATHS)));
+    }
+
+    @Override
+    public boolean hasContent(Digests.Key content) {
+        return contents.containsKey(content);
+    }
+
+    @Override
+    public List<Digests.Key> contents() {
+        return new ArrayList<>(contents.keySet());
+    }
+}
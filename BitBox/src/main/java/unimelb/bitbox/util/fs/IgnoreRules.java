@@ -0,0 +1,219 @@
+package unimelb.bitbox.util.fs;
+
+import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.config.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which paths in the share directory are not replicated, using gitignore-style patterns read from the
+ * <code>.bitboxignore</code> file in the share directory and the comma-separated <code>ignore</code> configuration
+ * value.
+ * <br/>
+ * The supported syntax is that of gitignore: blank lines and lines starting with # are skipped; a pattern ending in
+ * / only matches directories; a pattern containing a / (other than at the end) is matched against the whole path
+ * from the share directory, otherwise against the name at any depth; *, ?, [...] and ** are wildcards; and a
+ * pattern starting with ! re-includes paths excluded by an earlier pattern. As with git, nothing below an ignored
+ * directory can be re-included.
+ * <br/>
+ * Patterns that are plain names (the common case, e.g. <code>node_modules/</code>) are looked up in a hash map,
+ * so the cost of a lookup hardly grows with the number of rules.
+ *
+ * @author Eleanor McMurtry
+ */
+class IgnoreRules {
+    static final String IGNORE_FILE = ".bitboxignore";
+
+    private static final class Rule {
+        private final int index;
+        private final boolean negated;
+        private final boolean directoryOnly;
+        private final boolean anchored;
+        private final Pattern regex;
+
+        private Rule(int index, boolean negated, boolean directoryOnly, boolean anchored, Pattern regex) {
+            this.index = index;
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+            this.anchored = anchored;
+            this.regex = regex;
+        }
+
+        private boolean matches(String pathName, String name, boolean isDirectory) {
+            return (isDirectory || !directoryOnly) && regex.matcher(anchored ? pathName : name).matches();
+        }
+    }
+
+    private final File ignoreFile;
+    private volatile Map<String, List<Rule>> literalRules = Collections.emptyMap();
+    private volatile List<Rule> patternRules = Collections.emptyList();
+    private String loadedConfig = null;
+    private long loadedModified = -1;
+    private long loadedSize = -1;
+
+    IgnoreRules(String root) {
+        ignoreFile = new File(root, IGNORE_FILE);
+        reloadIfChanged();
+    }
+
+    /**
+     * Re-reads the rules if the ignore file or configuration value has changed.
+     * @return whether the rules changed
+     */
+    synchronized boolean reloadIfChanged() {
+        String config = Configuration.getConfigurationValue("ignore").orElse("");
+        long modified = ignoreFile.lastModified();
+        long size = ignoreFile.length();
+        if (config.equals(loadedConfig) && modified == loadedModified && size == loadedSize) {
+            return false;
+        }
+        loadedConfig = config;
+        loadedModified = modified;
+        loadedSize = size;
+
+        List<String> lines = new ArrayList<>(Arrays.asList(config.split(",")));
+        if (ignoreFile.isFile()) {
+            try {
+                lines.addAll(Files.readAllLines(ignoreFile.toPath(), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                PeerServer.log().warning("failed reading " + ignoreFile + ": " + e.getMessage());
+            }
+        }
+        compile(lines);
+        return true;
+    }
+
+    private void compile(List<String> lines) {
+        Map<String, List<Rule>> literals = new HashMap<>();
+        List<Rule> patterns = new ArrayList<>();
+        int index = 0;
+        for (String line : lines) {
+            String pattern = line.trim();
+            if (pattern.isEmpty() || pattern.startsWith("#")) {
+                continue;
+            }
+            boolean negated = pattern.startsWith("!");
+            if (negated) {
+                pattern = pattern.substring(1);
+            }
+            boolean directoryOnly = pattern.endsWith("/");
+            if (directoryOnly) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+            boolean anchored = pattern.contains("/");
+            if (pattern.startsWith("/")) {
+                pattern = pattern.substring(1);
+            }
+            if (pattern.isEmpty()) {
+                continue;
+            }
+
+            Rule rule = new Rule(index++, negated, directoryOnly, anchored, Pattern.compile(toRegex(pattern)));
+            if (!anchored && !pattern.matches(".*[*?\\[\\\\].*")) {
+                literals.computeIfAbsent(pattern, name -> new ArrayList<>()).add(rule);
+            } else {
+                patterns.add(rule);
+            }
+        }
+        // Check the later rules first, since the last matching rule wins
+        Collections.reverse(patterns);
+        literalRules = literals;
+        patternRules = patterns;
+    }
+
+    private static String toRegex(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < pattern.length(); ++i) {
+            char c = pattern.charAt(i);
+            if (c == '*') {
+                if (pattern.startsWith("**/", i)) {
+                    regex.append("(?:.*/)?");
+                    i += 2;
+                } else if (pattern.startsWith("**", i)) {
+                    regex.append(".*");
+                    ++i;
+                } else {
+                    regex.append("[^/]*");
+                }
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else if (c == '[' && pattern.indexOf(']', i + 1) > i + 1) {
+                int end = pattern.indexOf(']', i + 1);
+                String set = pattern.substring(i + 1, end);
+                if (set.startsWith("!")) {
+                    set = "^" + set.substring(1);
+                }
+                regex.append('[').append(set.replace("\\", "\\\\")).append(']');
+                i = end;
+            } else if (c == '\\' && i + 1 < pattern.length()) {
+                regex.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+
+    /**
+     * Tests a single path against the rules, without considering its parent directories. Use this when walking the
+     * share directory, where ignored directories are never entered.
+     *
+     * @param pathName    the path relative to the share directory
+     * @param isDirectory whether the path is a directory
+     */
+    boolean matches(String pathName, boolean isDirectory) {
+        String path = File.separatorChar == '/' ? pathName : pathName.replace(File.separatorChar, '/');
+        String name = path.substring(path.lastIndexOf('/') + 1);
+
+        Rule best = null;
+        List<Rule> literals = literalRules.get(name);
+        if (literals != null) {
+            for (Rule rule : literals) {
+                if ((isDirectory || !rule.directoryOnly) && (best == null || rule.index > best.index)) {
+                    best = rule;
+                }
+            }
+        }
+        for (Rule rule : patternRules) {
+            if (best != null && rule.index < best.index) {
+                break;
+            }
+            if (rule.matches(path, name, isDirectory)) {
+                best = rule;
+                break;
+            }
+        }
+        return best != null && !best.negated;
+    }
+
+    /**
+     * Tests whether a path is ignored, either itself or because one of its parent directories is.
+     *
+     * @param pathName    the path relative to the share directory
+     * @param isDirectory whether the path is a directory
+     */
+    boolean isIgnored(String pathName, boolean isDirectory) {
+        String[] components = PathIndex.split(pathName);
+        StringBuilder prefix = new StringBuilder();
+        for (int i = 0; i < components.length; ++i) {
+            if (i > 0) {
+                prefix.append(File.separatorChar);
+            }
+            prefix.append(components[i]);
+            if (matches(prefix.toString(), i < components.length - 1 || isDirectory)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
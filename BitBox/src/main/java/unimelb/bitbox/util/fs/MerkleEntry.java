@@ -0,0 +1,57 @@
+package unimelb.bitbox.util.fs;
+
+import functional.algebraic.Result;
+import unimelb.bitbox.util.network.IJSONData;
+import unimelb.bitbox.util.network.JSONDocument;
+import unimelb.bitbox.util.network.JSONException;
+
+/**
+ * A single child of a directory in the {@link MerkleTree}: either a file, whose hash is its MD5,
+ * or a directory, whose hash summarises its whole subtree.
+ *
+ * @author Eleanor McMurtry
+ */
+public class MerkleEntry implements IJSONData {
+    public final String name;
+    public final boolean isDirectory;
+    public final String hash;
+
+    MerkleEntry(String name, boolean isDirectory, String hash) {
+        this.name = name;
+        this.isDirectory = isDirectory;
+        this.hash = hash;
+    }
+
+    /**
+     * Produces a MerkleEntry from the given {@link JSONDocument}.
+     */
+    @SuppressWarnings({"CodeBlock2Expr"})
+    public static Result<MerkleEntry, JSONException> fromJSON(JSONDocument doc) {
+        return doc.getString("name").andThen(name -> {
+            return doc.getBoolean("isDirectory").andThen(isDirectory -> {
+                return doc.getString("hash").andThen(hash -> {
+                    return Result.value(new MerkleEntry(name, isDirectory, hash));
+                });
+            });
+        });
+    }
+
+    /**
+     * @return whether the other entry describes the same content
+     */
+    public boolean matches(MerkleEntry other) {
+        return name.equals(other.name) && isDirectory == other.isDirectory && hash.equals(other.hash);
+    }
+
+    @Override
+    public JSONDocument toJSON() {
+        return new JSONDocument().append("name", name)
+                                 .append("isDirectory", isDirectory)
+                                 .append("hash", hash);
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
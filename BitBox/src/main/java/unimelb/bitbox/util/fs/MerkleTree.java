@@ -0,0 +1,172 @@
+package unimelb.bitbox.util.fs;
+
+import functional.algebraic.Maybe;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A Merkle tree over the share directory. The hash of a directory is the MD5 of its children, in name order, where a
+ * file contributes its name and content MD5 and a subdirectory contributes its name and hash. Two peers whose
+ * directories have the same hash therefore have the same files with the same content beneath them.
+ * <br/>
+ * The tree is updated incrementally: a change only marks the directories above it as dirty, and hashes are
+ * recomputed lazily for dirty directories when they are next requested.
+ * <br/>
+ * Only directories are kept here; the file digests are read from the {@link FileMetadataStore} when a hash is
+ * recomputed, so that an off-heap store keeps them off the heap.
+ *
+ * @author Eleanor McMurtry
+ */
+class MerkleTree {
+    private final FileMetadataStore files;
+    private final Directory root = new Directory(null, "");
+
+    MerkleTree(FileMetadataStore files) {
+        this.files = files;
+    }
+
+    private final class Directory {
+        private final Directory parent;
+        private final String name;
+        private final SortedMap<String, Directory> directories = new TreeMap<>();
+        private byte[] hash = null;
+
+        private Directory(Directory parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        private void invalidate() {
+            for (Directory dir = this; dir != null && dir.hash != null; dir = dir.parent) {
+                dir.hash = null;
+            }
+        }
+
+        private String path() {
+            return parent == null ? ""
+                                  : parent.parent == null ? name
+                                                          : parent.path() + File.separator + name;
+        }
+
+        private SortedMap<String, byte[]> files() {
+            SortedMap<String, byte[]> children = new TreeMap<>();
+            files.forEachChild(path(), children::put);
+            return children;
+        }
+
+        private byte[] hash() {
+            if (hash == null) {
+                MessageDigest digest = md5();
+                SortedMap<String, byte[]> digests = files();
+                // Merge the two maps so that the order only depends on the names
+                List<String> names = new ArrayList<>(directories.keySet());
+                names.addAll(digests.keySet());
+                names.sort(null);
+                for (String child : names) {
+                    Directory dir = directories.get(child);
+                    digest.update((byte) (dir != null ? 'd' : 'f'));
+                    digest.update(child.getBytes(StandardCharsets.UTF_8));
+                    digest.update((byte) 0);
+                    digest.update(dir != null ? dir.hash() : digests.get(child));
+                }
+                hash = digest.digest();
+            }
+            return hash;
+        }
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // If MD5 isn't available, we're screwed anyway.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Finds the directory with the given components, optionally creating any that are missing.
+     */
+    private Directory find(String[] components, int count, boolean create) {
+        Directory dir = root;
+        for (int i = 0; i < count && dir != null; ++i) {
+            Directory next = dir.directories.get(components[i]);
+            if (next == null && create) {
+                String name = PathIndex.directoryName(components[i]);
+                next = new Directory(dir, name);
+                dir.directories.put(name, next);
+                dir.invalidate();
+            }
+            dir = next;
+        }
+        return dir;
+    }
+
+    /**
+     * Marks the directory of a file as dirty, after the file has been added, changed or removed in the store.
+     */
+    synchronized void fileChanged(String pathName) {
+        String[] components = PathIndex.split(pathName);
+        if (components.length == 0) {
+            return;
+        }
+        Directory dir = find(components, components.length - 1, files.containsKey(pathName));
+        if (dir != null) {
+            dir.invalidate();
+        }
+    }
+
+    synchronized void putDirectory(String pathName) {
+        String[] components = PathIndex.split(pathName);
+        find(components, components.length, true);
+    }
+
+    /**
+     * Removes a directory and everything below it.
+     */
+    synchronized void removeDirectory(String pathName) {
+        String[] components = PathIndex.split(pathName);
+        if (components.length == 0) {
+            return;
+        }
+        Directory parent = find(components, components.length - 1, false);
+        if (parent != null && parent.directories.remove(components[components.length - 1]) != null) {
+            parent.invalidate();
+        }
+    }
+
+    /**
+     * @return the hash of the given directory, in hexadecimal
+     */
+    synchronized Maybe<String> hash(String pathName) {
+        String[] components = PathIndex.split(pathName);
+        return Maybe.of(find(components, components.length, false))
+                    .map(dir -> Digests.toHex(dir.hash()));
+    }
+
+    /**
+     * @return the children of the given directory, in name order, or an empty list if it does not exist
+     */
+    synchronized List<MerkleEntry> children(String pathName) {
+        String[] components = PathIndex.split(pathName);
+        Directory dir = find(components, components.length, false);
+        List<MerkleEntry> children = new ArrayList<>();
+        if (dir != null) {
+            for (Map.Entry<String, Directory> child : dir.directories.entrySet()) {
+                children.add(new MerkleEntry(child.getKey(), true, Digests.toHex(child.getValue().hash())));
+            }
+            for (Map.Entry<String, byte[]> child : dir.files().entrySet()) {
+                children.add(new MerkleEntry(child.getKey(), false, Digests.toHex(child.getValue())));
+            }
+        }
+        return children;
+    }
+}
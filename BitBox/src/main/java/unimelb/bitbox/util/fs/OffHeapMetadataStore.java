@@ -0,0 +1,711 @@
+package unimelb.bitbox.util.fs;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.util.concurrency.Iteration;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * A {@link FileMetadataStore} for very large shares, which keeps everything in direct (off-heap) memory, so that the
+ * heap does not grow with the number of files. The {@link ContentIndex} and {@link MerkleTree} are served from here
+ * too, so they only hold objects for each directory, not each file. The one exception is the {@link ContentFilter},
+ * a single array of about 8 bytes per distinct content.
+ * <br/>
+ * Every file, and every directory above one, is a node with a fixed-width binary record:
+ * <pre>
+ * | parent | first child | next sibling | previous sibling | next in bucket | name hash | generation | flags |
+ * | name location (8 bytes) | name length | next with same content |
+ * | md5 (16 bytes) | fileSize (8 bytes) | lastModified (8 bytes) | ctime (8 bytes) | device (8 bytes) |
+ * | inode (8 bytes) |
+ * </pre>
+ * where the fields without a size are 4 bytes. Nodes refer to each other by slot. A node is found from its parent
+ * and name with a hash table, also off-heap, so a lookup is O(depth). Names are stored as UTF-8 in an append-only
+ * arena, which is compacted once most of it belongs to removed nodes. {@link FileDescriptor} objects and path names
+ * are created on demand when a record is read.
+ * <br/>
+ * Files are also found by content with a second hash table, keyed by MD5 digest and chained through the records, so
+ * that all the files with the same content are in the same chain.
+ * <br/>
+ * Records are allocated in fixed-size chunks, and the slots of removed nodes are reused. A slot's generation changes
+ * whenever it is freed, so that an iterator holding it can tell that the node has gone.
+ *
+ * @author Eleanor McMurtry
+ */
+class OffHeapMetadataStore implements FileMetadataStore {
+    private static final int PARENT_OFFSET = 0;
+    private static final int FIRST_CHILD_OFFSET = PARENT_OFFSET + Integer.BYTES;
+    private static final int NEXT_SIBLING_OFFSET = FIRST_CHILD_OFFSET + Integer.BYTES;
+    private static final int PREVIOUS_SIBLING_OFFSET = NEXT_SIBLING_OFFSET + Integer.BYTES;
+    private static final int HASH_NEXT_OFFSET = PREVIOUS_SIBLING_OFFSET + Integer.BYTES;
+    private static final int NAME_HASH_OFFSET = HASH_NEXT_OFFSET + Integer.BYTES;
+    private static final int GENERATION_OFFSET = NAME_HASH_OFFSET + Integer.BYTES;
+    private static final int FLAGS_OFFSET = GENERATION_OFFSET + Integer.BYTES;
+    private static final int NAME_OFFSET = FLAGS_OFFSET + Integer.BYTES;
+    private static final int NAME_LENGTH_OFFSET = NAME_OFFSET + Long.BYTES;
+    private static final int CONTENT_NEXT_OFFSET = NAME_LENGTH_OFFSET + Integer.BYTES;
+    private static final int MD5_OFFSET = CONTENT_NEXT_OFFSET + Integer.BYTES;
+    private static final int SIZE_OFFSET = MD5_OFFSET + Digests.MD5_BYTES;
+    private static final int MODIFIED_OFFSET = SIZE_OFFSET + Long.BYTES;
+    private static final int CHANGED_OFFSET = MODIFIED_OFFSET + Long.BYTES;
+    private static final int DEVICE_OFFSET = CHANGED_OFFSET + Long.BYTES;
+    private static final int INODE_OFFSET = DEVICE_OFFSET + Long.BYTES;
+    private static final int RECORD_BYTES = INODE_OFFSET + Long.BYTES;
+    private static final int RECORDS_PER_CHUNK = 1 << 16;
+    private static final int NAME_CHUNK_BYTES = 1 << 20;
+    private static final int MIN_BUCKETS = 1 << 12;
+
+    // The root is never a child, a sibling or in a bucket, so its slot doubles as "no node" in those fields
+    private static final int ROOT = 0;
+    private static final int NONE = 0;
+    private static final int MISSING = -1;
+    private static final int LIVE = 1;
+    private static final int HAS_FILE = 2;
+
+    private final StampedLock lock = new StampedLock();
+    // Guarded by `lock`; readers may look without it, as long as they validate afterwards
+    private volatile ByteBuffer[] records = new ByteBuffer[0];
+    private volatile ByteBuffer[] names = new ByteBuffer[0];
+    private volatile ByteBuffer buckets = ByteBuffer.allocateDirect(MIN_BUCKETS * Integer.BYTES);
+    private ByteBuffer contentBuckets = ByteBuffer.allocateDirect(MIN_BUCKETS * Integer.BYTES);
+    private int nextSlot = 0;
+    // The free slots are linked through their next sibling field
+    private int freeSlots = NONE;
+    private int nodes = 0;
+    private int files = 0;
+    private int nameEnd = 0;
+    private long nameBytes = 0;
+    private long nameGarbage = 0;
+
+    // One level of an iterator over a subtree: the nodes (slot and generation) that are left to visit
+    private static final class Level {
+        private final long[] nodes;
+        private int next = 0;
+
+        private Level(long[] nodes) {
+            this.nodes = nodes;
+        }
+    }
+
+    OffHeapMetadataStore() {
+        int root = allocate();
+        putInt(root, FLAGS_OFFSET, LIVE);
+    }
+
+    @Override
+    public Maybe<FileDescriptor> get(String pathName) {
+        return read(pathName, slot -> readRecord(pathName, slot));
+    }
+
+    @Override
+    public Maybe<FileStamp> stamp(String pathName) {
+        return read(pathName, this::readStamp);
+    }
+
+    private <T> Maybe<T> read(String pathName, IntFunction<T> reader) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                Maybe<T> result = readFile(pathName, reader);
+                if (lock.validate(stamp)) {
+                    return result;
+                }
+            } catch (RuntimeException ignored) {
+                // A writer moved the record under us; retry with the read lock
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return readFile(pathName, reader);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private <T> Maybe<T> readFile(String pathName, IntFunction<T> reader) {
+        int slot = find(pathName);
+        if (slot == MISSING || !hasFile(slot)) {
+            return Maybe.nothing();
+        }
+        return Maybe.just(reader.apply(slot));
+    }
+
+    private FileStamp readStamp(int slot) {
+        ByteBuffer chunk = chunk(slot);
+        int offset = offset(slot);
+        return new FileStamp(chunk.getLong(offset + SIZE_OFFSET),
+                             chunk.getLong(offset + MODIFIED_OFFSET),
+                             chunk.getLong(offset + CHANGED_OFFSET),
+                             chunk.getLong(offset + DEVICE_OFFSET),
+                             chunk.getLong(offset + INODE_OFFSET));
+    }
+
+    private FileDescriptor readRecord(String pathName, int slot) {
+        ByteBuffer chunk = chunk(slot);
+        int offset = offset(slot);
+        long fileSize = chunk.getLong(offset + SIZE_OFFSET);
+        long lastModified = chunk.getLong(offset + MODIFIED_OFFSET);
+        return new FileDescriptor(pathName, lastModified, Digests.toHex(readDigest(slot)), fileSize);
+    }
+
+    private byte[] readDigest(int slot) {
+        ByteBuffer chunk = chunk(slot);
+        int offset = offset(slot);
+        byte[] md5 = new byte[Digests.MD5_BYTES];
+        for (int i = 0; i < md5.length; ++i) {
+            md5[i] = chunk.get(offset + MD5_OFFSET + i);
+        }
+        return md5;
+    }
+
+    @Override
+    public boolean containsKey(String pathName) {
+        return read(pathName, slot -> true).isJust();
+    }
+
+    @Override
+    public void put(String pathName, FileDescriptor fd, FileStamp fileStamp) {
+        byte[] md5 = Digests.fromHex(fd.md5());
+        Digests.Key content = Digests.Key.of(md5);
+        long stamp = lock.writeLock();
+        try {
+            int slot = ROOT;
+            for (String component : PathIndex.split(pathName)) {
+                byte[] name = component.getBytes(StandardCharsets.UTF_8);
+                int hash = Arrays.hashCode(name);
+                int child = child(slot, name, hash);
+                slot = child == NONE ? createChild(slot, name, hash) : child;
+            }
+            ByteBuffer chunk = chunk(slot);
+            int offset = offset(slot);
+            boolean sameContent = hasFile(slot) && content.matches(chunk, offset + MD5_OFFSET);
+            if (hasFile(slot) && !sameContent) {
+                unlinkContent(slot);
+            }
+            if (!hasFile(slot)) {
+                putInt(slot, FLAGS_OFFSET, LIVE | HAS_FILE);
+                ++files;
+            }
+
+            for (int i = 0; i < md5.length; ++i) {
+                chunk.put(offset + MD5_OFFSET + i, md5[i]);
+            }
+            chunk.putLong(offset + SIZE_OFFSET, fd.fileSize());
+            chunk.putLong(offset + MODIFIED_OFFSET, fd.lastModified());
+            chunk.putLong(offset + CHANGED_OFFSET, fileStamp.changed);
+            chunk.putLong(offset + DEVICE_OFFSET, fileStamp.device);
+            chunk.putLong(offset + INODE_OFFSET, fileStamp.inode);
+            if (!sameContent) {
+                linkContent(slot);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public Maybe<FileDescriptor> remove(String pathName) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(pathName);
+            if (slot == MISSING || !hasFile(slot)) {
+                return Maybe.nothing();
+            }
+            FileDescriptor fd = readRecord(pathName, slot);
+            unlinkContent(slot);
+            putInt(slot, FLAGS_OFFSET, LIVE);
+            --files;
+            prune(slot);
+            return Maybe.just(fd);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super FileDescriptor> action) {
+        for (String pathName : keys()) {
+            get(pathName).consume(fd -> action.accept(pathName, fd));
+        }
+    }
+
+    /**
+     * Lazily lists the files at or below a path. The iterator holds the slots of the children of each directory on
+     * the current branch, so it uses memory in proportion to the depth of the tree and the size of those
+     * directories, rather than the size of the tree. Files changed during iteration may or may not be seen.
+     */
+    @Override
+    public Iterator<String> keysUnder(String pathName) {
+        Deque<Level> stack = new ArrayDeque<>();
+        long stamp = lock.readLock();
+        try {
+            int start = find(pathName);
+            if (start != MISSING) {
+                stack.push(new Level(new long[] { node(start) }));
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+
+        return Iteration.generate(() -> {
+            while (!stack.isEmpty()) {
+                Level level = stack.peek();
+                if (level.next == level.nodes.length) {
+                    stack.pop();
+                    continue;
+                }
+                long node = level.nodes[level.next++];
+                long readStamp = lock.readLock();
+                try {
+                    int slot = (int) (node >>> 32);
+                    if (node(slot) != node || !isLive(slot)) {
+                        // It was removed since we listed it
+                        continue;
+                    }
+                    long[] children = children(slot);
+                    if (children.length > 0) {
+                        stack.push(new Level(children));
+                    }
+                    if (hasFile(slot)) {
+                        return Maybe.just(path(slot));
+                    }
+                } finally {
+                    lock.unlockRead(readStamp);
+                }
+            }
+            return Maybe.nothing();
+        });
+    }
+
+    @Override
+    public List<String> childKeys(String pathName) {
+        List<String> keys = new ArrayList<>();
+        long stamp = lock.readLock();
+        try {
+            int slot = find(pathName);
+            if (slot == MISSING) {
+                return keys;
+            }
+            for (int child = getInt(slot, FIRST_CHILD_OFFSET); child != NONE;
+                 child = getInt(child, NEXT_SIBLING_OFFSET)) {
+                if (hasFile(child)) {
+                    keys.add(path(child));
+                }
+            }
+            return keys;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void forEachChild(String pathName, BiConsumer<? super String, ? super byte[]> action) {
+        List<String> childNames = new ArrayList<>();
+        List<byte[]> digests = new ArrayList<>();
+        long stamp = lock.readLock();
+        try {
+            int slot = find(pathName);
+            if (slot == MISSING) {
+                return;
+            }
+            for (int child = getInt(slot, FIRST_CHILD_OFFSET); child != NONE;
+                 child = getInt(child, NEXT_SIBLING_OFFSET)) {
+                if (hasFile(child)) {
+                    childNames.add(new String(readName(names, child), StandardCharsets.UTF_8));
+                    digests.add(readDigest(child));
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        // The action may use the store, so it is run without the lock
+        for (int i = 0; i < childNames.size(); ++i) {
+            action.accept(childNames.get(i), digests.get(i));
+        }
+    }
+
+    @Override
+    public List<String> keys() {
+        List<String> keys = new ArrayList<>();
+        keysUnder("").forEachRemaining(keys::add);
+        return keys;
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return files;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public List<String> pathsOf(Digests.Key content) {
+        List<String> paths = new ArrayList<>();
+        long stamp = lock.readLock();
+        try {
+            ByteBuffer table = contentBuckets;
+            int bucket = contentBucket(content.hashCode(), table.capacity() / Integer.BYTES);
+            for (int slot = table.getInt(bucket * Integer.BYTES); slot != NONE;
+                 slot = getInt(slot, CONTENT_NEXT_OFFSET)) {
+                if (content.matches(chunk(slot), offset(slot) + MD5_OFFSET)) {
+                    paths.add(path(slot));
+                }
+            }
+            return paths;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean hasContent(Digests.Key content) {
+        long stamp = lock.readLock();
+        try {
+            ByteBuffer table = contentBuckets;
+            int bucket = contentBucket(content.hashCode(), table.capacity() / Integer.BYTES);
+            for (int slot = table.getInt(bucket * Integer.BYTES); slot != NONE;
+                 slot = getInt(slot, CONTENT_NEXT_OFFSET)) {
+                if (content.matches(chunk(slot), offset(slot) + MD5_OFFSET)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public List<Digests.Key> contents() {
+        List<Digests.Key> contents = new ArrayList<>();
+        long stamp = lock.readLock();
+        try {
+            ByteBuffer table = contentBuckets;
+            for (int bucket = 0; bucket < table.capacity() / Integer.BYTES; ++bucket) {
+                // Files with the same content are always in the same chain
+                int chainStart = contents.size();
+                for (int slot = table.getInt(bucket * Integer.BYTES); slot != NONE;
+                     slot = getInt(slot, CONTENT_NEXT_OFFSET)) {
+                    Digests.Key key = Digests.Key.read(chunk(slot), offset(slot) + MD5_OFFSET);
+                    if (!contents.subList(chainStart, contents.size()).contains(key)) {
+                        contents.add(key);
+                    }
+                }
+            }
+            return contents;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private ByteBuffer chunk(int slot) {
+        return records[slot / RECORDS_PER_CHUNK];
+    }
+
+    private static int offset(int slot) {
+        return (slot % RECORDS_PER_CHUNK) * RECORD_BYTES;
+    }
+
+    private int getInt(int slot, int field) {
+        return chunk(slot).getInt(offset(slot) + field);
+    }
+
+    private void putInt(int slot, int field, int value) {
+        chunk(slot).putInt(offset(slot) + field, value);
+    }
+
+    private boolean isLive(int slot) {
+        return (getInt(slot, FLAGS_OFFSET) & LIVE) != 0;
+    }
+
+    private boolean hasFile(int slot) {
+        return (getInt(slot, FLAGS_OFFSET) & HAS_FILE) != 0;
+    }
+
+    /**
+     * @return the slot and generation of a node, which together identify it even after the slot is reused
+     */
+    private long node(int slot) {
+        return (long) slot << 32 | (getInt(slot, GENERATION_OFFSET) & 0xffffffffL);
+    }
+
+    private long[] children(int slot) {
+        int count = 0;
+        for (int child = getInt(slot, FIRST_CHILD_OFFSET); child != NONE; child = getInt(child, NEXT_SIBLING_OFFSET)) {
+            ++count;
+        }
+        long[] children = new long[count];
+        int i = 0;
+        for (int child = getInt(slot, FIRST_CHILD_OFFSET); child != NONE; child = getInt(child, NEXT_SIBLING_OFFSET)) {
+            children[i++] = node(child);
+        }
+        return children;
+    }
+
+    private String path(int slot) {
+        StringBuilder sb = new StringBuilder();
+        for (int node = slot; node != ROOT; node = getInt(node, PARENT_OFFSET)) {
+            if (node != slot) {
+                sb.insert(0, File.separatorChar);
+            }
+            sb.insert(0, new String(readName(names, node), StandardCharsets.UTF_8));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the slot of the node with the given path, or MISSING if there isn't one
+     */
+    private int find(String pathName) {
+        int slot = ROOT;
+        for (String component : PathIndex.split(pathName)) {
+            byte[] name = component.getBytes(StandardCharsets.UTF_8);
+            slot = child(slot, name, Arrays.hashCode(name));
+            if (slot == NONE) {
+                return MISSING;
+            }
+        }
+        return slot;
+    }
+
+    private static int bucket(int parent, int nameHash, int bucketCount) {
+        int hash = parent * 0x9e3779b9 + nameHash;
+        return (hash ^ hash >>> 16) & (bucketCount - 1);
+    }
+
+    private int child(int parent, byte[] name, int nameHash) {
+        ByteBuffer table = buckets;
+        int bucket = bucket(parent, nameHash, table.capacity() / Integer.BYTES);
+        // A reader racing a writer could otherwise follow a broken chain forever
+        int hops = nextSlot;
+        for (int slot = table.getInt(bucket * Integer.BYTES); slot != NONE && hops-- > 0;
+             slot = getInt(slot, HASH_NEXT_OFFSET)) {
+            if (getInt(slot, PARENT_OFFSET) == parent && getInt(slot, NAME_HASH_OFFSET) == nameHash
+                    && Arrays.equals(readName(names, slot), name)) {
+                return slot;
+            }
+        }
+        return NONE;
+    }
+
+    private int createChild(int parent, byte[] name, int nameHash) {
+        int bucketCount = buckets.capacity() / Integer.BYTES;
+        if (++nodes > bucketCount / 4 * 3) {
+            rehash(bucketCount * 2);
+        }
+
+        int slot = allocate();
+        putInt(slot, PARENT_OFFSET, parent);
+        putInt(slot, FIRST_CHILD_OFFSET, NONE);
+        int first = getInt(parent, FIRST_CHILD_OFFSET);
+        putInt(slot, NEXT_SIBLING_OFFSET, first);
+        putInt(slot, PREVIOUS_SIBLING_OFFSET, NONE);
+        if (first != NONE) {
+            putInt(first, PREVIOUS_SIBLING_OFFSET, slot);
+        }
+        putInt(parent, FIRST_CHILD_OFFSET, slot);
+        putInt(slot, NAME_HASH_OFFSET, nameHash);
+        chunk(slot).putLong(offset(slot) + NAME_OFFSET, storeName(name));
+        putInt(slot, NAME_LENGTH_OFFSET, name.length);
+        putInt(slot, FLAGS_OFFSET, LIVE);
+
+        ByteBuffer table = buckets;
+        int bucket = bucket(parent, nameHash, table.capacity() / Integer.BYTES) * Integer.BYTES;
+        putInt(slot, HASH_NEXT_OFFSET, table.getInt(bucket));
+        table.putInt(bucket, slot);
+        return slot;
+    }
+
+    private int allocate() {
+        if (freeSlots != NONE) {
+            int slot = freeSlots;
+            freeSlots = getInt(slot, NEXT_SIBLING_OFFSET);
+            return slot;
+        }
+        int slot = nextSlot++;
+        if (slot / RECORDS_PER_CHUNK >= records.length) {
+            ByteBuffer[] grown = Arrays.copyOf(records, records.length + 1);
+            grown[records.length] = ByteBuffer.allocateDirect(RECORDS_PER_CHUNK * RECORD_BYTES);
+            records = grown;
+        }
+        return slot;
+    }
+
+    /**
+     * Frees a node and then its parents, for as long as they have no file and no children.
+     */
+    private void prune(int slot) {
+        while (slot != ROOT && !hasFile(slot) && getInt(slot, FIRST_CHILD_OFFSET) == NONE) {
+            int parent = getInt(slot, PARENT_OFFSET);
+            free(slot);
+            slot = parent;
+        }
+        if (nameGarbage >= NAME_CHUNK_BYTES && nameGarbage > nameBytes) {
+            compactNames();
+        }
+    }
+
+    private void free(int slot) {
+        int parent = getInt(slot, PARENT_OFFSET);
+        int previous = getInt(slot, PREVIOUS_SIBLING_OFFSET);
+        int next = getInt(slot, NEXT_SIBLING_OFFSET);
+        if (previous == NONE) {
+            putInt(parent, FIRST_CHILD_OFFSET, next);
+        } else {
+            putInt(previous, NEXT_SIBLING_OFFSET, next);
+        }
+        if (next != NONE) {
+            putInt(next, PREVIOUS_SIBLING_OFFSET, previous);
+        }
+
+        ByteBuffer table = buckets;
+        int bucket = bucket(parent, getInt(slot, NAME_HASH_OFFSET), table.capacity() / Integer.BYTES) * Integer.BYTES;
+        int first = table.getInt(bucket);
+        if (first == slot) {
+            table.putInt(bucket, getInt(slot, HASH_NEXT_OFFSET));
+        } else {
+            int before = first;
+            while (getInt(before, HASH_NEXT_OFFSET) != slot) {
+                before = getInt(before, HASH_NEXT_OFFSET);
+            }
+            putInt(before, HASH_NEXT_OFFSET, getInt(slot, HASH_NEXT_OFFSET));
+        }
+
+        int nameLength = getInt(slot, NAME_LENGTH_OFFSET);
+        nameBytes -= nameLength;
+        nameGarbage += nameLength;
+        putInt(slot, FLAGS_OFFSET, 0);
+        putInt(slot, GENERATION_OFFSET, getInt(slot, GENERATION_OFFSET) + 1);
+        putInt(slot, NEXT_SIBLING_OFFSET, freeSlots);
+        freeSlots = slot;
+        --nodes;
+    }
+
+    private void rehash(int bucketCount) {
+        ByteBuffer table = ByteBuffer.allocateDirect(bucketCount * Integer.BYTES);
+        for (int slot = ROOT + 1; slot < nextSlot; ++slot) {
+            if (isLive(slot)) {
+                int bucket = bucket(getInt(slot, PARENT_OFFSET), getInt(slot, NAME_HASH_OFFSET), bucketCount)
+                             * Integer.BYTES;
+                putInt(slot, HASH_NEXT_OFFSET, table.getInt(bucket));
+                table.putInt(bucket, slot);
+            }
+        }
+        buckets = table;
+    }
+
+    private static int contentBucket(int contentHash, int bucketCount) {
+        // The digest is already uniformly distributed
+        return contentHash & (bucketCount - 1);
+    }
+
+    private int contentBucket(int slot) {
+        return contentBucket(Digests.Key.read(chunk(slot), offset(slot) + MD5_OFFSET).hashCode(),
+                             contentBuckets.capacity() / Integer.BYTES) * Integer.BYTES;
+    }
+
+    /**
+     * Adds a file to the chain for its content.
+     */
+    private void linkContent(int slot) {
+        int bucketCount = contentBuckets.capacity() / Integer.BYTES;
+        if (files > bucketCount / 4 * 3) {
+            // This links the file too
+            rehashContent(bucketCount * 2);
+            return;
+        }
+        int bucket = contentBucket(slot);
+        putInt(slot, CONTENT_NEXT_OFFSET, contentBuckets.getInt(bucket));
+        contentBuckets.putInt(bucket, slot);
+    }
+
+    /**
+     * Removes a file from the chain for its content. This must be done before its digest is overwritten.
+     */
+    private void unlinkContent(int slot) {
+        int bucket = contentBucket(slot);
+        int first = contentBuckets.getInt(bucket);
+        if (first == slot) {
+            contentBuckets.putInt(bucket, getInt(slot, CONTENT_NEXT_OFFSET));
+        } else {
+            int before = first;
+            while (getInt(before, CONTENT_NEXT_OFFSET) != slot) {
+                before = getInt(before, CONTENT_NEXT_OFFSET);
+            }
+            putInt(before, CONTENT_NEXT_OFFSET, getInt(slot, CONTENT_NEXT_OFFSET));
+        }
+    }
+
+    private void rehashContent(int bucketCount) {
+        contentBuckets = ByteBuffer.allocateDirect(bucketCount * Integer.BYTES);
+        for (int slot = ROOT + 1; slot < nextSlot; ++slot) {
+            if (isLive(slot) && hasFile(slot)) {
+                int bucket = contentBucket(slot);
+                putInt(slot, CONTENT_NEXT_OFFSET, contentBuckets.getInt(bucket));
+                contentBuckets.putInt(bucket, slot);
+            }
+        }
+    }
+
+    /**
+     * Appends a name to the arena.
+     * @return its location: the index of the arena chunk, then the position in the chunk
+     */
+    private long storeName(byte[] name) {
+        ByteBuffer[] arena = names;
+        if (arena.length == 0 || nameEnd + name.length > arena[arena.length - 1].capacity()) {
+            arena = Arrays.copyOf(arena, arena.length + 1);
+            arena[arena.length - 1] = ByteBuffer.allocateDirect(Math.max(NAME_CHUNK_BYTES, name.length));
+            names = arena;
+            nameEnd = 0;
+        }
+        ByteBuffer chunk = arena[arena.length - 1];
+        for (int i = 0; i < name.length; ++i) {
+            chunk.put(nameEnd + i, name[i]);
+        }
+        long location = (long) (arena.length - 1) << 32 | nameEnd;
+        nameEnd += name.length;
+        nameBytes += name.length;
+        return location;
+    }
+
+    private byte[] readName(ByteBuffer[] arena, int slot) {
+        long location = chunk(slot).getLong(offset(slot) + NAME_OFFSET);
+        ByteBuffer chunk = arena[(int) (location >>> 32)];
+        int position = (int) location;
+        byte[] name = new byte[getInt(slot, NAME_LENGTH_OFFSET)];
+        for (int i = 0; i < name.length; ++i) {
+            name[i] = chunk.get(position + i);
+        }
+        return name;
+    }
+
+    /**
+     * Copies the names of the remaining nodes to a new arena, dropping those of removed nodes.
+     */
+    private void compactNames() {
+        ByteBuffer[] old = names;
+        names = new ByteBuffer[0];
+        nameEnd = 0;
+        nameBytes = 0;
+        nameGarbage = 0;
+        for (int slot = ROOT + 1; slot < nextSlot; ++slot) {
+            if (isLive(slot)) {
+                chunk(slot).putLong(offset(slot) + NAME_OFFSET, storeName(readName(old, slot)));
+            }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package unimelb.bitbox.util.fs;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.config.Configuration;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * Stores the content of small received files in a few large, append-only pack files, keyed by the MD5 digest of the
+ * content, so that receiving millions of tiny files doesn't mean creating, renaming and re-hashing a loader file for
+ * each one. The files themselves are written into the share from the packs afterwards, in batches.
+ * <br/>
+ * Each pack is a magic number followed by records of [16-byte digest][4-byte length][content]. Content is stored once
+ * however many files have it. The index of where each digest is stored is kept in memory and rebuilt from the packs
+ * on startup, cutting off any record that was only half written when we stopped. Content is checked against its
+ * digest whenever it is read, so a damaged pack can't put the wrong bytes into the share; the packs are only a cache
+ * of what is in the share, so they are not synced to disk.
+ * <br/>
+ * Files up to <code>packThreshold</code> bytes are stored; 0 (the default) disables the store. Only the newest pack
+ * is written to. Compaction rewrites the live records of older packs that are mostly dead (content that no file in
+ * the share has any more) into the newest pack, and deletes them.
+ *
+ * @author Eleanor McMurtry
+ */
+class PackStore {
+    private static final String PACK_DIRECTORY = "packs";
+    private static final String PACK_SUFFIX = ".pack";
+    private static final int MAGIC = 0x4242504b;
+    private static final int HEADER_BYTES = Digests.MD5_BYTES + Integer.BYTES;
+    private static final long PACK_LIMIT = 64 * 1024 * 1024;
+
+    private static final class Location {
+        private final int pack;
+        private final long offset;
+        private final int length;
+
+        private Location(int pack, long offset, int length) {
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final Path directory = Paths.get(PACK_DIRECTORY);
+    private final long threshold;
+    private final Map<Digests.Key, Location> index = new HashMap<>();
+    private final TreeMap<Integer, FileChannel> packs = new TreeMap<>();
+    // Content that is about to be written into the share, which compaction must keep whether or not it is live
+    private final Map<Digests.Key, Integer> pinned = new ConcurrentHashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private int current;
+    private long currentSize;
+
+    private PackStore(long threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Opens the packs in the working directory.
+     * @return the store, or nothing if it is disabled or the packs could not be opened
+     */
+    static Maybe<PackStore> open() {
+        long threshold = Configuration.getConfigurationValue("packThreshold")
+                                      .map(Long::parseLong)
+                                      .orElse(0L);
+        if (threshold <= 0) {
+            return Maybe.nothing();
+        }
+        PackStore store = new PackStore(Math.min(threshold, Integer.MAX_VALUE));
+        try {
+            store.load();
+        } catch (IOException e) {
+            PeerServer.log().warning("failed opening pack store; small files will be written directly: " + e.getMessage());
+            return Maybe.nothing();
+        }
+        return Maybe.just(store);
+    }
+
+    private void load() throws IOException {
+        Files.createDirectories(directory);
+        List<Integer> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + PACK_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    numbers.add(Integer.parseInt(name.substring(0, name.length() - PACK_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    PeerServer.log().warning("ignoring unexpected file " + path + " in pack directory");
+                }
+            }
+        }
+        numbers.sort(null);
+
+        for (int number : numbers) {
+            FileChannel channel = FileChannel.open(packPath(number), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            packs.put(number, channel);
+            long valid = scan(number, channel);
+            if (valid < channel.size()) {
+                PeerServer.log().warning("discarding " + (channel.size() - valid) + " bytes of incomplete records from pack " + number);
+                channel.truncate(valid);
+            }
+        }
+        if (packs.isEmpty()) {
+            startPack(0);
+        } else {
+            current = packs.lastKey();
+            currentSize = packs.get(current).size();
+        }
+        PeerServer.log().fine("pack store holds " + index.size() + " files in " + packs.size() + " packs");
+    }
+
+    /**
+     * Adds the records of a pack to the index.
+     * @return the length of the pack up to the end of its last complete record
+     */
+    private long scan(int number, FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+        if (readFully(channel, magic, 0) < Integer.BYTES || magic.getInt(0) != MAGIC) {
+            throw new IOException("pack " + number + " is not a pack file");
+        }
+        long position = Integer.BYTES;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (true) {
+            header.clear();
+            if (readFully(channel, header, position) < HEADER_BYTES) {
+                return position;
+            }
+            header.flip();
+            byte[] md5 = new byte[Digests.MD5_BYTES];
+            header.get(md5);
+            int length = header.getInt();
+            if (length < 0 || position + HEADER_BYTES + length > size) {
+                return position;
+            }
+            index.put(Digests.Key.of(md5), new Location(number, position + HEADER_BYTES, length));
+            position += HEADER_BYTES + length;
+        }
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private Path packPath(int number) {
+        return directory.resolve(number + PACK_SUFFIX);
+    }
+
+    private void startPack(int number) throws IOException {
+        FileChannel channel = FileChannel.open(packPath(number), StandardOpenOption.CREATE_NEW,
+                                               StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES).putInt(MAGIC);
+        magic.flip();
+        channel.write(magic, 0);
+        packs.put(number, channel);
+        current = number;
+        currentSize = Integer.BYTES;
+    }
+
+    /**
+     * @return whether files of the given size belong in the store
+     */
+    boolean accepts(long fileSize) {
+        return fileSize <= threshold;
+    }
+
+    /**
+     * Stores content, unless it is already stored, and keeps it until {@link #release(String)} is called.
+     */
+    void put(String md5, byte[] content) throws IOException {
+        Digests.Key key = Digests.Key.of(Digests.fromHex(md5));
+        lock.writeLock().lock();
+        try {
+            if (!index.containsKey(key)) {
+                append(key, content);
+            }
+            pin(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * If the content is stored, keeps it until {@link #release(String)} is called.
+     * @return whether the content is stored
+     */
+    boolean retain(String md5) {
+        Maybe<Digests.Key> key = Digests.Key.of(md5);
+        if (!key.isJust()) {
+            return false;
+        }
+        lock.readLock().lock();
+        try {
+            if (!index.containsKey(key.get())) {
+                return false;
+            }
+            pin(key.get());
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lets compaction drop content again once it is no longer needed.
+     */
+    void release(String md5) {
+        Digests.Key.of(md5).consume(key -> pinned.computeIfPresent(key, (ignored, count) -> count == 1 ? null : count - 1));
+    }
+
+    private void pin(Digests.Key key) {
+        pinned.merge(key, 1, Integer::sum);
+    }
+
+    private void append(Digests.Key key, byte[] content) throws IOException {
+        if (currentSize + HEADER_BYTES + content.length > PACK_LIMIT && currentSize > Integer.BYTES) {
+            startPack(current + 1);
+        }
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + content.length);
+        record.put(key.toBytes()).putInt(content.length).put(content);
+        record.flip();
+        FileChannel channel = packs.get(current);
+        long position = currentSize;
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+        index.put(key, new Location(current, currentSize + HEADER_BYTES, content.length));
+        currentSize = position;
+    }
+
+    /**
+     * @return the stored content, or nothing if it is not stored or no longer matches its digest
+     */
+    Maybe<byte[]> get(String md5) throws IOException {
+        Maybe<Digests.Key> key = Digests.Key.of(md5);
+        if (!key.isJust()) {
+            return Maybe.nothing();
+        }
+        lock.readLock().lock();
+        try {
+            Location location = index.get(key.get());
+            if (location == null) {
+                return Maybe.nothing();
+            }
+            byte[] content = read(location);
+            if (!Arrays.equals(Digests.md5(content), key.get().toBytes())) {
+                PeerServer.log().warning("content " + md5 + " is damaged in pack " + location.pack);
+                return Maybe.nothing();
+            }
+            return Maybe.just(content);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private byte[] read(Location location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        FileManagerException.check(readFully(packs.get(location.pack), buffer, location.offset) == location.length,
+                                   "pack " + location.pack + " is shorter than its index");
+        return buffer.array();
+    }
+
+    /**
+     * Rewrites every older pack that is less than half live, keeping only the content that is live or pinned.
+     * @param live tells whether a file in the share still has the content
+     */
+    void compact(Predicate<Digests.Key> live) {
+        Predicate<Digests.Key> keep = live.or(pinned::containsKey);
+        Map<Integer, Long> liveBytes = new HashMap<>();
+        Map<Integer, FileChannel> older;
+        lock.readLock().lock();
+        try {
+            older = new HashMap<>(packs.headMap(current));
+            index.forEach((key, location) -> {
+                if (location.pack != current && keep.test(key)) {
+                    liveBytes.merge(location.pack, (long) HEADER_BYTES + location.length, Long::sum);
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        older.forEach((number, channel) -> {
+            try {
+                if (liveBytes.getOrDefault(number, 0L) * 2 < channel.size()) {
+                    compact(number, keep);
+                }
+            } catch (IOException e) {
+                PeerServer.log().warning("failed compacting pack " + number + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private void compact(int number, Predicate<Digests.Key> keep) throws IOException {
+        lock.writeLock().lock();
+        try {
+            int moved = 0;
+            int dropped = 0;
+            for (Map.Entry<Digests.Key, Location> entry : new ArrayList<>(index.entrySet())) {
+                if (entry.getValue().pack != number) {
+                    continue;
+                }
+                if (keep.test(entry.getKey())) {
+                    append(entry.getKey(), read(entry.getValue()));
+                    ++moved;
+                } else {
+                    index.remove(entry.getKey());
+                    ++dropped;
+                }
+            }
+            packs.remove(number).close();
+            Files.delete(packPath(number));
+            PeerServer.log().fine("compacted pack " + number + ": kept " + moved + ", dropped " + dropped);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
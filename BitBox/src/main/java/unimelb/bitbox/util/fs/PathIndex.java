@@ -0,0 +1,308 @@
+package unimelb.bitbox.util.fs;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.util.concurrency.Iteration;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * A trie over path names relative to the share directory. Each path component is stored once per node, and directory
+ * names are shared across every index, so that a share with millions of files does not hold millions of copies of
+ * the same directory names. Shared names are held weakly, so a name is dropped once no index uses it. File names are
+ * rarely repeated, so they are not shared.
+ * <br/>
+ * Lookups are O(depth) and never lock. Mutations are serialised on the index, which keeps pruning of empty
+ * branches simple; they are far less common than lookups.
+ * <br/>
+ * Subtree operations ({@link #forEachUnder(String, BiConsumer)}, {@link #keysUnder(String)},
+ * {@link #removeUnder(String)}) only visit the affected branch, so prefix queries are no longer full scans.
+ *
+ * @param <V> the type of value stored against each path
+ *
+ * @author Eleanor McMurtry
+ */
+class PathIndex<V> {
+    // Guarded by itself
+    private static final Map<String, WeakReference<String>> directoryNames = new WeakHashMap<>();
+
+    private final Node<V> root = new Node<>(null, "");
+    private int size = 0;
+
+    private static final class Node<V> {
+        private final Node<V> parent;
+        private final String name;
+        private volatile Map<String, Node<V>> children;
+        private volatile V value;
+
+        private Node(Node<V> parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        private Node<V> child(String component) {
+            Map<String, Node<V>> map = children;
+            return map == null ? null : map.get(component);
+        }
+
+        private Node<V> childOrCreate(String component, boolean directory) {
+            Node<V> child = child(component);
+            if (child == null) {
+                if (children == null) {
+                    // Most nodes are files, so only allocate the map when we need it
+                    children = new ConcurrentHashMap<>(4);
+                }
+                String name = directory ? directoryName(component) : component;
+                child = new Node<>(this, name);
+                children.put(name, child);
+            }
+            return child;
+        }
+
+        private boolean isEmpty() {
+            Map<String, Node<V>> map = children;
+            return value == null && (map == null || map.isEmpty());
+        }
+
+        private String path() {
+            if (parent == null) {
+                return "";
+            }
+            StringBuilder sb = new StringBuilder(name);
+            for (Node<V> node = parent; node.parent != null; node = node.parent) {
+                sb.insert(0, File.separatorChar).insert(0, node.name);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Splits a relative path name into its components, ignoring empty components.
+     */
+    static String[] split(String pathName) {
+        String[] parts = pathName.split(File.separatorChar == '\\' ? "\\\\" : File.separator);
+        List<String> result = new ArrayList<>(parts.length);
+        for (String part : parts) {
+            if (!part.isEmpty()) {
+                result.add(part);
+            }
+        }
+        return result.toArray(new String[0]);
+    }
+
+    /**
+     * @return the shared copy of a directory name, to be kept in place of the given one
+     */
+    static String directoryName(String name) {
+        synchronized (directoryNames) {
+            WeakReference<String> ref = directoryNames.get(name);
+            String shared = ref == null ? null : ref.get();
+            if (shared == null) {
+                shared = name;
+                directoryNames.put(name, new WeakReference<>(name));
+            }
+            return shared;
+        }
+    }
+
+    private Node<V> find(String pathName) {
+        Node<V> node = root;
+        for (String component : split(pathName)) {
+            node = node.child(component);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Looks up the value stored against a path.
+     */
+    Maybe<V> get(String pathName) {
+        return Maybe.of(find(pathName)).andThen(node -> Maybe.of(node.value));
+    }
+
+    boolean containsKey(String pathName) {
+        return get(pathName).isJust();
+    }
+
+    /**
+     * Stores a value against a path, replacing any existing value.
+     */
+    synchronized void put(String pathName, V value) {
+        Node<V> node = root;
+        String[] components = split(pathName);
+        for (int i = 0; i < components.length; ++i) {
+            node = node.childOrCreate(components[i], i < components.length - 1);
+        }
+        if (node.value == null) {
+            ++size;
+        }
+        node.value = value;
+    }
+
+    /**
+     * Removes the value stored against a path, pruning any branches that become empty.
+     * @return the removed value, if there was one
+     */
+    synchronized Maybe<V> remove(String pathName) {
+        Node<V> node = find(pathName);
+        if (node == null || node.value == null) {
+            return Maybe.nothing();
+        }
+        V value = node.value;
+        node.value = null;
+        --size;
+        prune(node);
+        return Maybe.just(value);
+    }
+
+    /**
+     * Removes every value stored at or below a path.
+     * @return the removed entries, keyed by path name
+     */
+    synchronized Map<String, V> removeUnder(String pathName) {
+        Map<String, V> removed = new ConcurrentHashMap<>();
+        Node<V> node = find(pathName);
+        if (node == null) {
+            return removed;
+        }
+        visit(node, removed::put);
+        size -= removed.size();
+        if (node == root) {
+            root.value = null;
+            root.children = null;
+        } else {
+            node.value = null;
+            node.children = null;
+            prune(node);
+        }
+        return removed;
+    }
+
+    private void prune(Node<V> node) {
+        while (node.parent != null && node.isEmpty()) {
+            node.parent.children.remove(node.name);
+            node = node.parent;
+        }
+    }
+
+    /**
+     * Performs an action on every entry in the index.
+     */
+    void forEach(BiConsumer<? super String, ? super V> action) {
+        visit(root, action);
+    }
+
+    /**
+     * Performs an action on every entry stored at or below a path.
+     */
+    void forEachUnder(String pathName, BiConsumer<? super String, ? super V> action) {
+        Node<V> node = find(pathName);
+        if (node != null) {
+            visit(node, action);
+        }
+    }
+
+    private void visit(Node<V> node, BiConsumer<? super String, ? super V> action) {
+        visit(node, node.path(), action);
+    }
+
+    private void visit(Node<V> node, String pathName, BiConsumer<? super String, ? super V> action) {
+        V value = node.value;
+        if (value != null) {
+            action.accept(pathName, value);
+        }
+        Map<String, Node<V>> map = node.children;
+        if (map != null) {
+            for (Node<V> child : map.values()) {
+                visit(child, pathName.isEmpty() ? child.name : pathName + File.separatorChar + child.name, action);
+            }
+        }
+    }
+
+    /**
+     * Lazily lists the path names stored at or below a path, with every path before any path below it. Only the
+     * iterators over the children of the current branch are held, so this uses memory in proportion to the depth of
+     * the tree rather than its size. Entries changed during iteration may or may not be seen.
+     */
+    Iterator<String> keysUnder(String pathName) {
+        Deque<Iterator<Node<V>>> stack = new ArrayDeque<>();
+        Maybe.of(find(pathName)).consume(node -> stack.push(Collections.singletonList(node).iterator()));
+        return Iteration.generate(() -> {
+            while (!stack.isEmpty()) {
+                Iterator<Node<V>> top = stack.peek();
+                if (!top.hasNext()) {
+                    stack.pop();
+                    continue;
+                }
+                Node<V> node = top.next();
+                Map<String, Node<V>> map = node.children;
+                if (map != null) {
+                    stack.push(map.values().iterator());
+                }
+                if (node.value != null) {
+                    return Maybe.just(node.path());
+                }
+            }
+            return Maybe.nothing();
+        });
+    }
+
+    /**
+     * Performs an action on every entry stored directly below a path, given its name rather than its path name.
+     */
+    void forEachChild(String pathName, BiConsumer<? super String, ? super V> action) {
+        Node<V> node = find(pathName);
+        Map<String, Node<V>> map = node == null ? null : node.children;
+        if (map != null) {
+            for (Node<V> child : map.values()) {
+                V value = child.value;
+                if (value != null) {
+                    action.accept(child.name, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the path names stored directly below a path (but not further down)
+     */
+    List<String> childKeys(String pathName) {
+        List<String> keys = new ArrayList<>();
+        Node<V> node = find(pathName);
+        Map<String, Node<V>> map = node == null ? null : node.children;
+        if (map != null) {
+            for (Node<V> child : map.values()) {
+                if (child.value != null) {
+                    keys.add(pathName.isEmpty() ? child.name : pathName + File.separatorChar + child.name);
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return a snapshot of all path names in the index
+     */
+    List<String> keys() {
+        List<String> keys = new ArrayList<>();
+        forEach((pathName, ignored) -> keys.add(pathName));
+        return keys;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+}
@@ -36,6 +36,16 @@ class RandomAccessChannel implements AutoCloseable {
         return raf.read(dest);
     }
 
+    /**
+     * Reads from the given position, without moving the position that {@link #read(byte[])} reads from.
+     */
+    public int read(ByteBuffer dest, long position) throws IOException {
+        if (closed) {
+            throw new IOException("channel closed");
+        }
+        return channel.read(dest, position);
+    }
+
     void reset() throws IOException {
         if (closed) {
             throw new IOException("channel closed");
@@ -0,0 +1,236 @@
+package unimelb.bitbox.util.fs;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.config.Configuration;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the version of a file that peers are downloading, so that a download that is under way still completes if
+ * the file is modified or replaced in the meantime, rather than failing and starting again from the beginning.
+ * <br/>
+ * When a block of a file that takes more than one block is served, a snapshot of the file is taken in the background,
+ * and later blocks with the same content are read from the snapshot. The file is never copied for this: the snapshot
+ * is a clone or hard link where {@link ShortcutEngine} can make one, and otherwise the original file is simply held
+ * open. An open file costs nothing while it is unchanged, and still has the old content if the file is replaced
+ * (e.g. saved by renaming a new version over it) while the download is under way. A snapshot is kept until nothing
+ * has been read from it for <code>SNAPSHOT_TIMEOUT</code>. One that has changed since it was taken (a hard link or
+ * open file that was modified in place) is thrown away.
+ * <br/>
+ * Files over <code>snapshotMaxSize</code> bytes are not kept, since a snapshot holds on to the disk space of the old
+ * version once the file changes; 0 disables snapshots. Snapshots live in a directory in the share directory, so that
+ * clones and links are possible, which the scanner ignores. Any left over from a previous run are deleted on
+ * startup.
+ *
+ * @author Eleanor McMurtry
+ */
+class ReadSnapshots {
+    private static final long SNAPSHOT_TIMEOUT = 2 * 60 * 1000;
+    private static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+
+    private static final class Snapshot {
+        private final Path path;
+        private final Path source;
+        // Nothing until the snapshot has been taken
+        private volatile Maybe<FileStamp> stamp = Maybe.nothing();
+        // The source itself, held open when no clone or link could be made
+        private volatile Maybe<FileChannel> original = Maybe.nothing();
+        private volatile long lastRead = System.currentTimeMillis();
+
+        private Snapshot(Path path, Path source) {
+            this.path = path;
+            this.source = source;
+        }
+    }
+
+    private final Path directory;
+    private final ShortcutEngine shortcuts;
+    private final long maxSize;
+    private final Map<Digests.Key, Snapshot> snapshots = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor();
+
+    ReadSnapshots(Path directory, ShortcutEngine shortcuts) {
+        this.directory = directory;
+        this.shortcuts = shortcuts;
+        maxSize = Configuration.getConfigurationValue("snapshotMaxSize")
+                               .map(Long::parseLong)
+                               .orElse(DEFAULT_MAX_SIZE);
+        clear();
+        worker.scheduleWithFixedDelay(this::expire, SNAPSHOT_TIMEOUT / 4, SNAPSHOT_TIMEOUT / 4, TimeUnit.MILLISECONDS);
+    }
+
+    private void clear() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            PeerServer.log().warning("failed removing old snapshots: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads from the snapshot of the given content, if there is one.
+     * @return the bytes, or nothing if there is no snapshot of the content or it could not be read
+     */
+    Maybe<ByteBuffer> read(String md5, long position, long length) {
+        Maybe<Digests.Key> key = Digests.Key.of(md5);
+        Snapshot snapshot = key.isJust() ? snapshots.get(key.get()) : null;
+        if (snapshot == null || !snapshot.stamp.isJust()) {
+            return Maybe.nothing();
+        }
+
+        Maybe<FileChannel> original = snapshot.original;
+        if (!(original.isJust() ? originalUnchanged(snapshot, original.get()) : snapshotUnchanged(snapshot))) {
+            PeerServer.log().fine("snapshot of " + md5 + " has changed; discarding it");
+            discard(key.get(), snapshot);
+            return Maybe.nothing();
+        }
+
+        snapshot.lastRead = System.currentTimeMillis();
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        try {
+            if (original.isJust()) {
+                read(original.get(), buffer, position);
+            } else {
+                try (FileChannel channel = FileChannel.open(snapshot.path, StandardOpenOption.READ)) {
+                    read(channel, buffer, position);
+                }
+            }
+        } catch (IOException e) {
+            // e.g. it expired while we were reading it; the share may still have the content
+            PeerServer.log().fine("failed reading snapshot of " + md5 + ": " + e.getMessage());
+            return Maybe.nothing();
+        }
+        return Maybe.just(buffer);
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("snapshot is shorter than expected");
+            }
+        }
+    }
+
+    private static boolean snapshotUnchanged(Snapshot snapshot) {
+        try {
+            return unchanged(snapshot.stamp.get(), FileStamp.read(snapshot.path));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * An open file keeps its content if another file is renamed over it or it is deleted, but not if it is written
+     * to. Writes are caught by the path still naming the same file with a different stamp, or by the open file
+     * changing size.
+     */
+    private static boolean originalUnchanged(Snapshot snapshot, FileChannel channel) {
+        FileStamp taken = snapshot.stamp.get();
+        try {
+            if (channel.size() != taken.fileSize) {
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        try {
+            FileStamp current = FileStamp.read(snapshot.source);
+            boolean sameFile = current.device == taken.device && current.inode == taken.inode;
+            return !sameFile || unchanged(taken, current);
+        } catch (IOException e) {
+            // Deleted; the open file still has the content
+            return true;
+        }
+    }
+
+    /**
+     * Takes a snapshot of a file in the background, unless there already is one of its content.
+     * @param stamp the stamp of the file when its content was last checked, which it must still have
+     */
+    void take(String md5, Path source, FileStamp stamp) {
+        if (stamp.fileSize > maxSize) {
+            return;
+        }
+        Digests.Key.of(md5).consume(key -> {
+            Snapshot snapshot = new Snapshot(directory.resolve(md5), source);
+            if (snapshots.putIfAbsent(key, snapshot) == null) {
+                worker.execute(() -> create(key, snapshot, source, stamp));
+            }
+        });
+    }
+
+    private void create(Digests.Key key, Snapshot snapshot, Path source, FileStamp stamp) {
+        try {
+            Files.createDirectories(directory);
+            Files.deleteIfExists(snapshot.path);
+            FileManagerException.check(FileStamp.read(source).equals(stamp), "file changed before snapshot");
+            Maybe<ShortcutEngine.Method> method = shortcuts.share(source, snapshot.path);
+            if (method.isJust()) {
+                FileManagerException.check(unchanged(stamp, FileStamp.read(source)), "file changed during snapshot");
+                snapshot.stamp = Maybe.just(FileStamp.read(snapshot.path));
+                PeerServer.log().fine("took snapshot of " + source + " (" + method.get() + ")");
+            } else {
+                FileChannel channel = FileChannel.open(source, StandardOpenOption.READ);
+                // Make sure what we opened is the file that was checked
+                if (!unchanged(stamp, FileStamp.read(source)) || channel.size() != stamp.fileSize) {
+                    channel.close();
+                    throw new FileManagerException("file changed before snapshot");
+                }
+                snapshot.original = Maybe.just(channel);
+                snapshot.stamp = Maybe.just(stamp);
+                PeerServer.log().fine("holding " + source + " open as its snapshot");
+            }
+            snapshot.lastRead = System.currentTimeMillis();
+        } catch (IOException e) {
+            PeerServer.log().fine("failed taking snapshot of " + source + ": " + e.getMessage());
+            discard(key, snapshot);
+        }
+    }
+
+    /**
+     * A hard link's status change time changes with its other names, so only the content's attributes are compared.
+     */
+    private static boolean unchanged(FileStamp taken, FileStamp current) {
+        return taken.fileSize == current.fileSize && taken.lastModified == current.lastModified
+                && taken.device == current.device && taken.inode == current.inode;
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        snapshots.forEach((key, snapshot) -> {
+            if (snapshot.stamp.isJust() && now - snapshot.lastRead >= SNAPSHOT_TIMEOUT) {
+                discard(key, snapshot);
+            }
+        });
+    }
+
+    private void discard(Digests.Key key, Snapshot snapshot) {
+        if (snapshots.remove(key, snapshot)) {
+            try {
+                if (snapshot.original.isJust()) {
+                    snapshot.original.get().close();
+                }
+                Files.deleteIfExists(snapshot.path);
+            } catch (IOException e) {
+                PeerServer.log().warning("failed removing snapshot " + snapshot.path + ": " + e.getMessage());
+            }
+        }
+    }
+}
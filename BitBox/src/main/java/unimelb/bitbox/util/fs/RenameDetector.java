@@ -0,0 +1,77 @@
+package unimelb.bitbox.util.fs;
+
+import functional.algebraic.Maybe;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Pairs up files that disappeared during a scan with files that appeared in it, so that a move can be reported as
+ * such rather than as a delete and a create.
+ * <br/>
+ * A move within a file system keeps the file's identity (see {@link FileStamp#identity()}), size and modification time,
+ * so a new file that matches a vanished one in all three is the same file under a new name. On file systems that
+ * don't provide an identity, nothing is paired and moves are reported as before.
+ *
+ * @author Eleanor McMurtry
+ */
+class RenameDetector {
+    private final Map<List<Long>, Map<String, FileStamp>> arrivals = new HashMap<>();
+
+    /**
+     * A file that appeared during the scan.
+     */
+    static final class Arrival {
+        final String pathName;
+        final FileStamp stamp;
+
+        private Arrival(String pathName, FileStamp stamp) {
+            this.pathName = pathName;
+            this.stamp = stamp;
+        }
+    }
+
+    /**
+     * Forgets the arrivals from the previous scan.
+     */
+    void clear() {
+        arrivals.clear();
+    }
+
+    /**
+     * Records that a file we weren't watching was seen during the scan.
+     */
+    void arrived(String pathName, FileStamp stamp) {
+        stamp.identity().consume(identity -> arrivals.computeIfAbsent(identity, key -> new LinkedHashMap<>())
+                                                     .put(pathName, stamp));
+    }
+
+    /**
+     * Finds the file that a vanished file was moved to, and stops tracking it so that it can't be claimed twice.
+     * @param oldStamp the stamp of the vanished file
+     * @param accept   any further check the new file must pass (e.g. on its content)
+     */
+    Maybe<Arrival> claim(FileStamp oldStamp, Predicate<? super String> accept) {
+        Maybe<Map<String, FileStamp>> found = oldStamp.identity()
+                                                      .andThen(identity -> Maybe.of(arrivals.get(identity)));
+        if (!found.isJust()) {
+            return Maybe.nothing();
+        }
+        Map<String, FileStamp> candidates = found.get();
+        Iterator<Map.Entry<String, FileStamp>> it = candidates.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, FileStamp> candidate = it.next();
+            FileStamp stamp = candidate.getValue();
+            if (stamp.fileSize == oldStamp.fileSize && stamp.lastModified == oldStamp.lastModified
+                    && accept.test(candidate.getKey())) {
+                it.remove();
+                return Maybe.just(new Arrival(candidate.getKey(), stamp));
+            }
+        }
+        return Maybe.nothing();
+    }
+}
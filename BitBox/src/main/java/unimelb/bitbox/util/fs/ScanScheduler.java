@@ -0,0 +1,169 @@
+package unimelb.bitbox.util.fs;
+
+import unimelb.bitbox.util.config.Configuration;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Decides which directories of the share directory are due to be rescanned, so that polling costs are proportional
+ * to how often things change rather than to the size of the share.
+ * <br/>
+ * Each directory is listed on its own schedule. A scan that finds no changes doubles the directory's interval, up to
+ * <code>scanMaxInterval</code>; a scan that finds a change, or any write we make to the directory on behalf of a
+ * peer, brings it straight back to <code>scanMinInterval</code>. Both values are in milliseconds. Busy directories
+ * are therefore checked about as often as before, while an untouched archive is only listed once in a while.
+ * <br/>
+ * The stamp each directory had when it was last listed is kept too, so that a directory that isn't due can still be
+ * listed early if it has changed, e.g. to find where a file that vanished elsewhere was moved to.
+ *
+ * @author Eleanor McMurtry
+ */
+class ScanScheduler {
+    private static final long DEFAULT_MIN_INTERVAL = 1000;
+    private static final long DEFAULT_MAX_INTERVAL = 60000;
+
+    private static final class Schedule {
+        private final String pathName;
+        private long interval;
+        private long nextScan;
+        private FileStamp listed;
+
+        private Schedule(String pathName, long interval, long nextScan) {
+            this.pathName = pathName;
+            this.interval = interval;
+            this.nextScan = nextScan;
+        }
+    }
+
+    private final Map<String, Schedule> schedules = new HashMap<>();
+    private final TreeSet<Schedule> queue = new TreeSet<>(Comparator.<Schedule>comparingLong(s -> s.nextScan)
+                                                                    .thenComparing(s -> s.pathName));
+
+    private static long configValue(String key, long defaultValue) {
+        return Configuration.getConfigurationValue(key)
+                            .map(Long::parseLong)
+                            .orElse(defaultValue);
+    }
+
+    /**
+     * @return the interval at which the busiest directories are scanned
+     */
+    static long minInterval() {
+        return Math.max(1, configValue("scanMinInterval", DEFAULT_MIN_INTERVAL));
+    }
+
+    private static long maxInterval() {
+        return Math.max(minInterval(), configValue("scanMaxInterval", DEFAULT_MAX_INTERVAL));
+    }
+
+    private void reschedule(Schedule schedule, long interval, long nextScan) {
+        queue.remove(schedule);
+        schedule.interval = interval;
+        schedule.nextScan = nextScan;
+        queue.add(schedule);
+    }
+
+    /**
+     * Starts scheduling a directory. It is treated as busy, since it has only just appeared.
+     */
+    synchronized void watch(String pathName, long now) {
+        if (!schedules.containsKey(pathName)) {
+            Schedule schedule = new Schedule(pathName, minInterval(), now + minInterval());
+            schedules.put(pathName, schedule);
+            queue.add(schedule);
+        }
+    }
+
+    /**
+     * Stops scheduling a directory, e.g. because it was deleted.
+     */
+    synchronized void forget(String pathName) {
+        Schedule schedule = schedules.remove(pathName);
+        if (schedule != null) {
+            queue.remove(schedule);
+        }
+    }
+
+    /**
+     * Marks a directory as busy, so that it is scanned at the next opportunity.
+     */
+    synchronized void touch(String pathName, long now) {
+        Schedule schedule = schedules.get(pathName);
+        if (schedule != null) {
+            reschedule(schedule, minInterval(), now);
+        }
+    }
+
+    /**
+     * Records the stamp a directory had just before it was listed.
+     */
+    synchronized void listed(String pathName, FileStamp stamp) {
+        Schedule schedule = schedules.get(pathName);
+        if (schedule != null) {
+            schedule.listed = stamp;
+        }
+    }
+
+    /**
+     * @param root    the directory the scheduled path names are relative to
+     * @param exclude directories to leave out, e.g. because they were just listed
+     * @return the other directories whose stamp has changed since they were last listed, in no particular order.
+     *         Directories that can no longer be read are left for their parent's scan to notice.
+     */
+    List<String> changed(Path root, Collection<String> exclude) {
+        Map<String, FileStamp> listed = new HashMap<>();
+        synchronized (this) {
+            schedules.forEach((pathName, schedule) -> {
+                if (!exclude.contains(pathName)) {
+                    listed.put(pathName, schedule.listed);
+                }
+            });
+        }
+
+        List<String> changed = new ArrayList<>();
+        listed.forEach((pathName, stamp) -> {
+            try {
+                if (!FileStamp.read(root.resolve(pathName)).equals(stamp)) {
+                    changed.add(pathName);
+                }
+            } catch (IOException ignored) {
+                // deleted, so there is nothing new in it
+            }
+        });
+        return changed;
+    }
+
+    /**
+     * @return the directories whose next scan is due, in no particular order
+     */
+    synchronized List<String> due(long now) {
+        List<String> due = new ArrayList<>();
+        for (Schedule schedule : queue) {
+            if (schedule.nextScan > now) {
+                break;
+            }
+            due.add(schedule.pathName);
+        }
+        return due;
+    }
+
+    /**
+     * Records the outcome of scanning a directory, and schedules its next scan accordingly.
+     * @param changed whether the scan found anything that changed (or is still changing)
+     */
+    synchronized void scanned(String pathName, boolean changed, long now) {
+        Schedule schedule = schedules.get(pathName);
+        if (schedule != null) {
+            long interval = changed ? minInterval() : Math.min(schedule.interval * 2, maxInterval());
+            reschedule(schedule, interval, now + interval);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package unimelb.bitbox.util.fs;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.config.Configuration;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates a file with the same content as an existing file in the share directory, as cheaply as the file system
+ * allows. In order of preference:
+ * <li>a copy-on-write clone (reflink), which shares the existing blocks and takes no time however large the file is
+ * (btrfs, XFS, APFS, ...);</li>
+ * <li>a hard link, if <code>shortcutHardLinks</code> is set to true. The two paths are then the same file, so this
+ * is only suitable for shares whose files are never modified in place;</li>
+ * <li>a kernel-side copy with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.</li>
+ * <br/>
+ * Java has no API for clones, so they are made with the system's <code>cp</code>. File systems that turn out not
+ * to support them are remembered, so this is only attempted once per file system.
+ *
+ * @author Eleanor McMurtry
+ */
+class ShortcutEngine {
+    private static final String OS = System.getProperty("os.name").toLowerCase();
+    // Below this size, starting a process costs more than copying the bytes
+    private static final long MIN_CLONE_SIZE = 1024 * 1024;
+    private static final long CLONE_TIMEOUT_SECONDS = 60;
+
+    private final Map<FileStore, Boolean> cloneSupport = new ConcurrentHashMap<>();
+
+    enum Method {
+        CLONE,
+        HARD_LINK,
+        COPY
+    }
+
+    /**
+     * Creates the target file with the content of the source file.
+     * @param target a path that must not yet exist
+     * @return the method that was used
+     * @throws IOException if the file could not be created by any method; the target will not exist
+     */
+    Method copy(Path source, Path target) throws IOException {
+        Maybe<Method> shared = share(source, target);
+        if (shared.isJust()) {
+            return shared.get();
+        }
+        long size = Files.size(source);
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long position = 0;
+            while (position < size) {
+                long copied = in.transferTo(position, size - position, out);
+                if (copied <= 0) {
+                    throw new IOException("source " + source + " shrank during copy");
+                }
+                position += copied;
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+        return Method.COPY;
+    }
+
+    /**
+     * Creates the target file with the content of the source file, but only if that costs next to nothing: a clone,
+     * or a hard link if they are enabled.
+     * @param target a path that must not yet exist
+     * @return the method that was used, or nothing if the content would have to be copied
+     * @throws IOException if the size of the source could not be read
+     */
+    Maybe<Method> share(Path source, Path target) throws IOException {
+        if (Files.size(source) >= MIN_CLONE_SIZE && clone(source, target)) {
+            return Maybe.just(Method.CLONE);
+        }
+        if (Configuration.getConfigurationValue("shortcutHardLinks").map(Boolean::parseBoolean).orElse(false)) {
+            try {
+                Files.createLink(target, source);
+                return Maybe.just(Method.HARD_LINK);
+            } catch (IOException | UnsupportedOperationException e) {
+                PeerServer.log().fine("failed linking " + target + " to " + source + ": " + e.getMessage());
+            }
+        }
+        return Maybe.nothing();
+    }
+
+    private boolean clone(Path source, Path target) {
+        String[] command;
+        if (OS.contains("linux")) {
+            command = new String[] { "cp", "--reflink=always", source.toString(), target.toString() };
+        } else if (OS.contains("mac")) {
+            command = new String[] { "cp", "-c", source.toString(), target.toString() };
+        } else {
+            return false;
+        }
+
+        FileStore store;
+        try {
+            store = Files.getFileStore(source);
+        } catch (IOException e) {
+            return false;
+        }
+        if (!cloneSupport.getOrDefault(store, true)) {
+            return false;
+        }
+
+        try {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true)
+                                                         .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                                                         .start();
+            if (!process.waitFor(CLONE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            } else if (process.exitValue() == 0) {
+                cloneSupport.put(store, true);
+                return true;
+            }
+        } catch (IOException e) {
+            PeerServer.log().fine("failed cloning " + source + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            Files.deleteIfExists(target);
+        } catch (IOException e) {
+            PeerServer.log().warning("failed removing partial clone " + target + ": " + e.getMessage());
+        }
+        if (!cloneSupport.containsKey(store)) {
+            PeerServer.log().fine("file system " + store + " does not support clones; copying instead");
+            cloneSupport.put(store, false);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,136 @@
+package unimelb.bitbox.util.fs;
+
+import unimelb.bitbox.server.PeerServer;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Deletes directory trees in parallel. Each directory is listed with {@link Files#walkFileTree} one level deep: its
+ * files are deleted straight away, and each subdirectory becomes a task of its own, so that idle threads in the
+ * work-stealing pool pick up whole branches of a large tree. A directory is deleted once everything in it has been.
+ * <br/>
+ * Symbolic links are deleted rather than followed, so nothing outside the tree is touched. Long deletions report
+ * their progress in the log.
+ *
+ * @author Eleanor McMurtry
+ */
+class TreeDeleter {
+    private static final long PROGRESS_INTERVAL = 5000;
+
+    private final ForkJoinPool pool = new ForkJoinPool();
+
+    private static final class Deletion {
+        private final Path root;
+        private final AtomicLong deleted = new AtomicLong();
+        private final AtomicReference<IOException> failure = new AtomicReference<>();
+        private final long started = System.currentTimeMillis();
+        private volatile long lastReport = started;
+
+        private Deletion(Path root) {
+            this.root = root;
+        }
+
+        private void deleted() {
+            deleted.incrementAndGet();
+            long now = System.currentTimeMillis();
+            if (now - lastReport >= PROGRESS_INTERVAL) {
+                lastReport = now;
+                PeerServer.log().info("Deleting " + root + ": " + deleted.get() + " entries removed so far");
+            }
+        }
+
+        private void failed(IOException e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    private static final class DeleteTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Deletion deletion;
+        private final Path directory;
+
+        private DeleteTask(Deletion deletion, Path directory) {
+            this.deletion = deletion;
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            List<DeleteTask> subtasks = new ArrayList<>();
+            try {
+                Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        // At the maximum depth, subdirectories are visited like files
+                        if (attrs.isDirectory()) {
+                            DeleteTask subtask = new DeleteTask(deletion, file);
+                            subtask.fork();
+                            subtasks.add(subtask);
+                        } else {
+                            try {
+                                Files.delete(file);
+                                deletion.deleted();
+                            } catch (IOException e) {
+                                deletion.failed(e);
+                            }
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        deletion.failed(e);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                deletion.failed(e);
+            }
+
+            for (DeleteTask subtask : subtasks) {
+                subtask.join();
+            }
+            try {
+                Files.delete(directory);
+                deletion.deleted();
+            } catch (IOException e) {
+                deletion.failed(e);
+            }
+        }
+    }
+
+    /**
+     * Starts deleting a directory and everything in it.
+     * @return the number of entries deleted, including the directory itself, or the first error that was
+     * encountered; entries that could be deleted are deleted regardless
+     */
+    CompletableFuture<Long> delete(Path directory) {
+        Deletion deletion = new Deletion(directory);
+        return CompletableFuture.supplyAsync(() -> {
+            new DeleteTask(deletion, directory).invoke();
+            IOException failure = deletion.failure.get();
+            if (failure != null) {
+                throw new CompletionException(failure);
+            }
+            PeerServer.log().fine("deleted " + deletion.deleted.get() + " entries under " + directory + " in "
+                                  + (System.currentTimeMillis() - deletion.started) + "ms");
+            return deletion.deleted.get();
+        }, pool);
+    }
+}
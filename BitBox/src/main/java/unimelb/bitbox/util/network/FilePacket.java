@@ -1,5 +1,6 @@
 package unimelb.bitbox.util.network;
 
+import functional.algebraic.Maybe;
 import unimelb.bitbox.messages.FileBytesRequest;
 import unimelb.bitbox.messages.FileBytesResponse;
 import unimelb.bitbox.peers.Peer;
@@ -64,7 +65,7 @@ public class FilePacket {
      * Requests the next set of bytes as described by this packet.
      */
     public void sendBytesRequest() {
-        long nextPosition = position + length;
+        long nextPosition = nextPosition();
         transfer.peer.sendMessage(new FileBytesRequest(fd(), nextPosition));
         float completion = (float) nextPosition / (float) fd().fileSize() * 100;
         String completionPercent = String.format("%.1f", completion);
@@ -74,11 +75,20 @@ public class FilePacket {
                 " at position: [" + nextPosition + "/" + fd().fileSize() + "]");
     }
 
+    /**
+     * @return the position of the bytes after the ones described by this packet
+     */
+    public long nextPosition() {
+        return position + length;
+    }
+
     /**
      * Writes the decoded data to the file, as described by this packet.
+     * @param blockMd5 the digest of the data, if the peer sent one
+     * @return false if the data did not match its digest, in which case it was not written
      * @throws IOException if a write error occurs
      */
-    public void writeData(ByteBuffer decoded) throws IOException {
-        PeerServer.fsManager().writeFile(pathName(), decoded, position);
+    public boolean writeData(ByteBuffer decoded, Maybe<String> blockMd5) throws IOException {
+        return PeerServer.fsManager().writeFile(pathName(), decoded, position, blockMd5);
     }
 }
@@ -67,8 +67,18 @@ public class FileTransfer {
         return fileDescriptor.hashCode();
     }
 
+    /**
+     * Requests the rest of the file again, or from a different peer than before.
+     */
+    public void sendBytesRequest(Peer source, long position) {
+        source.sendMessage(FileBytesRequest.stream(fileDescriptor, position));
+        PeerServer.log().fine(source.getForeignName() + ": re-sent FILE_BYTES_REQUEST for " +
+                              fileDescriptor.pathName + " at position: [" + position + "/" +
+                              fileDescriptor.fileSize() + "]");
+    }
+
     public void sendInitialBytesRequest() {
-        peer.sendMessage(new FileBytesRequest(fileDescriptor, 0));
+        peer.sendMessage(FileBytesRequest.stream(fileDescriptor, 0));
         PeerServer.log().info("Beginning download of " + fileDescriptor.pathName
                               + " (" + Conversion.humanFileSize(fileDescriptor.fileSize()) + ")");
         PeerServer.log().fine(peer.getForeignName() + ": sent FILE_BYTES_REQUEST for " +
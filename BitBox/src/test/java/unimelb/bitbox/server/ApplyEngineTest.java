@@ -0,0 +1,120 @@
+package unimelb.bitbox.server;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the order in which the apply engine runs conflicting changes and acknowledges them. Changes are run on an
+ * executor the test drives by hand, so that only the changes the engine has released are ever runnable.
+ *
+ * @author Eleanor McMurtry
+ */
+public class ApplyEngineTest {
+    /**
+     * Holds the tasks the engine releases until the test decides to run them.
+     */
+    private static final class ManualExecutor implements Executor {
+        private final Deque<Runnable> ready = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable task) {
+            ready.add(task);
+        }
+
+        void runFirst() {
+            ready.removeFirst().run();
+        }
+
+        void runLast() {
+            ready.removeLast().run();
+        }
+
+        void runAll() {
+            while (!ready.isEmpty()) {
+                runFirst();
+            }
+        }
+    }
+
+    private final ManualExecutor executor = new ManualExecutor();
+    private final ApplyEngine engine = new ApplyEngine(executor);
+    private final List<String> applied = new ArrayList<>();
+    private final List<String> acknowledged = new ArrayList<>();
+
+    private void submit(String name, String path, boolean subtree) {
+        engine.submit(Collections.singletonList(path), subtree, () -> applied.add(name), () -> acknowledged.add(name));
+    }
+
+    @Test
+    public void changesToTheSamePathRunInArrivalOrder() {
+        submit("create", "a", false);
+        submit("modify", "a", false);
+        submit("delete", "a", false);
+        assertEquals(1, executor.ready.size());
+
+        executor.runFirst();
+        assertEquals(asList("create"), applied);
+        assertEquals(1, executor.ready.size());
+
+        executor.runAll();
+        assertEquals(asList("create", "modify", "delete"), applied);
+    }
+
+    @Test
+    public void directoryDeleteWaitsForEarlierChangesBelowIt() {
+        submit("file", "d/x", false);
+        submit("nested", "d/e/y", false);
+        submit("delete", "d", true);
+        submit("sibling", "dx", false);
+        // the delete waits, but a path that merely shares its prefix doesn't
+        assertEquals(3, executor.ready.size());
+
+        executor.runFirst();
+        executor.runFirst();
+        assertEquals(asList("file", "nested"), applied);
+        executor.runAll();
+        assertEquals(asList("file", "nested", "sibling", "delete"), applied);
+    }
+
+    @Test
+    public void createInsideDeletedDirectoryWaitsForTheDelete() {
+        submit("delete", "d", true);
+        submit("create", "d/e/x", false);
+        submit("sibling", "dx/x", false);
+        assertEquals(2, executor.ready.size());
+
+        executor.runLast();
+        assertEquals(asList("sibling"), applied);
+        assertEquals(1, executor.ready.size());
+
+        executor.runFirst();
+        assertEquals(asList("sibling", "delete"), applied);
+        executor.runAll();
+        assertEquals(asList("sibling", "delete", "create"), applied);
+    }
+
+    @Test
+    public void acknowledgementsRunInArrivalOrderWhenChangesFinishOutOfOrder() {
+        submit("a", "a", false);
+        submit("b", "b", false);
+        submit("c", "c", false);
+        assertEquals(3, executor.ready.size());
+
+        executor.runLast();
+        executor.runLast();
+        assertEquals(asList("c", "b"), applied);
+        assertEquals(Collections.emptyList(), acknowledged);
+
+        executor.runLast();
+        assertEquals(asList("a", "b", "c"), acknowledged);
+    }
+}
@@ -0,0 +1,73 @@
+package unimelb.bitbox.util.fs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a file moved into a directory that isn't due to be scanned can still be paired with the file that
+ * vanished, rather than being reported as a delete and a create.
+ *
+ * @author Eleanor McMurtry
+ */
+public class ScanSchedulerTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final ScanScheduler scheduler = new ScanScheduler();
+
+    private void list(Path root, String dirName, long now) throws IOException {
+        scheduler.watch(dirName, now);
+        scheduler.listed(dirName, FileStamp.read(root.resolve(dirName)));
+    }
+
+    @Test
+    public void moveIntoColdDirectoryIsFound() throws Exception {
+        Path root = folder.getRoot().toPath();
+        Files.createDirectories(root.resolve("busy"));
+        Files.createDirectories(root.resolve("cold"));
+        Path moved = Files.write(root.resolve("busy").resolve("file.txt"), "content".getBytes());
+        FileStamp oldStamp = FileStamp.read(moved);
+
+        long now = 0;
+        list(root, "busy", now);
+        list(root, "cold", now);
+        // the cold directory backs off, while the busy one keeps changing
+        for (int i = 0; i < 10; ++i) {
+            now += ScanScheduler.minInterval();
+            scheduler.scanned("busy", true, now);
+            scheduler.scanned("cold", false, now);
+        }
+        // make sure the move changes the directory's timestamps
+        Thread.sleep(50);
+        Path target = Files.move(moved, root.resolve("cold").resolve("file.txt"));
+
+        now += ScanScheduler.minInterval();
+        assertTrue(scheduler.due(now).contains("busy"));
+        assertFalse(scheduler.due(now).contains("cold"));
+        assertEquals(Collections.singletonList("cold"), scheduler.changed(root, Collections.singleton("busy")));
+
+        // listing it then finds the file, which matches the one that vanished
+        RenameDetector renames = new RenameDetector();
+        renames.arrived("cold/file.txt", FileStamp.read(target));
+        assertEquals("cold/file.txt", renames.claim(oldStamp, pathName -> true).get().pathName);
+    }
+
+    @Test
+    public void unchangedDirectoryIsNotListedEarly() throws Exception {
+        Path root = folder.getRoot().toPath();
+        Files.createDirectories(root.resolve("cold"));
+        list(root, "cold", 0);
+
+        assertEquals(Collections.emptyList(), scheduler.changed(root, Collections.emptySet()));
+    }
+}